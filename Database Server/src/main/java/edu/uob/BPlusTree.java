@@ -0,0 +1,213 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/* B+tree from numeric keys to the rows holding them, the storage of an OrderedIndex.
+   Every key is stored once in a leaf together with its rows (kept in id order), and the leaves are
+   chained so a range is read by one descent followed by a walk along the leaves.
+   Deleting only removes entries from the leaves: nodes are never merged, which keeps the separators
+   in the inner nodes valid, and the space is given back when the index is rebuilt. */
+public class BPlusTree {
+    private static final int MAX_KEYS = 64;
+
+    private static class Node {
+        int size;
+        // one spare slot, a node is split as soon as it overflows into it
+        double[] keys = new double[MAX_KEYS + 1];
+    }
+
+    private static final class LeafNode extends Node {
+        List<List<Row>> values = new ArrayList<>(MAX_KEYS + 1);
+        LeafNode next;
+    }
+
+    /* keys[i] is the smallest key that can be found under children[i + 1] */
+    private static final class InnerNode extends Node {
+        Node[] children = new Node[MAX_KEYS + 2];
+    }
+
+    private static final class Split {
+        double separator;
+        Node right;
+
+        Split(double separator, Node right) {
+            this.separator = separator;
+            this.right = right;
+        }
+    }
+
+    private Node root;
+    private int rowCount;
+
+    public BPlusTree() {
+        clear();
+    }
+
+    public void clear() {
+        root = new LeafNode();
+        rowCount = 0;
+    }
+
+    public int size() {
+        return rowCount;
+    }
+
+    public void insert(double key, Row row) {
+        Split split = insert(root, key, row);
+        if (split != null) {
+            InnerNode newRoot = new InnerNode();
+            newRoot.keys[0] = split.separator;
+            newRoot.children[0] = root;
+            newRoot.children[1] = split.right;
+            newRoot.size = 1;
+            root = newRoot;
+        }
+        rowCount++;
+    }
+
+    private Split insert(Node node, double key, Row row) {
+        if (node instanceof LeafNode) {
+            LeafNode leaf = (LeafNode) node;
+            int position = firstNotLess(leaf.keys, leaf.size, key);
+            if (position < leaf.size && leaf.keys[position] == key) {
+                addInIdOrder(leaf.values.get(position), row);
+                return null;
+            }
+            System.arraycopy(leaf.keys, position, leaf.keys, position + 1, leaf.size - position);
+            leaf.keys[position] = key;
+            List<Row> keyRows = new ArrayList<>(1);
+            keyRows.add(row);
+            leaf.values.add(position, keyRows);
+            leaf.size++;
+            return leaf.size > MAX_KEYS ? splitLeaf(leaf) : null;
+        }
+
+        InnerNode inner = (InnerNode) node;
+        int childIndex = firstGreater(inner.keys, inner.size, key);
+        Split split = insert(inner.children[childIndex], key, row);
+        if (split == null) {
+            return null;
+        }
+        System.arraycopy(inner.keys, childIndex, inner.keys, childIndex + 1, inner.size - childIndex);
+        System.arraycopy(inner.children, childIndex + 1, inner.children, childIndex + 2, inner.size - childIndex);
+        inner.keys[childIndex] = split.separator;
+        inner.children[childIndex + 1] = split.right;
+        inner.size++;
+        return inner.size > MAX_KEYS ? splitInner(inner) : null;
+    }
+
+    private Split splitLeaf(LeafNode leaf) {
+        int middle = leaf.size / 2;
+        LeafNode right = new LeafNode();
+        right.size = leaf.size - middle;
+        System.arraycopy(leaf.keys, middle, right.keys, 0, right.size);
+        List<List<Row>> movedValues = leaf.values.subList(middle, leaf.size);
+        right.values.addAll(movedValues);
+        movedValues.clear();
+        leaf.size = middle;
+        right.next = leaf.next;
+        leaf.next = right;
+        return new Split(right.keys[0], right);
+    }
+
+    private Split splitInner(InnerNode inner) {
+        int middle = inner.size / 2;
+        InnerNode right = new InnerNode();
+        right.size = inner.size - middle - 1;
+        System.arraycopy(inner.keys, middle + 1, right.keys, 0, right.size);
+        System.arraycopy(inner.children, middle + 1, right.children, 0, right.size + 1);
+        for (int i = middle + 1; i <= inner.size; i++) {
+            inner.children[i] = null;
+        }
+        inner.size = middle;
+        return new Split(inner.keys[middle], right);
+    }
+
+    public void remove(double key, Row row) {
+        LeafNode leaf = findLeaf(key);
+        int position = firstNotLess(leaf.keys, leaf.size, key);
+        if (position == leaf.size || leaf.keys[position] != key) {
+            return;
+        }
+        List<Row> keyRows = leaf.values.get(position);
+        if (!keyRows.remove(row)) {
+            return;
+        }
+        rowCount--;
+        if (keyRows.isEmpty()) {
+            System.arraycopy(leaf.keys, position + 1, leaf.keys, position, leaf.size - position - 1);
+            leaf.values.remove(position);
+            leaf.size--;
+        }
+    }
+
+    /* Visit the rows with lower <(=) key <(=) upper in ascending key order, until the visitor returns false.
+       Returns false when the visitor stopped the scan. */
+    public boolean scan(double lower, boolean lowerInclusive, double upper, boolean upperInclusive, Predicate<Row> visitor) {
+        LeafNode leaf = findLeaf(lower);
+        int position = lowerInclusive ? firstNotLess(leaf.keys, leaf.size, lower) : firstGreater(leaf.keys, leaf.size, lower);
+        while (leaf != null) {
+            for (; position < leaf.size; position++) {
+                double key = leaf.keys[position];
+                if (key > upper || (key == upper && !upperInclusive)) {
+                    return true;
+                }
+                for (Row row : leaf.values.get(position)) {
+                    if (!visitor.test(row)) {
+                        return false;
+                    }
+                }
+            }
+            leaf = leaf.next;
+            position = 0;
+        }
+        return true;
+    }
+
+    private LeafNode findLeaf(double key) {
+        Node node = root;
+        while (node instanceof InnerNode) {
+            InnerNode inner = (InnerNode) node;
+            node = inner.children[firstGreater(inner.keys, inner.size, key)];
+        }
+        return (LeafNode) node;
+    }
+
+    private static void addInIdOrder(List<Row> keyRows, Row row) {
+        int position = keyRows.size();
+        while (position > 0 && keyRows.get(position - 1).getIdNumber() > row.getIdNumber()) {
+            position--;
+        }
+        keyRows.add(position, row);
+    }
+
+    private static int firstNotLess(double[] keys, int size, double key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int firstGreater(double[] keys, int size, double key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] <= key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
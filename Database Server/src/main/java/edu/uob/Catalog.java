@@ -0,0 +1,128 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* The manifest of a database's tables, kept in its folder so USE can open the database without reading any table.
+   One line per table:
+       name, row count, next row id, then the column names (without id)
+   separated by tabs. The table files are the truth about which tables exist: a table file without a line is read
+   when the database is used, a line without a table file is dropped. The catalog is rewritten by checkpoints and
+   schema changes (see Database) */
+public class Catalog {
+    public static final String FILE_NAME = "catalog";
+
+    public static final class Entry {
+        final String tableName;
+        final List<String> columnNames;
+        final int rowCount;
+        final int nextRowId;
+
+        Entry(String tableName, List<String> columnNames, int rowCount, int nextRowId) {
+            this.tableName = tableName;
+            this.columnNames = columnNames;
+            this.rowCount = rowCount;
+            this.nextRowId = nextRowId;
+        }
+
+        public int getNextRowId() {
+            return nextRowId;
+        }
+
+        private String toLine() {
+            return tableName + "\t" + rowCount + "\t" + nextRowId + (columnNames.isEmpty() ? "" : "\t" + String.join("\t", columnNames));
+        }
+    }
+
+    private final Path catalogPath;
+    /* lower case table name -> its entry */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private boolean changed;
+
+    public Catalog(Path databasePath) {
+        this.catalogPath = databasePath.resolve(FILE_NAME);
+    }
+
+    /* A damaged line is skipped, its table is then read as if the catalog had never listed it */
+    public void read() throws IOException {
+        if (!Files.exists(catalogPath)) {
+            return;
+        }
+        for (String line : Files.readAllLines(catalogPath, StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t");
+            if (fields.length < 3) {
+                continue;
+            }
+            try {
+                List<String> columnNames = new ArrayList<>(Arrays.asList(fields).subList(3, fields.length));
+                entries.put(fields[0], new Entry(fields[0], columnNames, Integer.parseInt(fields[1]), Integer.parseInt(fields[2])));
+            } catch (NumberFormatException e) {
+                // not a line this server wrote
+            }
+        }
+    }
+
+    public boolean contains(String tableName) {
+        return entries.containsKey(tableName);
+    }
+
+    public Entry get(String tableName) {
+        return entries.get(tableName);
+    }
+
+    public Collection<String> getTableNames() {
+        return entries.keySet();
+    }
+
+    /* Describe a table as it is in memory */
+    public void put(Table table) {
+        List<String> columnNames = table.getColumnNames();
+        Entry entry = new Entry(table.getName(), columnNames.subList(1, columnNames.size()), table.getRowCount(), table.nextRowId);
+        Entry oldEntry = entries.put(entry.tableName, entry);
+        changed |= oldEntry == null || !oldEntry.toLine().equals(entry.toLine());
+    }
+
+    public void remove(String tableName) {
+        changed |= entries.remove(tableName) != null;
+    }
+
+    /* Forget the tables whose files are gone */
+    public void retain(Set<String> tableNames) {
+        changed |= entries.keySet().retainAll(tableNames);
+    }
+
+    /* Write the catalog if it changed, to a temporary file moved over the old one */
+    public void write() throws IOException {
+        if (!changed) {
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            lines.add(entry.toLine());
+        }
+        Path temporaryPath = catalogPath.resolveSibling(FILE_NAME + ".tmp");
+        Files.write(temporaryPath, lines, StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+        try {
+            Files.move(temporaryPath, catalogPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryPath, catalogPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        changed = false;
+    }
+}
@@ -2,12 +2,22 @@ package edu.uob;
 
 public class Column {
     private String name;
+    private ColumnType type;
 
     public Column(String name) {
         this.name = name;
+        this.type = ColumnType.NONE;
     }
 
     public String getName(){
         return name;
     }
+
+    public ColumnType getType() {
+        return type;
+    }
+
+    public void setType(ColumnType type) {
+        this.type = type;
+    }
 }
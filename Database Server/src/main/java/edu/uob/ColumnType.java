@@ -0,0 +1,120 @@
+package edu.uob;
+
+/* The type of a column, inferred from the values stored in it.
+   Values are parsed once when they are inserted or loaded and kept as Long, Double, Boolean or String
+   (null for an empty value). Only the canonical spelling of a number or boolean is parsed, everything else
+   stays a String, so rendering a stored value always gives back exactly the text that was inserted. */
+public enum ColumnType {
+    NONE,       // no value has been stored in the column yet
+    INTEGER,    // every value is a Long
+    FLOAT,      // every value is a Long or a Double
+    BOOLEAN,    // every value is a Boolean
+    STRING;     // every value is a String
+
+    public boolean isNumeric() {
+        return this == INTEGER || this == FLOAT;
+    }
+
+    /* The narrowest type that can hold both this column's values and a value of the other type */
+    public ColumnType widen(ColumnType other) {
+        if (other == NONE || other == this) {
+            return this;
+        }
+        if (this == NONE) {
+            return other;
+        }
+        if (this.isNumeric() && other.isNumeric()) {
+            return FLOAT;
+        }
+        return STRING;
+    }
+
+    public static ColumnType typeOf(Object value) {
+        if (value == null) {
+            return NONE;
+        } else if (value instanceof Long) {
+            return INTEGER;
+        } else if (value instanceof Double) {
+            return FLOAT;
+        } else if (value instanceof Boolean) {
+            return BOOLEAN;
+        }
+        return STRING;
+    }
+
+    /* <Value> ::= "'" [StringLiteral] "'" | [BooleanLiteral] | [FloatLiteral] | [IntegerLiteral] | "NULL" */
+    public static Object parse(String text) {
+        if (text == null || text.isEmpty()) {
+            return null;
+        }
+        if ("TRUE".equals(text)) {
+            return Boolean.TRUE;
+        }
+        if ("FALSE".equals(text)) {
+            return Boolean.FALSE;
+        }
+        char first = text.charAt(0);
+        if (first != '-' && (first < '0' || first > '9')) {
+            return text;
+        }
+        try {
+            if (text.indexOf('.') < 0) {
+                Long integer = Long.parseLong(text);
+                if (integer.toString().equals(text)) {
+                    return integer;
+                }
+            } else if (text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+                Double floatingPoint = Double.parseDouble(text);
+                if (floatingPoint.toString().equals(text)) {
+                    return floatingPoint;
+                }
+            }
+        } catch (NumberFormatException e) {
+            // not a number after all, keep it as text
+        }
+        return text;
+    }
+
+    /* Convert a parsed value to the representation used by a column of this type */
+    public Object convert(Object value) {
+        if (value == null || this != STRING || value instanceof String) {
+            return value;
+        }
+        return render(value);
+    }
+
+    public static String render(Object value) {
+        if (value == null) {
+            return "";
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? "TRUE" : "FALSE";
+        }
+        return value.toString();
+    }
+
+    /* Equality with the semantics of comparing the values' text, without rendering in the common case */
+    public static boolean sameValue(Object first, Object second) {
+        if (first == null || second == null) {
+            return first == second;
+        }
+        if (first.getClass() == second.getClass()) {
+            return first.equals(second);
+        }
+        return render(first).equals(render(second));
+    }
+
+    /* The numeric value used by the range comparators, NaN when the value is not a number */
+    public static double toDouble(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Double.parseDouble((String) value);
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+}
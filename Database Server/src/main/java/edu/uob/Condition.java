@@ -1,37 +1,109 @@
 package edu.uob;
 
+import java.util.List;
+import java.util.function.Predicate;
+
 public class Condition implements Expression {
     String attributeName;
     String operator;
     String value;
+    /* the position of the value among the parameters of a prepared statement, -1 for a literal */
+    int parameter = -1;
 
     public Condition(String attributeName, String operator, String value) {
         this.attributeName = attributeName;
-        this.operator = operator;
+        this.operator = operator.toUpperCase();
         this.value = value.replace("'", "");
     }
 
     @Override
-    public boolean evaluate(Row row) {
-        String rowValue = row.getValue(attributeName);
+    public Expression bind(List<String> values) {
+        return parameter == -1 ? this : new Condition(attributeName, operator, values.get(parameter));
+    }
 
+    @Override
+    public String toString() {
+        String literal = parameter != -1 ? "?" : ColumnType.parse(value) instanceof String ? "'" + value + "'" : value;
+        return attributeName + " " + operator + " " + literal;
+    }
+
+    @Override
+    public Predicate<Row> compile(Table table) {
+        int ordinal = table.getColumnIndex(attributeName);
+        if (ordinal == -1) {
+            // A column the table does not have reads as an empty value in every row
+            boolean result = compileComparison(ColumnType.NONE, 0).test(null);
+            return row -> result;
+        }
+        Predicate<Object> comparison = compileComparison(table.columns.get(ordinal).getType(), ordinal);
+        return row -> comparison.test(row.getValue(ordinal));
+    }
+
+    /* Choose the comparison for the column's type, with the literal converted to match the stored values */
+    private Predicate<Object> compileComparison(ColumnType columnType, int ordinal) {
         switch (operator) {
             case "==":
-                return rowValue.equals(value);
+                return equalTo(literalFor(columnType));
+            case "!=":
+                return equalTo(literalFor(columnType)).negate();
             case ">":
-                return Double.compare(Double.parseDouble(rowValue), Double.parseDouble(value)) > 0;
             case "<":
-                return Double.compare(Double.parseDouble(rowValue), Double.parseDouble(value)) < 0;
             case ">=":
-                return Double.compare(Double.parseDouble(rowValue), Double.parseDouble(value)) >= 0;
             case "<=":
-                return Double.compare(Double.parseDouble(rowValue), Double.parseDouble(value)) <= 0;
-            case "!=":
-                return !rowValue.equals(value);
+                return compileRange(columnType, ColumnType.toDouble(value));
             case "LIKE":
-                return rowValue.contains(value);
+                if (columnType == ColumnType.STRING) {
+                    return rowValue -> rowValue instanceof String && ((String) rowValue).contains(value);
+                }
+                return rowValue -> ColumnType.render(rowValue).contains(value);
             default:
                 throw new IllegalArgumentException("Unsupported operator: " + operator);
         }
     }
+
+    /* The literal in the representation used by a column of the given type */
+    public Object literalFor(ColumnType columnType) {
+        return columnType.convert(ColumnType.parse(value));
+    }
+
+    /* The literal has the same representation as the column's values, so equals() gives the same answer
+       as comparing the values' text (see ColumnType.sameValue). A reader checks rows without the table lock,
+       so a value may already have been widened to text by a writer: then the text is compared */
+    private static Predicate<Object> equalTo(Object literal) {
+        if (literal == null) {
+            return rowValue -> rowValue == null;
+        }
+        Class<?> literalClass = literal.getClass();
+        return rowValue -> rowValue != null && rowValue.getClass() == literalClass ? literal.equals(rowValue) : ColumnType.sameValue(literal, rowValue);
+    }
+
+    /* A value that is not a number never satisfies a range comparison */
+    private Predicate<Object> compileRange(ColumnType columnType, double literal) {
+        if (Double.isNaN(literal)) {
+            return rowValue -> false;
+        }
+        if (columnType == ColumnType.INTEGER) {
+            switch (operator) {
+                case ">":
+                    return rowValue -> rowValue instanceof Long ? (Long) rowValue > literal : ColumnType.toDouble(rowValue) > literal;
+                case "<":
+                    return rowValue -> rowValue instanceof Long ? (Long) rowValue < literal : ColumnType.toDouble(rowValue) < literal;
+                case ">=":
+                    return rowValue -> rowValue instanceof Long ? (Long) rowValue >= literal : ColumnType.toDouble(rowValue) >= literal;
+                default:
+                    return rowValue -> rowValue instanceof Long ? (Long) rowValue <= literal : ColumnType.toDouble(rowValue) <= literal;
+            }
+        }
+        // Float columns hold numbers already, string columns are the only ones still parsed per row
+        switch (operator) {
+            case ">":
+                return rowValue -> ColumnType.toDouble(rowValue) > literal;
+            case "<":
+                return rowValue -> ColumnType.toDouble(rowValue) < literal;
+            case ">=":
+                return rowValue -> ColumnType.toDouble(rowValue) >= literal;
+            default:
+                return rowValue -> ColumnType.toDouble(rowValue) <= literal;
+        }
+    }
 }
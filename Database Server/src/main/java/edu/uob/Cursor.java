@@ -0,0 +1,124 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* A SELECT whose rows are fetched a few at a time: DECLARE runs the query up to its scan, every FETCH carries on
+   from where the last one stopped. The cursor keeps its snapshot open, so it sees the rows as they were at DECLARE
+   whatever is committed meanwhile, and old versions are kept until it is closed. To bound that, a session can only
+   hold a few cursors, and a cursor left unused for too long is closed by the server (see Session and Database) */
+public class Cursor {
+    final String name;
+    final Database database;
+    final Table table;
+    private final List<String> selectedColumns;
+    /* the ordinals of the selected columns and the schema version they were resolved under, at DECLARE.
+       A schema change invalidates the cursor */
+    private final int[] ordinals;
+    private final int schemaVersion;
+    private final Table.RowScan scan;
+    private final long snapshot;
+    private final long idleMillis;
+    /* how many more rows the LIMIT of the query allows, -1 for no limit */
+    private int remaining;
+    private volatile long lastUsed;
+    private volatile boolean closed;
+    /* held while a FETCH writes its rows, which can take as long as the client takes to read them. The server
+       closing idle cursors only tries it, so a slow client holds up its own cursor and nothing else */
+    private final ReentrantLock fetchLock = new ReentrantLock();
+
+    Cursor(String name, Database database, Table table, List<String> selectedColumns, Table.RowScan scan, long snapshot, int limit, long idleMillis) {
+        this.name = name;
+        this.database = database;
+        this.table = table;
+        this.selectedColumns = selectedColumns;
+        this.schemaVersion = table.getSchemaVersion();
+        // the requested columns the table does not have are left out, as in Table.writeSelectedRows
+        this.ordinals = table.getColumnOrdinals(selectedColumns);
+        this.scan = scan;
+        this.snapshot = snapshot;
+        this.remaining = limit;
+        this.idleMillis = idleMillis;
+        this.lastUsed = database.getCursorTime();
+    }
+
+    /* Write the next count rows after the column names, fewer once the rows run out.
+       Returns null when written, or the error. FETCH runs without the database lock, see DBServer.StatementLock */
+    public String fetch(int count, Writer response) throws IOException {
+        fetchLock.lock();
+        try {
+            if (closed) {
+                return "[ERROR]: Cursor " + name + " has been closed.";
+            }
+            if (table.getSchemaVersion() != schemaVersion) {
+                closeLocked();
+                return "[ERROR]: Table '" + table.getName() + "' has changed since cursor " + name + " was declared.";
+            }
+            lastUsed = database.getCursorTime();
+            response.write("[OK]\n");
+            ResultWriter resultWriter = new ResultWriter(response);
+            resultWriter.writeColumnNames(selectedColumns);
+            int fetched = resultWriter.writeRows(table, schemaVersion, scan, ordinals, remaining == -1 ? count : Math.min(count, remaining));
+            if (remaining > 0) {
+                remaining -= fetched;
+            }
+            // the time spent writing is not time left idle
+            lastUsed = database.getCursorTime();
+            return null;
+        } finally {
+            fetchLock.unlock();
+        }
+    }
+
+    /* A cursor is never idle while a FETCH is writing from it */
+    public boolean isIdle(long now) {
+        return !fetchLock.isLocked() && unusedFor(now);
+    }
+
+    private boolean unusedFor(long now) {
+        return now - lastUsed > TimeUnit.MILLISECONDS.toNanos(idleMillis);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /* Closes the cursor if it has gone idle, without waiting for a FETCH that is writing its rows.
+       Returns whether the cursor is closed */
+    public boolean closeIfIdle(long now) {
+        if (closed || !isIdle(now) || !fetchLock.tryLock()) {
+            return closed;
+        }
+        try {
+            // a FETCH may have used it between the check and the lock
+            if (unusedFor(now)) {
+                closeLocked();
+            }
+        } finally {
+            fetchLock.unlock();
+        }
+        return closed;
+    }
+
+    /* Ends the snapshot, closing a cursor twice does nothing. Waits for a FETCH in progress */
+    public void close() {
+        fetchLock.lock();
+        try {
+            closeLocked();
+        } finally {
+            fetchLock.unlock();
+        }
+    }
+
+    private void closeLocked() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        database.endSnapshot(snapshot);
+        database.removeCursor(this);
+    }
+}
@@ -4,7 +4,11 @@ import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.file.*;
+import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /** This class implements the DB server. */
@@ -13,16 +17,29 @@ public class
 DBServer {
 
     private static final char END_OF_TRANSMISSION = 4;
+    /* How many parsed commands the server keeps, "-Dedu.uob.statementCacheSize=0" turns the cache off */
+    public static final int STATEMENT_CACHE_SIZE = Integer.parseInt(System.getProperty("edu.uob.statementCacheSize", "1024"));
+    /* The only directory COPY reads and writes files in, "-Dedu.uob.copyDirectory=/srv/imports" sets it.
+       Unset, every database has its own, the "copy" folder inside the database's folder */
+    public static final String COPY_DIRECTORY = System.getProperty("edu.uob.copyDirectory");
     private String storageFolderPath;
-    private HashMap<String, Database> databases;
-    private Database currentDatabase;
-    private Path currentDatabasePath;
+    /* the databases opened so far, shared by every session */
+    private ConcurrentHashMap<String, Database> databases;
+    /* the session of the callers of handleCommand(String), connections get their own */
+    private Session defaultSession;
     private ReservedWordsDetector reservedWordsDetector= new ReservedWordsDetector();
+    /* command text -> its statement, shared by every session since a statement holds nothing of one */
+    private final ConcurrentHashMap<String, Statement> statementCache = new ConcurrentHashMap<>();
 
 
+    /* "--nio" serves the connections from a selector instead of a thread each */
     public static void main(String args[]) throws IOException {
         DBServer server = new DBServer();
-        server.blockingListenOn(8888);
+        if (args.length > 0 && args[0].equals("--nio")) {
+            server.nonBlockingListenOn(8888);
+        } else {
+            server.blockingListenOn(8888);
+        }
     }
 
     /**
@@ -30,8 +47,8 @@ DBServer {
      */
     public DBServer() {
         storageFolderPath = Paths.get("databases").toAbsolutePath().toString();
-        currentDatabasePath = null;
-        databases = new HashMap<>();
+        databases = new ConcurrentHashMap<>();
+        defaultSession = new Session();
 
         try {
             // Create the database storage folder if it doesn't already exist !
@@ -48,179 +65,442 @@ DBServer {
      * <p>This method handles all incoming DB commands and carries out the required actions.
      */
     public String handleCommand(String command) throws IOException {
-        // TODO implement your server logic here
-        Handler handler = new Handler();
-        ArrayList<String> tokens = handler.preprocessQuery(command);
-        String tableName;
-        ArrayList<String> whereClause;
+        return handleCommand(command, defaultSession);
+    }
+
+    /* The whole response as one String, for callers that want it so. Connections stream it instead */
+    public String handleCommand(String command, Session session) throws IOException {
+        StringWriter response = new StringWriter();
+        handleCommand(command, session, response);
+        return response.toString();
+    }
 
-        if (!";".equals(tokens.get(tokens.size() - 1))) {
-            return "[ERROR]: Semi colon missing at end of line";
+    /* Run a command on behalf of one session, writing the response to the given writer. Sessions may call this concurrently.
+       The rows of a SELECT, JOIN or FETCH are written one by one once the statement has released the database lock,
+       and never held as one String (see StatementLock) */
+    public void handleCommand(String command, Session session, Writer response) throws IOException {
+        String result = runCommand(command, session, response);
+        if (result != null) {
+            response.write(result);
         }
+    }
 
-        switch (tokens.get(0).toUpperCase()){
+    /* Returns the response, or null when it has been written already */
+    private String runCommand(String command, Session session, Writer response) throws IOException {
+        Statement statement;
+        try {
+            statement = parseCommand(command, session);
+        } catch (ParseException e) {
+            return "[ERROR]: " + e.getMessage();
+        }
 
-            /* "USE " [DatabaseName] */
-            case "USE":
-                if (tokens.size() == 3) {
-                    return useDatabase(tokens.get(1));
-                }
-                break;
-
-            /* <Create>          ::=  <CreateDatabase> | <CreateTable>
-               <CreateDatabase>  ::=  "CREATE " "DATABASE " [DatabaseName]
-               <CreateTable>     ::=  "CREATE " "TABLE " [TableName] | "CREATE " "TABLE " [TableName] "(" <AttributeList> ")"
-               [AttributeName] | [AttributeName] "," <AttributeList> */
-            case "CREATE":
-                if (tokens.size() < 4) {
-                    return "[ERROR]: Missing database name or table name.";
-                }
-                //Create DATABASE
-                if (tokens.get(1).equalsIgnoreCase("DATABASE") && tokens.size() == 4) {
-                    return createDatabase(tokens.get(2));
-                }
+        /* "EXECUTE " [StatementName] [" (" <ValueList> ")"], the prepared statement then runs as if it had been sent */
+        if (statement instanceof Statement.Execute) {
+            Statement.Execute execute = (Statement.Execute) statement;
+            PreparedStatement prepared = session.getPreparedStatement(execute.name);
+            if (prepared == null) {
+                return "[ERROR]: Prepared statement " + execute.name + " does not exist.";
+            }
+            if (execute.values.size() != prepared.getParameterCount()) {
+                return "[ERROR]: " + execute.name + " takes " + prepared.getParameterCount() + " values.";
+            }
+            statement = prepared.statement.bind(execute.values);
+        }
 
-                //CREATE TABLE
-                else if (tokens.get(1).equalsIgnoreCase("TABLE")) {
-                    tableName = tokens.get(2);
-                    List<String> columns = handler.extractValuesFromParenthesis(tokens);
-                    return createTable(tableName, columns);
-                }
-                break;
+        if (session.inTransaction() && !statement.isAllowedInTransaction()) {
+            return "[ERROR]: " + statement.kind + " cannot be used inside a transaction, COMMIT or ROLLBACK first.";
+        }
 
-            /* "DROP " "DATABASE " [DatabaseName] | "DROP " "TABLE " [TableName] */
-            case "DROP":
-                if (tokens.size() < 4) {
-                    return "[ERROR]: Missing database name or table name.";
-                }
+        /* Catalog commands do not need the database lock. Schema changes take it exclusively, every other statement
+           shares it and then locks just the tables it changes (see LockManager) */
+        Database database = session.getCurrentDatabase();
+        if (database == null || statement.isCatalogCommand()) {
+            return executeStatement(statement, session, response, StatementLock.NONE);
+        }
+        StatementLock lock = new StatementLock(database.getLockManager(), statement.isSchemaChange());
+        String result;
+        try {
+            if (database.isClosed()) {
+                // the changes of an open transaction can never be applied now
+                session.endTransaction();
+                return "[ERROR]: Database '" + database.getName() + "' has been dropped.";
+            }
+            result = executeStatement(statement, session, response, lock);
+        } finally {
+            lock.release();
+        }
+        database.closeIdleCursors();
+        database.checkpointIfNeeded();
+        return result;
+    }
 
-                if (tokens.get(1).equalsIgnoreCase("DATABASE") && tokens.size() == 4) {
-                    return dropDatabase(tokens.get(2).toLowerCase());
-                } else if (tokens.get(1).equalsIgnoreCase("TABLE") && tokens.size() == 4) {
-                    return dropTable(tokens.get(2).toLowerCase());
+    /* The database lock a statement runs under. A query releases it once it has found its rows, before it writes them:
+       a client reading them slowly would otherwise hold up the schema changes, checkpoints and compactions waiting
+       for the lock exclusively, and every statement queued behind those. The rows are read from the query's
+       snapshot, which needs no lock, and a schema change while they are written is caught (see Table.getSchemaVersion) */
+    private static final class StatementLock {
+        /* for the commands that take no lock */
+        static final StatementLock NONE = new StatementLock(null, false);
+
+        private final LockManager lockManager;
+        private final boolean exclusive;
+        private boolean held;
+
+        StatementLock(LockManager lockManager, boolean exclusive) {
+            this.lockManager = lockManager;
+            this.exclusive = exclusive;
+            if (lockManager != null) {
+                if (exclusive) {
+                    lockManager.lockExclusive();
+                } else {
+                    lockManager.lockShared();
                 }
-                break;
+                held = true;
+            }
+        }
 
+        /* Releasing twice does nothing */
+        void release() {
+            if (!held) {
+                return;
+            }
+            held = false;
+            if (exclusive) {
+                lockManager.unlockExclusive();
+            } else {
+                lockManager.unlockShared();
+            }
+        }
+    }
 
-            /* "INSERT " "INTO " [TableName] " VALUES" "(" <ValueList> ")" */
-            case "INSERT":
-                if (tokens.get(1).equalsIgnoreCase("INTO") && tokens.get(3).equalsIgnoreCase("VALUES") && tokens.size() >= 8) {
-                    tableName = tokens.get(2).toLowerCase();
-                    List<String> values = handler.extractValuesFromParenthesis(tokens);
-                    return insertInto(tableName, values);
-                }
-                break;
-
-            /* "SELECT " <WildAttribList> " FROM " [TableName]
-             | "SELECT " <WildAttribList> " FROM " [TableName] " WHERE " <Condition> */
-            case "SELECT":
-                List<String> columnNames = handler.extractColumnsFromSelect(tokens);
-                if (columnNames.isEmpty()) {
-                    return "[ERROR]: Missing attributes.";
-                }
+    /* The statement of a command, parsed once however often it is sent: a client repeats the same few commands */
+    private Statement parseCommand(String command, Session session) throws ParseException {
+        Statement statement = statementCache.get(command);
+        if (statement != null) {
+            return statement;
+        }
+        Lexer lexer = session.getLexer();
+        lexer.scan(command);
+        if (lexer.size() == 0 || !lexer.is(lexer.size() - 1, ";")) {
+            throw new ParseException("Semi colon missing at end of line", command.length());
+        }
+        statement = new Parser(lexer).parse();
+        if (STATEMENT_CACHE_SIZE > 0) {
+            if (statementCache.size() >= STATEMENT_CACHE_SIZE) {
+                // commands that are never repeated have filled it, start again rather than keep count of every use
+                statementCache.clear();
+            }
+            statementCache.put(command, statement);
+        }
+        return statement;
+    }
 
-                if (tokens.size() >= 5) {
-                    tableName = handler.extractTableNameFromSelect(tokens).toLowerCase();
-                    whereClause = handler.extractWhereClause(tokens);
-                    return selectFrom(tableName, columnNames, whereClause);
+    /* Whether the command has been parsed and kept */
+    boolean isStatementCached(String command) {
+        return statementCache.containsKey(command);
+    }
+
+    /* A statement run while holding one table's lock */
+    private interface TableStatement {
+        String run() throws IOException;
+    }
+
+    /* Run a statement under the read (shared) or write (exclusive) lock of the table it uses.
+       Only writers lock tables, readers see a snapshot instead. A table that does not exist is left for the statement to report */
+    private String lockTable(Session session, String tableName, boolean exclusive, TableStatement statement) throws IOException {
+        Database database = session.getCurrentDatabase();
+        Table table = database != null ? database.getTable(tableName) : null;
+        if (table == null) {
+            return statement.run();
+        }
+        LockManager lockManager = database.getLockManager();
+        long stamp = exclusive ? lockManager.writeLock(table) : lockManager.readLock(table);
+        try {
+            return statement.run();
+        } finally {
+            lockManager.unlock(table, stamp);
+        }
+    }
+
+    /* INSERT, UPDATE and DELETE: kept until COMMIT inside a transaction, committed on their own otherwise.
+       error is what checking the statement against the table found, null when it can be run.
+       A kept change is only checked now, it runs at COMMIT. Until then the session's own SELECTs do not see it,
+       and the WHERE clause of an UPDATE or DELETE matches the rows committed at COMMIT, not the ones seen when it
+       was sent. The changes run in the order they were sent, so each sees the ones before it */
+    private String changeTable(Session session, String tableName, String error, Session.Change change) throws IOException {
+        if (error != null) {
+            return error;
+        }
+        Session.PendingChange pendingChange = new Session.PendingChange(tableName, change);
+        if (session.inTransaction()) {
+            session.addPendingChange(pendingChange);
+            return "[OK]";
+        }
+        return applyChanges(session, List.of(pendingChange));
+    }
+
+    /* Apply changes as one transaction: all of them are committed, or none when one fails.
+       The tables are locked in name order, so two transactions never wait for each other */
+    private String applyChanges(Session session, List<Session.PendingChange> changes) throws IOException {
+        Database database = session.getCurrentDatabase();
+        if (changes.isEmpty()) {
+            return "[OK]";
+        }
+        LockManager lockManager = database.getLockManager();
+        TreeMap<String, Table> tables = new TreeMap<>();
+        for (Session.PendingChange pendingChange : changes) {
+            Table table = database.getTable(pendingChange.tableName);
+            if (table != null) {
+                tables.put(table.getName(), table);
+            }
+        }
+        List<Long> stamps = new ArrayList<>();
+        for (Table table : tables.values()) {
+            stamps.add(lockManager.writeLock(table));
+        }
+        Transaction transaction = database.beginTransaction();
+        boolean appended = false;
+        try {
+            for (Session.PendingChange pendingChange : changes) {
+                String result = pendingChange.change.apply(transaction);
+                if (result.startsWith("[ERROR]")) {
+                    transaction.rollback();
+                    return result;
                 }
-                break;
-
-            /* "UPDATE " [TableName] " SET " <NameValueList> " WHERE " <Condition>  */
-            case "UPDATE":
-                tableName = tokens.get(1).toLowerCase();
-                ArrayList<String> setClause = handler.extractSetClauseFromUpdate(tokens);
-                if (setClause.size() < 3) {
-                    return "[ERROR]: Missing set clause.";
+            }
+            database.appendCommit(transaction);
+            appended = true;
+        } finally {
+            if (!appended) {
+                transaction.rollback();
+            }
+            int i = 0;
+            for (Table table : tables.values()) {
+                lockManager.unlock(table, stamps.get(i++));
+            }
+        }
+        database.awaitCommit(transaction);
+        return "[OK]";
+    }
+
+    /* "COMMIT": a change that cannot be applied any more, e.g. to a table dropped since, rolls the transaction back */
+    private String commitTransaction(Session session) throws IOException {
+        if (!session.inTransaction()) {
+            return "[ERROR]: There is no transaction to commit.";
+        }
+        List<Session.PendingChange> changes = session.endTransaction();
+        if (changes.isEmpty()) {
+            return "[OK]";
+        }
+        String result = applyChanges(session, changes);
+        if (result.startsWith("[ERROR]: ")) {
+            return "[ERROR]: The transaction was rolled back, " + result.substring("[ERROR]: ".length());
+        }
+        return result;
+    }
+
+    private String executeStatement(Statement statement, Session session, Writer response, StatementLock lock) throws IOException {
+        switch (statement.kind) {
+
+            /* "BEGIN" | "COMMIT" | "ROLLBACK" */
+            case BEGIN:
+                if (session.inTransaction()) {
+                    return "[ERROR]: A transaction is already in progress.";
                 }
-                whereClause = handler.extractWhereClause(tokens);
-                if (whereClause.size() < 3) {
-                    return "[ERROR]: Missing where clause.";
+                session.beginTransaction();
+                return "[OK]";
+
+            case COMMIT:
+                return commitTransaction(session);
+
+            /* the changes were never applied, so nothing has to be undone */
+            case ROLLBACK:
+                if (session.endTransaction() == null) {
+                    return "[ERROR]: There is no transaction to roll back.";
                 }
-                return updateTable(tableName, setClause, whereClause);
-
-            /* "DELETE " "FROM " [TableName] " WHERE " <Condition>*/
-            case "DELETE":
-                if (tokens.get(1).equalsIgnoreCase("FROM")) {
-                    tableName = tokens.get(2).toLowerCase();
-                    whereClause = handler.extractWhereClause(tokens);
-                    if (whereClause.size() < 3) {
-                        return "[ERROR]: Missing where clause.";
-                    }
-                    return deleteFrom(tableName, whereClause);
+                return "[OK]";
+
+            case SHOW:
+                return showStats(session);
+
+            case USE:
+                return useDatabase(session, ((Statement.Named) statement).name);
+
+            case CREATE:
+            case DROP:
+                return changeSchema(statement, session);
+
+            case ALTER:
+                Statement.AlterTable alter = (Statement.AlterTable) statement;
+                if (alter.alteration == Keyword.ADD) {
+                    return alterTableAddColumn(session, alter.tableName.toLowerCase(), alter.columnName);
                 }
-                break;
+                return alterTableDropColumn(session, alter.tableName, alter.columnName);
+
+            case INSERT:
+                return insertInto(session, (Statement.Insert) statement);
 
+            case SELECT:
+                return selectFrom(session, (Statement.Select) statement, response, lock);
 
-            /* "JOIN " [TableName] " AND " [TableName] " ON " [AttributeName] " AND " [AttributeName] */
-            case "JOIN":
-                if (tokens.get(2).equalsIgnoreCase("AND") && tokens.get(4).equalsIgnoreCase("ON") && tokens.get(6).equalsIgnoreCase("AND")){
-                    String firstTable = tokens.get(1).toLowerCase();
-                    String secondTable = tokens.get(3).toLowerCase();
-                    String firstAttributeName = tokens.get(5).toLowerCase();
-                    String secondAttributeName = tokens.get(7).toLowerCase();
-                    return joinTables(firstTable, secondTable, firstAttributeName, secondAttributeName);
+            case DECLARE:
+                Statement.Query declare = (Statement.Query) statement;
+                return declareCursor(session, declare.cursorName, declare.select);
+
+            case EXPLAIN:
+                return explainSelect(session, ((Statement.Query) statement).select);
+
+            case FETCH:
+                Statement.Fetch fetch = (Statement.Fetch) statement;
+                return fetchFromCursor(session, fetch.count, fetch.cursorName, response, lock);
+
+            case CLOSE:
+                String cursorName = ((Statement.Named) statement).name;
+                if (session.removeCursor(cursorName) == null) {
+                    return "[ERROR]: Cursor " + cursorName + " does not exist.";
                 }
-                break;
+                return "[OK]";
 
+            case PREPARE:
+                return prepareStatement(session, (Statement.Prepare) statement);
 
-                /* "ALTER " "TABLE " [TableName] " " <AlterationType> " " [AttributeName]
-               <AlterationType>  ::=  "ADD" | "DROP" */
-            case "ALTER":
-                if (tokens.size() != 6) {
-                    return "[ERROR]: Please check the query command.";
+            case DEALLOCATE:
+                String statementName = ((Statement.Named) statement).name;
+                if (session.removePreparedStatement(statementName) == null) {
+                    return "[ERROR]: Prepared statement " + statementName + " does not exist.";
                 }
+                return "[OK]";
+
+            case UPDATE:
+                return updateTable(session, (Statement.Update) statement);
 
-                if (tokens.get(1).equalsIgnoreCase("TABLE") && tokens.get(3).equalsIgnoreCase("ADD")) {
-                    tableName = tokens.get(2).toLowerCase();
-                    String columnName = tokens.get(4);
-                    return alterTableAddColumn(tableName, columnName);
+            case DELETE:
+                return deleteFrom(session, (Statement.Delete) statement);
 
-                } else if (tokens.get(1).equalsIgnoreCase("TABLE") && tokens.get(3).equalsIgnoreCase("DROP")) {
-                    tableName = tokens.get(2);
-                    String columnName = tokens.get(4);
-                    return alterTableDropColumn(tableName, columnName);
+            case COPY:
+                Statement.Copy copy = (Statement.Copy) statement;
+                if (copy.direction == Keyword.FROM) {
+                    return copyFrom(session, copy.tableName.toLowerCase(), copy.fileName);
                 }
-                break;
+                return copyTo(session, copy.tableName.toLowerCase(), copy.fileName);
+
+            case JOIN:
+                Statement.Join join = (Statement.Join) statement;
+                return joinTables(session, join.firstTableName.toLowerCase(), join.secondTableName.toLowerCase(),
+                        join.firstAttribute.toLowerCase(), join.secondAttribute.toLowerCase(), response, lock);
+
+            default:
+                return "[ERROR]: Unrecognized command.";
         }
-        return "[ERROR]: Unrecognized command.";
+    }
+
+    /* CREATE and DROP of a database, a table or an index */
+    private String changeSchema(Statement statement, Session session) throws IOException {
+        boolean create = statement.kind == Keyword.CREATE;
+        if (statement instanceof Statement.DatabaseChange) {
+            String databaseName = ((Statement.DatabaseChange) statement).databaseName;
+            return create ? createDatabase(databaseName) : dropDatabase(databaseName.toLowerCase());
+        }
+        if (statement instanceof Statement.TableChange) {
+            Statement.TableChange change = (Statement.TableChange) statement;
+            return create ? createTable(session, change.tableName, change.columnNames) : dropTable(session, change.tableName.toLowerCase());
+        }
+        Statement.IndexChange change = (Statement.IndexChange) statement;
+        String tableName = change.tableName.toLowerCase();
+        TableStatement indexChange = create
+                ? () -> createIndex(session, tableName, change.columnName, change.indexKind)
+                : () -> dropIndex(session, tableName, change.columnName);
+        return lockTable(session, tableName, true, indexChange);
     }
 
     //  === Methods below handle networking aspects of the project - you will not need to change these ! ===
 
+    /* Every accepted connection is served on its own thread with its own session */
     public void blockingListenOn(int portNumber) throws IOException {
+        ExecutorService connectionThreads = newConnectionExecutor();
         try (ServerSocket s = new ServerSocket(portNumber)) {
             System.out.println("Server listening on port " + portNumber);
             while (!Thread.interrupted()) {
                 try {
-                    blockingHandleConnection(s);
+                    Socket socket = s.accept();
+                    connectionThreads.execute(() -> serveConnection(socket));
                 } catch (IOException e) {
                     System.err.println("Server encountered a non-fatal IO error:");
                     e.printStackTrace();
                     System.err.println("Continuing...");
                 }
             }
+        } finally {
+            connectionThreads.shutdownNow();
+        }
+    }
+
+    /* Hold many mostly idle connections open without a thread each, commands run on a fixed pool of workers */
+    public void nonBlockingListenOn(int portNumber) throws IOException {
+        new NonBlockingListener(this, Runtime.getRuntime().availableProcessors() * 2).listenOn(portNumber);
+    }
+
+    /* A virtual thread per connection where the JVM has them (Java 21), pooled platform threads otherwise */
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void serveConnection(Socket socket) {
+        try {
+            blockingHandleConnection(socket);
+        } catch (IOException e) {
+            System.err.println("Server encountered a non-fatal IO error:");
+            e.printStackTrace();
         }
     }
 
-    private void blockingHandleConnection(ServerSocket serverSocket) throws IOException {
-        try (Socket s = serverSocket.accept();
+    private void blockingHandleConnection(Socket socket) throws IOException {
+        Session session = new Session();
+        try (Socket s = socket;
              BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
              BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()))) {
 
-            System.out.println("Connection established: " + serverSocket.getInetAddress());
+            System.out.println("Connection established: " + s.getInetAddress());
             while (!Thread.interrupted()) {
                 String incomingCommand = reader.readLine();
+                if (incomingCommand == null) {
+                    return; // the client closed the connection
+                }
                 System.out.println("Received message: " + incomingCommand);
-                String result = handleCommand(incomingCommand);
-                writer.write(result);
+                handleCommand(incomingCommand, session, writer);
                 writer.write("\n" + END_OF_TRANSMISSION + "\n");
                 writer.flush();
             }
+        } finally {
+            session.closeCursors();
         }
     }
 
 
+    /* The lock metrics of the current database */
+    public String showStats(Session session) {
+        Database currentDatabase = session.getCurrentDatabase();
+        if (currentDatabase == null) {
+            return "[ERROR]: No database selected.";
+        }
+        LockManager lockManager = currentDatabase.getLockManager();
+        Table stats = new Table("stats", List.of("metric", "value"));
+        stats.insertRow(List.of("lockAcquisitions", Long.toString(lockManager.getAcquisitions())));
+        stats.insertRow(List.of("lockWaits", Long.toString(lockManager.getWaits())));
+        stats.insertRow(List.of("lockWaitMillis", String.format("%.3f", lockManager.getWaitMillis())));
+        // commits sharing one fsync show up as fewer log syncs than commits
+        stats.insertRow(List.of("commits", Long.toString(currentDatabase.getWriteAheadLog().getCommits())));
+        stats.insertRow(List.of("logSyncs", Long.toString(currentDatabase.getWriteAheadLog().getSyncs())));
+        // tables are read on first use and unloaded when idle
+        stats.insertRow(List.of("tables", Integer.toString(currentDatabase.getTableCount())));
+        stats.insertRow(List.of("tablesLoaded", Integer.toString(currentDatabase.getLoadedTableCount())));
+        return "[OK]\n" + stats.returnSelectedRows(stats.getRows(), List.of("metric", "value"));
+    }
+
     public String createDatabase(String databaseName) throws IOException {
         // Check if the database name is valid
         if (reservedWordsDetector.isReservedWord(databaseName)) {
@@ -230,45 +510,47 @@ DBServer {
         if (!databaseName.matches("^[a-zA-Z0-9]+$")) {
             return "[ERROR]: Invalid database name, please obey plaintext rule";
         }
-        // Check if the database is already exist
+        // Check if the database is already exist, creating the folder fails if another session got there first
         Path newDatabasePath = Paths.get(storageFolderPath, databaseName.toLowerCase());
-        if (Files.exists(newDatabasePath)){
+        try {
+            Files.createDirectory(newDatabasePath);
+        } catch (FileAlreadyExistsException e) {
             return "[ERROR]: Database '" + databaseName + "' already exists.";
-        } else {
-            Files.createDirectories(Paths.get(newDatabasePath.toString()));
-            /* Any database/table names provided by the user should be converted into lowercase
-               before saving out to the filesystem */
-            Database newDatabase = new Database(databaseName.toLowerCase());
-            databases.put(databaseName.toLowerCase(), newDatabase);
-            return "[OK]";
         }
+        /* Any database/table names provided by the user should be converted into lowercase
+           before saving out to the filesystem */
+        // a USE of the new folder may have opened it already, a second instance would write the same log
+        databases.computeIfAbsent(databaseName.toLowerCase(), name -> new Database(name, newDatabasePath));
+        return "[OK]";
     }
 
-    public String useDatabase(String databaseName) {
+    public String useDatabase(Session session, String databaseName) {
         Path DatabasePath = Paths.get(storageFolderPath, databaseName.toLowerCase());
         // Check if the database exist
         if (Files.exists(DatabasePath)){
-            currentDatabasePath = DatabasePath;
-            currentDatabase = databases.get(databaseName.toLowerCase());
-
-            /* which means, the DBServer is restarted, thus reload and add to databases */
-            if (currentDatabase == null) {
-                currentDatabase = new Database(databaseName.toLowerCase());
-                databases.put(databaseName.toLowerCase(), currentDatabase);
-                currentDatabase.loadDatabase(databaseName);
-            }
-
+            /* not opened yet means the DBServer is restarted, thus reload and add to databases,
+               only once even when several sessions USE the database at the same time */
+            Database database = databases.computeIfAbsent(databaseName.toLowerCase(), name -> {
+                Database loadedDatabase = new Database(name, DatabasePath);
+                loadedDatabase.loadDatabase();
+                return loadedDatabase;
+            });
+            session.useDatabase(database, DatabasePath);
             return "[OK]";
         } else {
             return "[ERROR]: Database '" + databaseName + "' does not exist.";
         }
     }
 
-    private Path getTablePath(String tableName) {
-        return currentDatabasePath.resolve(tableName.toLowerCase() + ".tab");
+    private Path getTablePath(Session session, String tableName) {
+        return session.getCurrentDatabasePath().resolve(tableName.toLowerCase() + Database.TABLE_FORMAT_EXTENSION);
     }
 
-    public String createTable(String tableName, List<String> columnNames) throws IOException {
+    public String createTable(Session session, String tableName, List<String> columnNames) throws IOException {
+        Database currentDatabase = session.getCurrentDatabase();
+        if (currentDatabase == null) {
+            return "[ERROR]: No database selected.";
+        }
         // Check the table name is valid
         if (reservedWordsDetector.isReservedWord(tableName)) {
             return "[ERROR]: Invalid database name, using reserved word";
@@ -278,9 +560,9 @@ DBServer {
             return "[ERROR]: Invalid table name, please obey plaintext rule";
         }
 
-        Path tablePath = getTablePath(tableName.toLowerCase());
+        Path tablePath = getTablePath(session, tableName.toLowerCase());
         // Check if the table has already exist
-        if (Files.exists(tablePath)) {
+        if (currentDatabase.hasTable(tableName) || Files.exists(tablePath)) {
             return "[ERROR]: Table '" + tableName + "' already exists.";
         }
         /* Any database/table names provided by the user should be
@@ -292,7 +574,8 @@ DBServer {
         Table table = new Table(tableName.toLowerCase(), columnNames);
         table.tablePath = tablePath;
         currentDatabase.addTable(table);
-        table.updateTableFile();
+        // written with the catalog that lists it
+        currentDatabase.checkpointSchemaChange(table);
         return "[OK]";
     }
 
@@ -305,24 +588,53 @@ DBServer {
         return uniqueNames.size() == columnNames.size();
     }
 
-    public String insertInto(String tableName, List<String> values) throws IOException {
+    /* "INSERT " "INTO " [TableName] " VALUES" <Tuple> {"," <Tuple>}
+       Every tuple is checked before any is inserted, then they go in as one change: one log record each,
+       and one commit for them all. The rows are counted when there is more than one, as inserted once they are,
+       or as queued inside a transaction, which only inserts them at COMMIT (see changeTable) */
+    private String insertInto(Session session, Statement.Insert insert) throws IOException {
+        String tableName = insert.tableName.toLowerCase();
+        List<List<String>> tuples = insert.getTuples();
+        boolean queued = session.inTransaction();
+        String result = changeTable(session, tableName, checkInsert(session, tableName, tuples), transaction -> insertInto(session, tableName, tuples, transaction));
+        if (tuples.size() > 1 && result.equals("[OK]")) {
+            return "[OK]\n" + tuples.size() + (queued ? " rows queued until COMMIT." : " rows inserted.");
+        }
+        return result;
+    }
+
+    public String insertInto(Session session, String tableName, List<List<String>> tuples, Transaction transaction) {
+        String error = checkInsert(session, tableName, tuples);
+        if (error != null) {
+            return error;
+        }
+        Table table = session.getCurrentDatabase().getTable(tableName);
+        for (Row row : table.insertRows(tuples, transaction)) {
+            transaction.logInsert(table, row);
+        }
+        return "[OK]";
+    }
+
+    /* The error an INSERT would fail with, null when it can be run */
+    private String checkInsert(Session session, String tableName, List<List<String>> tuples) {
+        Database currentDatabase = session.getCurrentDatabase();
         if (currentDatabase != null) {
             Table table = currentDatabase.getTable(tableName);
 
             if (table != null){
-                // The handler will return an empty arraylist if using reserved words
-                if (values.isEmpty()) {
-                    return "[ERROR]: Using reserved words.";
-                }
+                for (List<String> values : tuples) {
+                    for (String value : values) {
+                        if (reservedWordsDetector.isReservedWord(value)) {
+                            return "[ERROR]: Using reserved words.";
+                        }
+                    }
 
-                // table.getColumnNames().size() contains "id"
-                if (table.getColumnNames().size() - 1 < values.size() || table.getColumnNames().size() - 1 > values.size()) {
-                    return "[ERROR]: trying to insert too many (or too few) values into a table entry.";
-                } else {
-                    table.insertRow(values);
-                    table.updateTableFile();
-                    return "[OK]";
+                    // table.getColumnNames().size() contains "id"
+                    if (table.getColumnNames().size() - 1 != values.size()) {
+                        return "[ERROR]: trying to insert too many (or too few) values into a table entry.";
+                    }
                 }
+                return null;
             } else {
                 return "[ERROR]: Table '" + tableName + "' not exists.";
             }
@@ -331,36 +643,213 @@ DBServer {
         }
     }
 
-    public String selectFrom(String tableName, List<String> queryColumnNames, ArrayList<String> whereClause) {
+    /* Keep the parsed statement in the session, EXECUTE binds it to its values */
+    public String prepareStatement(Session session, Statement.Prepare prepare) {
+        if (!session.addPreparedStatement(new PreparedStatement(prepare.name, prepare.statement, prepare.parameterCount))) {
+            return "[ERROR]: Prepared statement " + prepare.name + " already exists.";
+        }
+        return "[OK]";
+    }
+
+    /* The error a SELECT on the table would fail with, null when it can be run */
+    private String checkQuery(Table table, Statement.Select select) {
+        if (select.isAggregate()) {
+            return checkAggregate(table, select);
+        }
+        if (selectedColumns(table, select.columnNames) == null) {
+            return "[ERROR]: Attribute does not exist ";
+        }
+        if (select.orderColumn != null && table.getColumnIndex(select.orderColumn) == -1) {
+            return "[ERROR]: Attribute " + select.orderColumn + " does not exist.";
+        }
+        return null;
+    }
+
+    /* With GROUP BY every attribute listed must be the grouped one, without it only functions can be listed.
+       SUM and AVG need numbers, and the groups can only be ordered by their value */
+    private String checkAggregate(Table table, Statement.Select select) {
+        if (select.aggregates.isEmpty()) {
+            return "[ERROR]: SELECT * cannot be grouped, list the grouped attribute and the aggregate functions.";
+        }
+        if (select.groupColumn != null && table.getColumnIndex(select.groupColumn) == -1) {
+            return "[ERROR]: Attribute " + select.groupColumn + " does not exist.";
+        }
+        for (Statement.Aggregate item : select.aggregates) {
+            if (item.columnName == null) {
+                continue;
+            }
+            int ordinal = table.getColumnIndex(item.columnName);
+            if (ordinal == -1) {
+                return "[ERROR]: Attribute " + item.columnName + " does not exist.";
+            }
+            if (item.function == null && (select.groupColumn == null || !item.columnName.equalsIgnoreCase(select.groupColumn))) {
+                return "[ERROR]: Attribute " + item.columnName + " is neither grouped by nor in an aggregate function.";
+            }
+            ColumnType type = table.columns.get(ordinal).getType();
+            if ((item.function == Keyword.SUM || item.function == Keyword.AVG) && type != ColumnType.NONE && !type.isNumeric()) {
+                return "[ERROR]: " + item.function + " needs a numeric attribute, " + item.columnName + " is not.";
+            }
+        }
+        if (select.orderColumn != null && (select.groupColumn == null || !select.orderColumn.equalsIgnoreCase(select.groupColumn))) {
+            return "[ERROR]: An aggregate query can only be ordered by its GROUP BY attribute.";
+        }
+        return null;
+    }
+
+    /* The names a query's result is printed under: the columns it selects, or the items of an aggregate query */
+    private List<String> resultColumns(Table table, Statement.Select select) {
+        if (!select.isAggregate()) {
+            return selectedColumns(table, select.columnNames);
+        }
+        List<String> names = new ArrayList<>();
+        for (Statement.Aggregate item : select.aggregates) {
+            names.add(item.toString());
+        }
+        return names;
+    }
+
+    /* Writes the rows to response and returns null, or returns the error. Without ORDER BY, or with an ordered index
+       on its attribute, the rows are read from the scan as they are written, and it stops once it has found
+       offset + limit rows. The database lock is released before the first row is written */
+    private String selectFrom(Session session, Statement.Select select, Writer response, StatementLock lock) throws IOException {
+        Database currentDatabase = session.getCurrentDatabase();
         if (currentDatabase != null){
-            Table table = currentDatabase.getTable(tableName);
+            Table table = currentDatabase.getTable(select.tableName);
             if (table != null) {
-                List<Row> rowsToPrint;
-
-                if (!whereClause.isEmpty()) {
-                    rowsToPrint = table.selectRowsWithCondition(whereClause);
-                } else {
-                    rowsToPrint = table.getRows(); // If there is no where clause, select all rows
+                String error = checkQuery(table, select);
+                if (error != null) {
+                    return error;
                 }
+                QueryPlan plan = new QueryPlan(table, select, resultColumns(table, select));
+                if (select.isAggregate()) {
+                    return aggregateFrom(currentDatabase, plan, response, lock);
+                }
+                int schemaVersion = table.getSchemaVersion();
+                int[] ordinals = table.getColumnOrdinals(plan.getSelectedColumns());
 
-                if (queryColumnNames.contains("*")) {
-                    //Print all columns for the selected rows
-                    return "[OK]" + "\n" + table.returnSelectedRows(rowsToPrint, table.getColumnNames());
-                } else { // Check the query column name is valid
-                    if (!queryColumnCheck(table, queryColumnNames)) {
-                        return "[ERROR]: Attribute does not exist ";
-                    }
-                    //Print only specified columns for the selected rows
-                    return "[OK]" + "\n" + table.returnSelectedRows(rowsToPrint, queryColumnNames);
+                // The rows as they were committed when the statement started, writers carry on meanwhile
+                long snapshot = currentDatabase.beginSnapshot();
+                try {
+                    Table.RowScan rows = plan.scan(snapshot);
+                    // the snapshot keeps every version the scan has yet to read
+                    lock.release();
+                    response.write("[OK]\n");
+                    ResultWriter resultWriter = new ResultWriter(response);
+                    resultWriter.writeColumnNames(plan.getSelectedColumns());
+                    resultWriter.writeRows(table, schemaVersion, rows, ordinals, plan.getLimit());
+                } finally {
+                    currentDatabase.endSnapshot(snapshot);
                 }
+                return null;
             } else {
-                return "[ERROR]: Table '" + tableName + "' does not exist.";
+                return "[ERROR]: Table '" + select.tableName.toLowerCase() + "' does not exist.";
             }
         } else {
             return "[ERROR]: No database selected.";
         }
     }
 
+    /* An aggregate query writes a row per group, see HashAggregate */
+    private String aggregateFrom(Database currentDatabase, QueryPlan plan, Writer response, StatementLock lock) throws IOException {
+        List<List<String>> results;
+        long snapshot = currentDatabase.beginSnapshot();
+        try {
+            results = plan.aggregate(snapshot);
+        } finally {
+            currentDatabase.endSnapshot(snapshot);
+        }
+        lock.release();
+        response.write("[OK]\n");
+        ResultWriter resultWriter = new ResultWriter(response);
+        resultWriter.writeColumnNames(plan.getSelectedColumns());
+        for (List<String> values : results) {
+            for (String value : values) {
+                resultWriter.writeValue(value);
+            }
+            resultWriter.endRow();
+        }
+        return null;
+    }
+
+    /* "EXPLAIN " <Select>: how the query would find, filter, order and cut its rows, without reading them */
+    public String explainSelect(Session session, Statement.Select select) {
+        Database currentDatabase = session.getCurrentDatabase();
+        if (currentDatabase == null) {
+            return "[ERROR]: No database selected.";
+        }
+        Table table = currentDatabase.getTable(select.tableName);
+        if (table == null) {
+            return "[ERROR]: Table '" + select.tableName.toLowerCase() + "' does not exist.";
+        }
+        String error = checkQuery(table, select);
+        if (error != null) {
+            return error;
+        }
+        QueryPlan plan = new QueryPlan(table, select, resultColumns(table, select));
+        Table steps;
+        long snapshot = currentDatabase.beginSnapshot();
+        try {
+            steps = plan.explain(snapshot);
+        } finally {
+            currentDatabase.endSnapshot(snapshot);
+        }
+        return "[OK]\n" + steps.returnSelectedRows(steps.getRows(), List.of("step", "detail"));
+    }
+
+    /* Run the query as far as its scan and keep it in the session. The cursor holds its snapshot until CLOSE */
+    public String declareCursor(Session session, String cursorName, Statement.Select select) {
+        Database currentDatabase = session.getCurrentDatabase();
+        if (currentDatabase == null) {
+            return "[ERROR]: No database selected.";
+        }
+        if (session.getCursor(cursorName) != null) {
+            return "[ERROR]: Cursor " + cursorName + " already exists.";
+        }
+        Table table = currentDatabase.getTable(select.tableName);
+        if (table == null) {
+            return "[ERROR]: Table '" + select.tableName.toLowerCase() + "' does not exist.";
+        }
+        String error = checkQuery(table, select);
+        if (error != null) {
+            return error;
+        }
+        if (select.isAggregate()) {
+            return "[ERROR]: A cursor cannot be declared for an aggregate query, its groups are only known once every row is read.";
+        }
+        QueryPlan plan = new QueryPlan(table, select, resultColumns(table, select));
+        long snapshot = currentDatabase.beginSnapshot();
+        Cursor cursor = new Cursor(cursorName, currentDatabase, table, plan.getSelectedColumns(), plan.scan(snapshot), snapshot, plan.getLimit(), session.getCursorIdleMillis());
+        currentDatabase.addCursor(cursor);
+        if (!session.addCursor(cursor)) {
+            cursor.close();
+            return "[ERROR]: Too many open cursors, CLOSE one first.";
+        }
+        return "[OK]";
+    }
+
+    private String fetchFromCursor(Session session, int rowCount, String cursorName, Writer response, StatementLock lock) throws IOException {
+        Cursor cursor = session.getCursor(cursorName);
+        if (cursor == null) {
+            return "[ERROR]: Cursor " + cursorName + " does not exist.";
+        }
+        // the cursor reads its snapshot and checks the table's columns itself
+        lock.release();
+        return cursor.fetch(rowCount, response);
+    }
+
+    /* The columns a query prints: every column for "*" (no names), otherwise the requested ones the table has,
+       null when it has none of them */
+    private List<String> selectedColumns(Table table, List<String> queryColumnNames) {
+        if (queryColumnNames.isEmpty()) {
+            return table.getColumnNames();
+        }
+        // Check the query column name is valid
+        if (!queryColumnCheck(table, queryColumnNames)) {
+            return null;
+        }
+        return queryColumnNames;
+    }
+
     private boolean queryColumnCheck(Table table, List<String> queryColumnNames) {
         List<String> tableColumnNames = new ArrayList<>();
         for (String columnName : table.getColumnNames()) {
@@ -375,13 +864,30 @@ DBServer {
         return false;
     }
 
-    public String deleteFrom(String tableName, ArrayList<String> whereClause) throws IOException {
+    /* "DELETE " "FROM " [TableName] " WHERE " <Condition> */
+    private String deleteFrom(Session session, Statement.Delete delete) throws IOException {
+        String tableName = delete.tableName.toLowerCase();
+        return changeTable(session, tableName, checkDelete(session, tableName), transaction -> deleteFrom(session, tableName, delete.conditions, transaction));
+    }
+
+    public String deleteFrom(Session session, String tableName, LogicalExpression conditions, Transaction transaction) {
+        String error = checkDelete(session, tableName);
+        if (error != null) {
+            return error;
+        }
+        Table table = session.getCurrentDatabase().getTable(tableName);
+        for (Row row : table.deleteRowsWithCondition(conditions, transaction)) {
+            transaction.logDelete(table, row);
+        }
+        return "[OK]";
+    }
+
+    private String checkDelete(Session session, String tableName) {
+        Database currentDatabase = session.getCurrentDatabase();
         if (currentDatabase != null) {
             Table table = currentDatabase.getTable(tableName);
             if (table != null) {
-                table.deleteRowsWithCondition(whereClause);
-                table.updateTableFile();
-                return "[OK]";
+                return null;
             } else {
                 return "[ERROR]: Table '" + tableName + "' does not exist in the current database.";
             }
@@ -392,10 +898,17 @@ DBServer {
 
     public String dropDatabase(String databaseName) throws IOException {
         Path databasePath = Paths.get(storageFolderPath, databaseName);
-        if (databases.containsKey(databaseName)) {
-            deleteDirectoryRecursively(databasePath); // Recursively delete all files and the directory
-            databases.get(databaseName).tables.clear(); // remove tables in the database
-            databases.remove(databaseName); // remove database from data structure
+        Database database = databases.remove(databaseName); // remove database from data structure
+        if (database != null) {
+            // wait for the statements other sessions are running on it
+            database.getLockManager().lockExclusive();
+            try {
+                database.close(); // stop writing to the database's log
+                deleteDirectoryRecursively(databasePath); // Recursively delete all files and the directory
+                database.tables.clear(); // remove tables in the database
+            } finally {
+                database.getLockManager().unlockExclusive();
+            }
             return "[OK]";
         } else {
             return "[ERROR]: Database " + databaseName + " does not exist.";
@@ -413,9 +926,12 @@ DBServer {
         Files.deleteIfExists(path); // Delete the directory (now empty) or the file
     }
 
-    public String dropTable(String tableName) {
-        if (this.currentDatabase != null) {
+    public String dropTable(Session session, String tableName) throws IOException {
+        Database currentDatabase = session.getCurrentDatabase();
+        if (currentDatabase != null) {
             if (currentDatabase.getTable(tableName) != null) {
+                /* Fold the log first, so none of its records can be replayed into a later table of the same name */
+                currentDatabase.checkpoint();
                 // Delete table's file
                 currentDatabase.getTable(tableName).deleteTableFile();
                 // Delete table in the data structure
@@ -429,17 +945,41 @@ DBServer {
         }
     }
 
-    public String updateTable(String tableName, ArrayList<String> setClause, ArrayList<String> whereClause) throws IOException {
+    /* "UPDATE " [TableName] " SET " <NameValueList> " WHERE " <Condition> */
+    private String updateTable(Session session, Statement.Update update) throws IOException {
+        String tableName = update.tableName.toLowerCase();
+        List<String> values = update.getValues();
+        return changeTable(session, tableName, checkUpdate(session, tableName, update.columnNames),
+                transaction -> updateTable(session, tableName, update.columnNames, values, update.conditions, transaction));
+    }
+
+    public String updateTable(Session session, String tableName, List<String> columnNames, List<String> values, LogicalExpression conditions, Transaction transaction) {
+        String error = checkUpdate(session, tableName, columnNames);
+        if (error != null) {
+            return error;
+        }
+        Table table = session.getCurrentDatabase().getTable(tableName);
+        for (Row row : table.updateRowsWithCondition(columnNames, values, conditions, transaction)) {
+            transaction.logUpdate(table, row);
+        }
+        return "[OK]";
+    }
+
+    private String checkUpdate(Session session, String tableName, List<String> columnNames) {
+        Database currentDatabase = session.getCurrentDatabase();
         if (currentDatabase != null) {
             Table table = currentDatabase.getTable(tableName);
             if (table != null) {
-                // User are not allowed to set the id
-                if (setClause.get(0).equalsIgnoreCase("id")) {
-                    return "[ERROR]: changing (updating) the ID of a record is not allowed.";
+                for (String columnName : columnNames) {
+                    // User are not allowed to set the id
+                    if (columnName.equalsIgnoreCase("id")) {
+                        return "[ERROR]: changing (updating) the ID of a record is not allowed.";
+                    }
+                    if (table.getColumnIndex(columnName) == -1) {
+                        return "[ERROR]: Attribute " + columnName + " does not exist.";
+                    }
                 }
-                table.updateRowsWithCondition(setClause, whereClause);
-                table.updateTableFile();
-                return "[OK]";
+                return null;
             } else {
                 return "[ERROR]: Table '" + tableName + "' does not exist in the current database.";
             }
@@ -448,7 +988,8 @@ DBServer {
         }
     }
 
-    public String alterTableAddColumn(String tableName, String columnName) throws IOException {
+    public String alterTableAddColumn(Session session, String tableName, String columnName) throws IOException {
+        Database currentDatabase = session.getCurrentDatabase();
         if (currentDatabase != null) {
             Table table = currentDatabase.getTable(tableName);
             if (table != null) {
@@ -467,7 +1008,7 @@ DBServer {
                     }
                 }
                 table.addColumn(columnName);
-                table.updateTableFile();
+                currentDatabase.checkpointSchemaChange(table);
                 return "[OK]";
             } else {
                 return "[ERROR]: Table '" + tableName + "' does not exist in the current database.";
@@ -477,7 +1018,8 @@ DBServer {
         }
     }
 
-    public String alterTableDropColumn(String tableName, String queryColumnName) throws IOException {
+    public String alterTableDropColumn(Session session, String tableName, String queryColumnName) throws IOException {
+        Database currentDatabase = session.getCurrentDatabase();
         if (currentDatabase != null) {
             Table table = currentDatabase.getTable(tableName);
             if (table != null) {
@@ -497,7 +1039,8 @@ DBServer {
                 /* If a matching column name was found, drop the column */
                 if (exactColumnName != null) {
                     table.dropColumn(exactColumnName); // Use the exact case-sensitive name found
-                    table.updateTableFile();
+                    table.updateIndexFile(); // an index on the dropped column goes with it
+                    currentDatabase.checkpointSchemaChange(table);
                     return "[OK]";
                 } else {
                     // If no matching column name was found, return an error
@@ -511,65 +1054,217 @@ DBServer {
         }
     }
 
-    public String joinTables(String firstTableName, String secondTableName, String firstAttribute, String secondAttribute) throws IOException {
+    public String createIndex(Session session, String tableName, String columnName, String kind) throws IOException {
+        Database currentDatabase = session.getCurrentDatabase();
+        if (currentDatabase != null) {
+            Table table = currentDatabase.getTable(tableName);
+            if (table != null) {
+                if (!kind.equals(HashIndex.KIND) && !kind.equals(OrderedIndex.KIND)) {
+                    return "[ERROR]: Unknown index type " + kind + ", use HASH or BTREE.";
+                }
+                if (table.getColumnIndex(columnName) == -1) {
+                    return "[ERROR]: Column '" + columnName + "' does not exist.";
+                }
+                if (table.getIndex(columnName) != null) {
+                    return "[ERROR]: Column '" + columnName + "' is already indexed.";
+                }
+                table.createIndex(columnName, kind);
+                table.updateIndexFile();
+                return "[OK]";
+            } else {
+                return "[ERROR]: Table '" + tableName + "' does not exist in the current database.";
+            }
+        } else {
+            return "[ERROR]: No current database is selected.";
+        }
+    }
+
+    public String dropIndex(Session session, String tableName, String columnName) throws IOException {
+        Database currentDatabase = session.getCurrentDatabase();
+        if (currentDatabase != null) {
+            Table table = currentDatabase.getTable(tableName);
+            if (table != null) {
+                if (table.getIndex(columnName) == null) {
+                    return "[ERROR]: There is no index on column '" + columnName + "'.";
+                }
+                table.dropIndex(columnName);
+                table.updateIndexFile();
+                return "[OK]";
+            } else {
+                return "[ERROR]: Table '" + tableName + "' does not exist in the current database.";
+            }
+        } else {
+            return "[ERROR]: No current database is selected.";
+        }
+    }
+
+    /* Load a file of rows into the table (see DelimitedFile). Nothing is added unless the whole file can be read.
+       The rows bypass the log: they are committed together and the table file is written once, with the database
+       locked exclusively all the while */
+    public String copyFrom(Session session, String tableName, String fileName) throws IOException {
+        Database currentDatabase = session.getCurrentDatabase();
+        if (currentDatabase == null) {
+            return "[ERROR]: No database selected.";
+        }
+        Table table = currentDatabase.getTable(tableName);
+        if (table == null) {
+            return "[ERROR]: Table '" + tableName + "' does not exist in the current database.";
+        }
+        Path filePath = copyFilePath(session, fileName);
+        if (filePath == null) {
+            return "[ERROR]: The file " + fileName + " is not in the copy directory.";
+        }
+        if (!Files.isReadable(filePath)) {
+            return "[ERROR]: Cannot read the file " + fileName + ".";
+        }
+        List<TableLoader.Chunk> chunks;
+        try {
+            chunks = new DelimitedFile(filePath).read(table);
+        } catch (IOException e) {
+            return "[ERROR]: " + e.getMessage();
+        }
+        Transaction transaction = currentDatabase.beginTransaction();
+        List<Row> copiedRows = table.appendCopiedRows(chunks, transaction);
+        currentDatabase.commitCopy(table, transaction);
+        return "[OK]\n" + copiedRows.size() + " rows copied.";
+    }
+
+    /* Write the table's rows to a file as a snapshot sees them, a row at a time */
+    public String copyTo(Session session, String tableName, String fileName) throws IOException {
+        Database currentDatabase = session.getCurrentDatabase();
+        if (currentDatabase == null) {
+            return "[ERROR]: No database selected.";
+        }
+        Table table = currentDatabase.getTable(tableName);
+        if (table == null) {
+            return "[ERROR]: Table '" + tableName + "' does not exist in the current database.";
+        }
+        Path filePath = copyFilePath(session, fileName);
+        if (filePath == null) {
+            return "[ERROR]: The file " + fileName + " is not in the copy directory.";
+        }
+        List<String> columnNames = table.getColumnNames();
+        int[] ordinals = new int[columnNames.size()];
+        for (int ordinal = 0; ordinal < ordinals.length; ordinal++) {
+            ordinals[ordinal] = ordinal;
+        }
+        int count;
+        long snapshot = currentDatabase.beginSnapshot();
+        try {
+            Table.RowScan rows = table.scanRows(new LogicalExpression("AND"), null, false, snapshot);
+            count = new DelimitedFile(filePath).write(columnNames, rows, ordinals);
+        } catch (IOException e) {
+            return "[ERROR]: Cannot write the file " + fileName + ", " + e.getMessage();
+        } finally {
+            currentDatabase.endSnapshot(snapshot);
+        }
+        return "[OK]\n" + count + " rows copied.";
+    }
+
+    /* The file a COPY names, relative to the copy directory (see COPY_DIRECTORY), which is created when missing.
+       A client must not reach the server's other files, so an absolute name, or one that leads out of the directory
+       once ".." is resolved, gives null */
+    private Path copyFilePath(Session session, String fileName) throws IOException {
+        Path directory = COPY_DIRECTORY != null ? Paths.get(COPY_DIRECTORY) : session.getCurrentDatabasePath().resolve("copy");
+        directory = directory.toAbsolutePath().normalize();
+        Path name;
+        try {
+            name = Paths.get(fileName);
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        Path filePath = directory.resolve(name).normalize();
+        if (name.isAbsolute() || !filePath.startsWith(directory) || filePath.equals(directory)) {
+            return null;
+        }
+        Files.createDirectories(directory);
+        return filePath;
+    }
+
+    /* Writes the joined rows to response and returns null, or returns the error. The rows come in the order of
+       the first table, and the second table's for each of them, unless the first table is the smaller one: it is
+       then the one hashed, and the rows follow the second table (see HashJoin) */
+    private String joinTables(Session session, String firstTableName, String secondTableName, String firstAttribute, String secondAttribute,
+                              Writer response, StatementLock lock) throws IOException {
+        Database currentDatabase = session.getCurrentDatabase();
         if (currentDatabase != null) {
             Table firstTable = currentDatabase.getTable(firstTableName);
             Table secondTable = currentDatabase.getTable(secondTableName);
+            if (firstTable == null || secondTable == null) {
+                String missingTable = firstTable == null ? firstTableName : secondTableName;
+                return "[ERROR]: Table '" + missingTable + "' does not exist in the current database.";
+            }
             if(!(checkOrder(firstTable, firstAttribute) && checkOrder(secondTable, secondAttribute))) {
                 return "[ERROR]: The ordering of the specified tables should be the same as the ordering of the specified attributes";
             }
 
-            List<String> firstColumnNames = firstTable.getColumnNames();
-            /* discard the ids from the original tables */
-            firstColumnNames.remove("id");
-            /* discard the columns that the tables were matched on */
-            firstColumnNames.remove(firstAttribute);
-
-            List<String> secondColumnNames = secondTable.getColumnNames();
-            secondColumnNames.remove("id");
-            secondColumnNames.remove(secondAttribute);
+            /* resolve every column used by the join to its ordinal once, see Table.getSchemaVersion */
+            int firstSchemaVersion = firstTable.getSchemaVersion();
+            int secondSchemaVersion = secondTable.getSchemaVersion();
+            int firstKey = firstTable.getColumnIndex(firstAttribute);
+            int secondKey = secondTable.getColumnIndex(secondAttribute);
+            /* discard the ids from the original tables and the columns that the tables were matched on */
+            int[] firstOrdinals = joinedOrdinals(firstTable, firstKey);
+            int[] secondOrdinals = joinedOrdinals(secondTable, secondKey);
 
             List<String> columnNames = new ArrayList<>();
             columnNames.add("id");
-            for (String firstColumnName : firstColumnNames){
+            for (int firstColumn : firstOrdinals) {
                 /* attribute names in the form OriginalTableName.AttributeName  */
-                columnNames.add(firstTableName + "." + firstColumnName);
+                columnNames.add(firstTableName + "." + firstTable.columns.get(firstColumn).getName());
             }
-            for (String secondColumnName : secondColumnNames){
-                columnNames.add(secondTableName + "." + secondColumnName);
+            for (int secondColumn : secondOrdinals) {
+                columnNames.add(secondTableName + "." + secondTable.columns.get(secondColumn).getName());
             }
 
-            Table joinTable = new Table("joinTable", columnNames);
-
-            int rowSize = firstTable.nextRowId - 1;
-
-            for (int i = 0; i < rowSize; i++) {
-                List<String> rowValues = new ArrayList<>();
-                /* create a new unique id for each of row of the table produced */
-                rowValues.add(Integer.toString(joinTable.nextRowId));
-                /* First Table's row value keeps the same */
-                for (String firstColumn : firstColumnNames) {
-                    rowValues.add(firstTable.rows.get(i).getValue(firstColumn));
+            /* a number or boolean column matched against a text column has to be compared as text */
+            boolean compareAsText = firstTable.columns.get(firstKey).getType() != secondTable.columns.get(secondKey).getType();
+            long snapshot = currentDatabase.beginSnapshot();
+            try {
+                HashJoin matches = new HashJoin(firstTable, firstKey, secondTable, secondKey, compareAsText, snapshot);
+
+                /* one row for every matching pair, with a new unique id for each row produced, written as it is made.
+                   The snapshot keeps every version the join has yet to read */
+                lock.release();
+                response.write("[OK]\n");
+                ResultWriter resultWriter = new ResultWriter(response);
+                resultWriter.writeColumnNames(columnNames);
+                int id = 1;
+                while (matches.hasNext()) {
+                    Row[] match = matches.next();
+                    Object[] firstValues = match[0].getValues();
+                    Object[] secondValues = match[1].getValues();
+                    firstTable.checkSchemaVersion(firstSchemaVersion);
+                    secondTable.checkSchemaVersion(secondSchemaVersion);
+                    resultWriter.writeValue(Integer.toString(id++));
+                    resultWriter.writeValues(firstValues, firstOrdinals);
+                    resultWriter.writeValues(secondValues, secondOrdinals);
+                    resultWriter.endRow();
                 }
-                /* According to foreign key, find the row */
-                for (Row secondTableRow : secondTable.getRows())
-                    if (firstTable.rows.get(i).getValue(firstAttribute).equals(secondTableRow.getValue(secondAttribute))) {
-                        for (String secondColumn : secondColumnNames) {
-                            rowValues.add(secondTableRow.getValue(secondColumn));
-                        }
-
-                    }
-                joinTable.insertRow(rowValues);
+            } finally {
+                currentDatabase.endSnapshot(snapshot);
             }
-            return "[OK]\n" + joinTable.returnSelectedRows(joinTable.getRows(), columnNames);
+            return null;
 
         } else {
             return "[ERROR]: No current database is selected.";
         }
     }
 
+    /* The ordinals of a table's columns that appear in a join result: all but the id and the join column */
+    private int[] joinedOrdinals(Table table, int joinKey) {
+        int[] ordinals = new int[table.columns.size() - (joinKey == 0 ? 1 : 2)];
+        int position = 0;
+        for (int ordinal = 1; ordinal < table.columns.size(); ordinal++) {
+            if (ordinal != joinKey) {
+                ordinals[position++] = ordinal;
+            }
+        }
+        return ordinals;
+    }
+
     private boolean checkOrder(Table table, String attribute) {
-        if (!table.getColumnNames().contains(attribute)){
+        if (table.getColumnIndex(attribute) == -1){
             return false;
         } else {
             return true;
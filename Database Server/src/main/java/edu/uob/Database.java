@@ -1,71 +1,396 @@
 package edu.uob;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.nio.file.Paths;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 public class Database {
+    /* Fraction of deleted rows above which a table is compacted, "-Dedu.uob.compactionThreshold=0.3" changes it */
+    public static final double DEFAULT_COMPACTION_THRESHOLD = Double.parseDouble(System.getProperty("edu.uob.compactionThreshold", "0.5"));
+    /* The format tables are written in: PagedTableFile, or TextTableFile with "-Dedu.uob.tableFormat=text" */
+    public static final String TABLE_FORMAT_EXTENSION = "text".equalsIgnoreCase(System.getProperty("edu.uob.tableFormat"))
+            ? TextTableFile.EXTENSION : PagedTableFile.EXTENSION;
+    /* How long a table can go unused before a checkpoint unloads it, "-Dedu.uob.tableIdleSeconds=60" changes it */
+    public static final long DEFAULT_TABLE_IDLE_MILLIS = 1000 * Long.parseLong(System.getProperty("edu.uob.tableIdleSeconds", "600"));
+    /* One background thread compacts the tables of every database */
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "table-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private String name;
-    public HashMap<String, Table> tables;
+    private Path databasePath;
+    /* the tables read into memory so far, the catalog lists them all */
+    public ConcurrentHashMap<String, Table> tables;
+    private Catalog catalog;
+    private WriteAheadLog writeAheadLog;
+    /* Tables with changes that are only in the log so far */
+    private Set<Table> dirtyTables;
+    private LockManager lockManager;
+    /* snapshots of readers and commit stamps of writers, see Row */
+    private VersionClock versionClock;
+    /* transactions in the log that are waiting for the disk, in log order */
+    private final ArrayDeque<Transaction> commitQueue = new ArrayDeque<>();
+    private double compactionThreshold;
+    private long tableIdleMillis;
+    /* the cursors of every session on this database, each holds a snapshot open */
+    private final Set<Cursor> openCursors = ConcurrentHashMap.newKeySet();
+    /* the time in nanoseconds that cursors go idle by, System.nanoTime unless a test moves it on itself */
+    private volatile LongSupplier cursorClock = System::nanoTime;
+    private volatile boolean closed;
 
-    public Database(String name){
+    public Database(String name, Path databasePath){
         this.name = name;
-        tables = new HashMap<>();
+        this.databasePath = databasePath;
+        tables = new ConcurrentHashMap<>();
+        writeAheadLog = new WriteAheadLog(databasePath);
+        dirtyTables = ConcurrentHashMap.newKeySet();
+        lockManager = new LockManager();
+        versionClock = new VersionClock();
+        compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+        catalog = new Catalog(databasePath);
+        tableIdleMillis = DEFAULT_TABLE_IDLE_MILLIS;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    public void setTableIdleMillis(long tableIdleMillis) {
+        this.tableIdleMillis = tableIdleMillis;
+    }
+
+    public long getCursorTime() {
+        return cursorClock.getAsLong();
+    }
+
+    public void setCursorClock(LongSupplier cursorClock) {
+        this.cursorClock = cursorClock;
+    }
+
+    public int getTableCount() {
+        return catalog.getTableNames().size();
+    }
+
+    public int getLoadedTableCount() {
+        return tables.size();
     }
 
     public void addTable(Table table){
+        table.setLockManager(lockManager);
         tables.put(table.getName(), table);
     }
 
+    /* A SELECT or JOIN reads the rows as they were committed when it started, without waiting for writers.
+       Every snapshot taken has to be ended, old versions are kept for as long as it is open */
+    public long beginSnapshot() {
+        return versionClock.beginSnapshot();
+    }
+
+    public void endSnapshot(long snapshot) {
+        versionClock.endSnapshot(snapshot);
+    }
+
+    public void addCursor(Cursor cursor) {
+        openCursors.add(cursor);
+    }
+
+    public void removeCursor(Cursor cursor) {
+        openCursors.remove(cursor);
+    }
+
+    /* Called after every statement on the database, so a cursor its session has forgotten about
+       does not keep old versions for longer than it may stay idle */
+    public void closeIdleCursors() {
+        if (openCursors.isEmpty()) {
+            return;
+        }
+        long now = getCursorTime();
+        for (Cursor cursor : openCursors) {
+            // a cursor writing to a slow client is skipped rather than waited for
+            cursor.closeIfIdle(now);
+        }
+    }
+
+    /* The versions an INSERT, UPDATE or DELETE creates and ends stay invisible to readers until commit */
+    public Transaction beginTransaction() {
+        return versionClock.beginTransaction();
+    }
+
+    /* A table the catalog lists is read from its file the first time a statement looks it up */
     public Table getTable(String tableName){
-        return tables.get(tableName.toLowerCase());
+        String name = tableName.toLowerCase();
+        Table table = tables.get(name);
+        if (table == null && catalog.contains(name)) {
+            // only one session reads the file, the others wait for it
+            table = tables.computeIfAbsent(name, this::readTable);
+        }
+        if (table != null) {
+            table.lastUsed = System.nanoTime();
+        }
+        return table;
     }
 
-    public void dropTable(String tableName) {
+    /* Whether the table exists, without reading it */
+    public boolean hasTable(String tableName) {
+        String name = tableName.toLowerCase();
+        return tables.containsKey(name) || catalog.contains(name);
+    }
+
+    private Table readTable(String tableName) {
+        Path tablePath = databasePath.resolve(tableName + TABLE_FORMAT_EXTENSION);
+        try {
+            Table table = TABLE_FORMAT_EXTENSION.equals(PagedTableFile.EXTENSION) ? PagedTableFile.read(tablePath) : TextTableFile.read(tablePath);
+            // a text table file does not remember the ids of the rows deleted from its end
+            table.nextRowId = Math.max(table.nextRowId, catalog.get(tableName).getNextRowId());
+            table.loadIndexFile();
+            table.setLockManager(lockManager);
+            // nothing has changed the table since it was unloaded, its file holds every commit up to now
+            table.resetCommittedRowCount(versionClock.getLastCommit());
+            return table;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void dropTable(String tableName) throws IOException {
         tableName = tableName.toLowerCase();
+        dirtyTables.remove(tables.get(tableName));
         tables.remove(tableName);
+        catalog.remove(tableName);
+        catalog.write();
     }
 
-    public void loadDatabase(String databaseName) {
-        String storageFolderPath = Paths.get("databases" + File.separator + databaseName).toAbsolutePath().toString();
-        List<String> fileNames = getFileNamesInDirectory(storageFolderPath);
-
-        for (String fileName : fileNames) {
-            /* load each file in the database */
-            String name = storageFolderPath + File.separator + fileName;
-            File fileToOpen = new File(name);
-            try(FileReader reader = new FileReader(fileToOpen)) {
-                BufferedReader buffreader = new BufferedReader(reader);
-                String currentLine;
-
-                /* Read the first title line */
-                if ((currentLine = buffreader.readLine()) != null) {
-                    /* Obtain the table's column name */
-                    List<String> columnNames = new ArrayList<>(Arrays.asList(currentLine.split("\\s+")));
-                    columnNames.remove("id");
-                    /* Obtain the table's table name */
-                    String tableName = fileName.replace(".tab", "");
-                    /* Using constructor to generate a new table */
-                    Table loadTable = new Table(tableName, columnNames);
-                    loadTable.tablePath = Paths.get(fileName);
-                    addTable(loadTable);
-                    /* Read the other lines, obtain the value */
-                    while ((currentLine = buffreader.readLine()) != null) {
-                        List<String> rowValues = new ArrayList<>(Arrays.asList(currentLine.split("\\s+")));
-                        /* remove the automate generated id */
-                        rowValues.remove(0);
-                        loadTable.insertRow(rowValues);
-                    }
+    /* Committing takes two steps. appendCommit runs once a statement or transaction has made its changes,
+       while it still holds the write locks of its tables, and puts its records in the log.
+       awaitCommit runs after the table locks are released, so that the next writer can append its own records
+       while this one waits for the disk and both are forced by one fsync. The versions become visible once the
+       log is on disk, in the order of the log, so a reader never sees a change that a crash could take back,
+       nor a later commit without an earlier one */
+    public void appendCommit(Transaction transaction) throws IOException {
+        if (transaction.getLogRecords().isEmpty()) {
+            return;
+        }
+        synchronized (commitQueue) {
+            transaction.setLogPosition(writeAheadLog.appendTransaction(transaction.getLogRecords()));
+            commitQueue.add(transaction);
+        }
+        for (Table table : transaction.getChangedTables()) {
+            dirtyTables.add(table);
+            if (!table.compactionScheduled && table.needsCompaction(compactionThreshold)) {
+                table.compactionScheduled = true;
+                COMPACTOR.execute(() -> compact(table));
+            }
+        }
+    }
+
+    public void awaitCommit(Transaction transaction) throws IOException {
+        if (transaction.getLogRecords().isEmpty()) {
+            return;
+        }
+        writeAheadLog.sync(transaction.getLogPosition());
+        synchronized (commitQueue) {
+            // this transaction and every one before it in the log are on disk now
+            while (!commitQueue.isEmpty() && commitQueue.peek().getLogPosition() <= transaction.getLogPosition()) {
+                versionClock.commit(commitQueue.poll());
+            }
+        }
+    }
+
+    /* Called once a statement has released its locks, a checkpoint has to wait for every other statement */
+    public void checkpointIfNeeded() throws IOException {
+        if (!writeAheadLog.needsCheckpoint()) {
+            return;
+        }
+        lockManager.lockExclusive();
+        try {
+            // another session may have checkpointed while this one waited for the lock
+            if (!closed && writeAheadLog.needsCheckpoint()) {
+                checkpoint();
+            }
+        } finally {
+            lockManager.unlockExclusive();
+        }
+    }
+
+    /* Runs on the compactor thread: drop the table's deleted rows and old versions from memory, then checkpoint so that
+       the table file is rewritten without them and the log loses their DELETE records */
+    private void compact(Table table) {
+        lockManager.lockExclusive();
+        try {
+            table.compactionScheduled = false;
+            // the table may have been dropped, or the database closed, while the compaction was waiting
+            if (closed || tables.get(table.getName()) != table) {
+                return;
+            }
+            // no statement runs meanwhile, so the horizon is the last commit
+            table.compact(versionClock.getHorizon());
+            dirtyTables.add(table);
+            checkpoint();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lockManager.unlockExclusive();
+        }
+    }
+
+    /* Fold the log into the table files: rewrite each dirty table once, then start a new log.
+       The caller holds the database lock exclusively, so no statement can log in the meantime */
+    public void checkpoint() throws IOException {
+        writeAheadLog.flush();
+        for (Table table : dirtyTables) {
+            table.updateTableFile();
+            catalog.put(table);
+        }
+        dirtyTables.clear();
+        catalog.write();
+        writeAheadLog.truncate();
+        unloadIdleTables();
+    }
+
+    /* Every table is all in its file after a checkpoint, so the tables no statement has looked up for a while
+       can be dropped from memory, getTable reads them again. No statement holds one meanwhile */
+    private void unloadIdleTables() {
+        long now = System.nanoTime();
+        for (Table table : tables.values()) {
+            if (catalog.contains(table.getName()) && now - table.lastUsed > TimeUnit.MILLISECONDS.toNanos(tableIdleMillis)) {
+                tables.remove(table.getName(), table);
+            }
+        }
+    }
+
+    /* COPY ... FROM is not logged either: the copied rows become visible together under a commit stamp of their own,
+       and the table file is written once with them. The caller holds the database lock exclusively */
+    public void commitCopy(Table table, Transaction transaction) throws IOException {
+        versionClock.commit(transaction);
+        checkpointSchemaChange(table);
+    }
+
+    /* Schema changes are not logged: the changed table is written out together with everything the log holds,
+       so the log never contains records from before the change */
+    public void checkpointSchemaChange(Table table) throws IOException {
+        dirtyTables.add(table);
+        checkpoint();
+    }
+
+    /* The caller holds the database lock exclusively */
+    public void close() throws IOException {
+        closed = true;
+        writeAheadLog.close();
+    }
+
+    /* Read the catalog, and replay the log over the tables it has records for. The other tables are read on
+       first use (see getTable), only the tables the catalog does not know yet are read now.
+       Tables found in the other format are migrated: written in the configured format, then the old file is removed */
+    public void loadDatabase() {
+        List<Path> migratedFiles = new ArrayList<>();
+        try {
+            catalog.read();
+            Set<String> tableNames = new HashSet<>();
+            for (String fileName : getFileNamesInDirectory(databasePath.toString())) {
+                Path filePath = databasePath.resolve(fileName);
+                String tableName = fileName.substring(0, fileName.lastIndexOf('.'));
+                tableNames.add(tableName);
+                boolean paged = fileName.endsWith(PagedTableFile.EXTENSION);
+                String extension = paged ? PagedTableFile.EXTENSION : TextTableFile.EXTENSION;
+                String otherExtension = paged ? TextTableFile.EXTENSION : PagedTableFile.EXTENSION;
+                // a migration that was interrupted left both files, the one in the configured format is the newer
+                if (!extension.equals(TABLE_FORMAT_EXTENSION) && Files.exists(databasePath.resolve(tableName + otherExtension))) {
+                    migratedFiles.add(filePath);
+                    continue;
+                }
+                if (extension.equals(TABLE_FORMAT_EXTENSION) && catalog.contains(tableName)) {
+                    continue;
+                }
+                Table loadTable = paged ? PagedTableFile.read(filePath) : TextTableFile.read(filePath);
+                if (!extension.equals(TABLE_FORMAT_EXTENSION)) {
+                    loadTable.tablePath = databasePath.resolve(tableName + TABLE_FORMAT_EXTENSION);
+                    loadTable.rewriteFile();
+                    dirtyTables.add(loadTable);
+                    migratedFiles.add(filePath);
                 }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                if (catalog.contains(tableName)) {
+                    loadTable.nextRowId = Math.max(loadTable.nextRowId, catalog.get(tableName).getNextRowId());
+                }
+                loadTable.loadIndexFile();
+                addTable(loadTable);
+                catalog.put(loadTable);
+            }
+            catalog.retain(tableNames);
+
+            // reads the tables the log has records for
+            replayLog();
+            /* Drop the rows deleted by the log */
+            for (Table table : tables.values()) {
+                table.compact(versionClock.getHorizon());
+                table.resetCommittedRowCount(versionClock.getLastCommit());
+            }
+            // start from an empty log, so nothing is appended after the records of a transaction that never committed
+            checkpoint();
+            for (Path migratedFile : migratedFiles) {
+                if (migratedFile.toString().endsWith(PagedTableFile.EXTENSION)) {
+                    new PagedTableFile(migratedFile).delete();
+                } else {
+                    Files.deleteIfExists(migratedFile);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Re-apply the mutations that happened after the last checkpoint */
+    private void replayLog() throws IOException {
+        for (List<String> record : writeAheadLog.readRecords()) {
+            Table table = getTable(record.get(1));
+            if (table == null) {
+                continue;
+            }
+            switch (record.get(0)) {
+                case WriteAheadLog.INSERT:
+                case WriteAheadLog.UPDATE:
+                    /* A record written before the last schema change has already reached the table file */
+                    if (record.size() - 2 != table.columns.size()) {
+                        continue;
+                    }
+                    table.loadRow(Integer.parseInt(record.get(2)), record.subList(3, record.size()));
+                    break;
+                case WriteAheadLog.DELETE:
+                    table.removeRowById(Integer.parseInt(record.get(2)));
+                    break;
+                default:
+                    throw new IOException("Unknown log record " + record.get(0));
             }
+            dirtyTables.add(table);
         }
     }
 
@@ -78,7 +403,8 @@ public class Database {
 
         if (files != null) {
             for (File file : files) {
-                if (file.isFile()) { // Check if the File object is a file
+                // Only the table files, the log and temporary files live in the same folder
+                if (file.isFile() && (file.getName().endsWith(PagedTableFile.EXTENSION) || file.getName().endsWith(TextTableFile.EXTENSION))) {
                     fileNames.add(file.getName());
                 }
             }
@@ -0,0 +1,202 @@
+package edu.uob;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/* The files of COPY: a line of column names, then a line per row. A ".csv" file separates the values with commas
+   and may put a value in double quotes, with "" for a quote inside it, and nothing but a comma or the end of the
+   line after its closing quote; any other file separates them with tabs and takes them as they are. A value
+   cannot hold a line break, so the file is split at line breaks and the pieces are parsed in parallel like a
+   table file (see TableLoader) */
+public class DelimitedFile {
+    private final Path path;
+    private final byte delimiter;
+
+    public DelimitedFile(Path path) {
+        this.path = path;
+        this.delimiter = path.getFileName().toString().toLowerCase().endsWith(".csv") ? (byte) ',' : (byte) '\t';
+    }
+
+    /* The rows of the file in file order, parsed for the table but not added to it yet and without ids.
+       The column names must be the table's, an "id" column is skipped since the rows are given new ids */
+    public List<TableLoader.Chunk> read(Table table) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long bodyStart = TableLoader.nextLineStart(channel, 0);
+            TableLoader.Chunk headerChunk = new TableLoader.Chunk(0);
+            List<String> header;
+            try {
+                header = splitLine(headerChunk, channel.map(FileChannel.MapMode.READ_ONLY, 0, bodyStart), 0, (int) bodyStart);
+            } catch (IOException e) {
+                throw new IOException("Line 1 of the file " + e.getMessage());
+            }
+            boolean skipId = !header.isEmpty() && header.get(0).equalsIgnoreCase("id");
+            List<String> columnNames = header.subList(skipId ? 1 : 0, header.size());
+            List<String> tableColumnNames = table.getColumnNames().subList(1, table.columns.size());
+            if (!columnNames.stream().map(String::toLowerCase).toList().equals(tableColumnNames.stream().map(String::toLowerCase).toList())) {
+                throw new IOException("The columns of the file are " + String.join(", ", columnNames)
+                        + ", the table's are " + String.join(", ", tableColumnNames) + ".");
+            }
+
+            long chunkSize = TableLoader.chunkSize(size - bodyStart);
+            int rowWidth = table.columns.size();
+            List<Callable<TableLoader.Chunk>> tasks = new ArrayList<>();
+            long start = bodyStart;
+            while (start < size) {
+                long chunkStart = start;
+                long chunkEnd = size - start <= chunkSize ? size : TableLoader.nextLineStart(channel, start + chunkSize - 1);
+                tasks.add(() -> readLines(channel, chunkStart, chunkEnd, rowWidth, skipId));
+                start = chunkEnd;
+            }
+            return TableLoader.parseAll(tasks);
+        }
+    }
+
+    private TableLoader.Chunk readLines(FileChannel channel, long start, long end, int rowWidth, boolean skipId) throws IOException {
+        TableLoader.Chunk chunk = new TableLoader.Chunk(rowWidth);
+        ByteBuffer lines = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        int position = 0;
+        while (position < lines.limit()) {
+            int lineEnd = position;
+            while (lineEnd < lines.limit() && lines.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            List<String> values;
+            try {
+                values = splitLine(chunk, lines, position, lineEnd);
+            } catch (IOException e) {
+                throw new IOException("Line " + lineNumber(channel, start + position) + " of the file " + e.getMessage());
+            }
+            if (!values.isEmpty()) {
+                int valueCount = values.size() - (skipId ? 1 : 0);
+                if (valueCount != rowWidth - 1) {
+                    throw new IOException("Line " + lineNumber(channel, start + position) + " of the file has " + valueCount
+                            + " values, the table takes " + (rowWidth - 1) + ".");
+                }
+                Object[] rowValues = chunk.newValues();
+                for (int ordinal = 1; ordinal < rowWidth; ordinal++) {
+                    chunk.setValue(rowValues, ordinal, values.get(skipId ? ordinal : ordinal - 1));
+                }
+                // the id is given when the rows before it have been counted, see Table.appendCopiedRows
+                chunk.addRow(0, rowValues);
+            }
+            position = lineEnd + 1;
+        }
+        return chunk;
+    }
+
+    /* The number of the line starting at a position of the file, counted only when a line is refused since the
+       chunks are read in parallel */
+    private static long lineNumber(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long lineNumber = 1;
+        long offset = 0;
+        while (offset < position) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), position - offset));
+            int read = channel.read(buffer, offset);
+            if (read < 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    lineNumber++;
+                }
+            }
+            offset += read;
+        }
+        return lineNumber;
+    }
+
+    /* The values of the line between two positions, none for a blank line. A quoted value that is not closed,
+       or is followed by anything but the delimiter, fails the line rather than be cut or run on */
+    private List<String> splitLine(TableLoader.Chunk chunk, ByteBuffer buffer, int start, int end) throws IOException {
+        while (end > start && (buffer.get(end - 1) == '\r' || buffer.get(end - 1) == '\n')) {
+            end--;
+        }
+        List<String> values = new ArrayList<>();
+        if (end == start) {
+            return values;
+        }
+        int index = start;
+        while (true) {
+            if (delimiter == ',' && index < end && buffer.get(index) == '"') {
+                // a quoted value runs to the quote that is not doubled
+                int valueStart = index + 1;
+                index = valueStart;
+                boolean doubledQuotes = false;
+                while (index < end && (buffer.get(index) != '"' || (index + 1 < end && buffer.get(index + 1) == '"'))) {
+                    if (buffer.get(index) == '"') {
+                        doubledQuotes = true;
+                        index++;
+                    }
+                    index++;
+                }
+                if (index == end) {
+                    throw new IOException("has a quoted value with no closing quote.");
+                }
+                String value = chunk.decode(buffer, valueStart, index - valueStart);
+                values.add(doubledQuotes ? value.replace("\"\"", "\"") : value);
+                index++; // the closing quote
+                if (index < end && buffer.get(index) != delimiter) {
+                    throw new IOException("has text after the closing quote of a value.");
+                }
+            } else {
+                int valueStart = index;
+                while (index < end && buffer.get(index) != delimiter) {
+                    index++;
+                }
+                values.add(chunk.decode(buffer, valueStart, index - valueStart));
+            }
+            if (index == end) {
+                return values;
+            }
+            index++; // the delimiter
+        }
+    }
+
+    /* Write the column names and then the rows, one at a time. Returns how many rows were written */
+    public int write(List<String> columnNames, Iterator<Row> rows, int[] ordinals) throws IOException {
+        int count = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeLine(writer, columnNames.toArray(new String[0]));
+            String[] values = new String[ordinals.length];
+            while (rows.hasNext()) {
+                Row row = rows.next();
+                for (int i = 0; i < ordinals.length; i++) {
+                    values[i] = row.getString(ordinals[i]);
+                }
+                writeLine(writer, values);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void writeLine(BufferedWriter writer, String[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                writer.write(delimiter);
+            }
+            String value = values[i];
+            if (delimiter == ',' && (value.indexOf(',') != -1 || value.indexOf('"') != -1)) {
+                writer.write('"');
+                writer.write(value.replace("\"", "\"\""));
+                writer.write('"');
+            } else {
+                writer.write(value);
+            }
+        }
+        writer.newLine();
+    }
+}
@@ -1,5 +1,13 @@
 package edu.uob;
 
+import java.util.List;
+import java.util.function.Predicate;
+
 public interface Expression {
-    boolean evaluate(Row row);
+    /* Turn the expression into a predicate over the rows of the table, once per query:
+       column ordinals are resolved, literals converted and operators chosen before any row is seen */
+    Predicate<Row> compile(Table table);
+
+    /* The expression with the values of a prepared statement in place of its "?" parameters */
+    Expression bind(List<String> values);
 }
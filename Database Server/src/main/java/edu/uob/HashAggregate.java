@@ -0,0 +1,163 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/* COUNT, SUM, AVG, MIN and MAX over the rows of a query, one result row per value of the grouped column.
+   Every row is added once to a hash table from its group's value to the running results of the group, so the rows
+   are neither sorted nor kept: the memory used grows with the number of groups, not with the number of rows.
+   An empty value is left out of every function but COUNT(*), like SQL leaves out NULL */
+public class HashAggregate {
+    private final List<Statement.Aggregate> items;
+    /* the ordinal each item reads, -1 for COUNT(*) */
+    private final int[] ordinals;
+    /* -1 without GROUP BY, all the rows are then one group */
+    private final int groupOrdinal;
+    /* value of the grouped column -> its group, in the order the groups were first seen */
+    private final Map<Object, Group> groups = new LinkedHashMap<>();
+
+    /* The running results of a group, one slot per item */
+    private static final class Group {
+        final Object value;
+        /* the values counted, or the rows for COUNT(*) */
+        final long[] counts;
+        final double[] sums;
+        /* the sums kept exactly while every value is a whole number */
+        final long[] integerSums;
+        final boolean[] fractional;
+        /* the least value for MIN, the greatest for MAX */
+        final Object[] extremes;
+
+        Group(Object value, int itemCount) {
+            this.value = value;
+            this.counts = new long[itemCount];
+            this.sums = new double[itemCount];
+            this.integerSums = new long[itemCount];
+            this.fractional = new boolean[itemCount];
+            this.extremes = new Object[itemCount];
+        }
+    }
+
+    /* The items have been checked against the table, see DBServer.checkQuery */
+    public HashAggregate(Table table, List<Statement.Aggregate> items, String groupColumn) {
+        this.items = items;
+        this.ordinals = new int[items.size()];
+        for (int i = 0; i < items.size(); i++) {
+            String columnName = items.get(i).columnName;
+            ordinals[i] = columnName != null ? table.getColumnIndex(columnName) : -1;
+        }
+        this.groupOrdinal = groupColumn != null ? table.getColumnIndex(groupColumn) : -1;
+    }
+
+    public void add(Row row) {
+        Object groupValue = groupOrdinal != -1 ? row.getValue(groupOrdinal) : null;
+        Group group = groups.get(groupValue);
+        if (group == null) {
+            group = new Group(groupValue, items.size());
+            groups.put(groupValue, group);
+        }
+        for (int i = 0; i < items.size(); i++) {
+            Keyword function = items.get(i).function;
+            if (function == null) {
+                continue;
+            }
+            if (ordinals[i] == -1) {
+                group.counts[i]++;
+                continue;
+            }
+            Object value = row.getValue(ordinals[i]);
+            if (value == null) {
+                continue;
+            }
+            switch (function) {
+                case SUM:
+                case AVG:
+                    double number = ColumnType.toDouble(value);
+                    if (Double.isNaN(number)) {
+                        break; // text in a numeric column, left out like an empty value
+                    }
+                    group.counts[i]++;
+                    group.sums[i] += number;
+                    if (!group.fractional[i]) {
+                        if (value instanceof Long) {
+                            try {
+                                group.integerSums[i] = Math.addExact(group.integerSums[i], (Long) value);
+                            } catch (ArithmeticException e) {
+                                group.fractional[i] = true;
+                            }
+                        } else {
+                            group.fractional[i] = true;
+                        }
+                    }
+                    break;
+                case MIN:
+                case MAX:
+                    Object extreme = group.extremes[i];
+                    int order = extreme == null ? 0 : Table.compareValues(value, extreme);
+                    if (extreme == null || (function == Keyword.MIN ? order < 0 : order > 0)) {
+                        group.extremes[i] = value;
+                    }
+                    group.counts[i]++;
+                    break;
+                default:
+                    group.counts[i]++;
+                    break;
+            }
+        }
+    }
+
+    /* Rows counted without being read, for a query of COUNT(*) alone without GROUP BY (see Table.getCommittedRowCount) */
+    public void addRowCount(long rowCount) {
+        Group group = groups.computeIfAbsent(null, value -> new Group(null, items.size()));
+        for (int i = 0; i < items.size(); i++) {
+            group.counts[i] += rowCount;
+        }
+    }
+
+    /* The values of the result rows as text, one row per group. Without GROUP BY there is one row even for no rows,
+       where COUNT gives 0 and the other functions an empty value. The groups come in the order they were first
+       seen unless ordered by their value, then the offset and limit cut them */
+    public List<List<String>> results(boolean ordered, boolean descending, int offset, int limit) {
+        List<Group> resultGroups = new ArrayList<>(groups.values());
+        if (resultGroups.isEmpty() && groupOrdinal == -1) {
+            resultGroups.add(new Group(null, items.size()));
+        }
+        if (ordered) {
+            resultGroups.sort((first, second) -> Table.compareValues(first.value, second.value) * (descending ? -1 : 1));
+        }
+        int end = limit == -1 ? resultGroups.size() : (int) Math.min(resultGroups.size(), (long) offset + limit);
+        List<List<String>> results = new ArrayList<>();
+        for (int position = offset; position < end; position++) {
+            Group group = resultGroups.get(position);
+            List<String> values = new ArrayList<>(items.size());
+            for (int i = 0; i < items.size(); i++) {
+                values.add(result(group, i));
+            }
+            results.add(values);
+        }
+        return results;
+    }
+
+    private String result(Group group, int i) {
+        Keyword function = items.get(i).function;
+        if (function == null) {
+            return ColumnType.render(group.value);
+        }
+        if (function == Keyword.COUNT) {
+            return Long.toString(group.counts[i]);
+        }
+        if (group.counts[i] == 0) {
+            return "";
+        }
+        switch (function) {
+            case SUM:
+                return group.fractional[i] ? Double.toString(group.sums[i]) : Long.toString(group.integerSums[i]);
+            case AVG:
+                return Double.toString(group.sums[i] / group.counts[i]);
+            default:
+                return ColumnType.render(group.extremes[i]);
+        }
+    }
+}
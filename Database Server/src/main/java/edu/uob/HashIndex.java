@@ -0,0 +1,66 @@
+package edu.uob;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* In-memory hash index over one column of a table, created with "CREATE INDEX ON t (column)".
+   It is keyed by the stored (parsed) value, so a literal converted to the column's type finds
+   exactly the rows an == condition would match. */
+public class HashIndex implements TableIndex {
+    public static final String KIND = "HASH";
+
+    private String columnName;
+    private Map<Object, Set<Row>> entries;
+
+    public HashIndex(String columnName) {
+        this.columnName = columnName;
+        this.entries = new HashMap<>();
+    }
+
+    @Override
+    public String getColumnName() {
+        return columnName;
+    }
+
+    @Override
+    public String getKind() {
+        return KIND;
+    }
+
+    @Override
+    public void add(Object key, Row row) {
+        entries.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(row);
+    }
+
+    @Override
+    public void remove(Object key, Row row) {
+        Set<Row> keyRows = entries.get(key);
+        if (keyRows != null) {
+            keyRows.remove(row);
+            if (keyRows.isEmpty()) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    public Set<Row> lookup(Object key) {
+        Set<Row> keyRows = entries.get(key);
+        return keyRows != null ? keyRows : Collections.emptySet();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public void rebuild(List<Row> rows, int ordinal) {
+        clear();
+        for (Row row : rows) {
+            add(row.getValue(ordinal), row);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/* Equi-join of two tables on one column each. A hash table is built over the smaller input and probed with
+   the rows of the larger one as they are scanned, so the join costs O(n + m) plus the number of matches.
+   Only the hash table is held, never the matches: each pair is made when it is asked for, in the scan order of
+   the probed table and then the order of the hashed rows. That is nested loop order when the second table is
+   hashed; when the first table is the smaller one the pairs follow the second table instead.
+   When one side is joined on its id, that table's primary key index is probed instead of building one. */
+public class HashJoin implements Iterator<Row[]> {
+    /* the table that is looked up, the other one is scanned */
+    private final Table buildTable;
+    private final boolean buildOnFirst;
+    private final int probeKey;
+    private final boolean compareAsText;
+    private final long snapshot;
+    private final Iterator<Row> probeRows;
+    /* null when the build table is probed through its primary key */
+    private final Map<Object, List<Row>> hashTable;
+
+    /* the row being probed and the build rows it matches that are still to be paired with it */
+    private Row probeRow;
+    private Iterator<Row> buildMatches = Collections.emptyIterator();
+
+    /* compareAsText is needed when only one of the two columns is a STRING column: a number or boolean
+       then has to match the same text on the other side (see ColumnType.sameValue).
+       Both tables are read as the snapshot sees them (see VersionClock), which has to stay open while pairs are
+       asked for */
+    public HashJoin(Table firstTable, int firstKey, Table secondTable, int secondKey, boolean compareAsText, long snapshot) {
+        this.compareAsText = compareAsText;
+        this.snapshot = snapshot;
+
+        // Ids are unique, so a probe through the primary key finds at most one row
+        boolean secondById = secondKey == 0 && !compareAsText;
+        boolean firstById = firstKey == 0 && !compareAsText && !secondById;
+        buildOnFirst = firstById || (!secondById && rowCount(firstTable) < rowCount(secondTable));
+        buildTable = buildOnFirst ? firstTable : secondTable;
+        Table probeTable = buildOnFirst ? secondTable : firstTable;
+        probeKey = buildOnFirst ? secondKey : firstKey;
+        probeRows = probeTable.scanRows(new LogicalExpression("AND"), null, false, snapshot);
+
+        if (firstById || secondById) {
+            hashTable = null;
+            return;
+        }
+        int buildKey = buildOnFirst ? firstKey : secondKey;
+        hashTable = new HashMap<>();
+        Iterator<Row> buildRows = buildTable.scanRows(new LogicalExpression("AND"), null, false, snapshot);
+        while (buildRows.hasNext()) {
+            Row row = buildRows.next();
+            hashTable.computeIfAbsent(joinKey(row, buildKey), key -> new ArrayList<>(1)).add(row);
+        }
+    }
+
+    /* The rows the snapshot sees, or the newest count when commits since have changed it: either picks the build side */
+    private int rowCount(Table table) {
+        int count = table.getCommittedRowCount(snapshot);
+        return count != -1 ? count : table.getRowCount();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!buildMatches.hasNext()) {
+            if (!probeRows.hasNext()) {
+                return false;
+            }
+            probeRow = probeRows.next();
+            buildMatches = probe(joinKey(probeRow, probeKey));
+        }
+        return true;
+    }
+
+    /* The next matching pair as {first row, second row}, whichever side was hashed */
+    @Override
+    public Row[] next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Row buildRow = buildMatches.next();
+        return buildOnFirst ? new Row[]{buildRow, probeRow} : new Row[]{probeRow, buildRow};
+    }
+
+    private Iterator<Row> probe(Object key) {
+        if (hashTable == null) {
+            Row buildRow = buildTable.findRowByIdValue(key, snapshot);
+            return buildRow != null ? List.of(buildRow).iterator() : Collections.emptyIterator();
+        }
+        List<Row> matches = hashTable.get(key);
+        return matches != null ? matches.iterator() : Collections.emptyIterator();
+    }
+
+    private Object joinKey(Row row, int ordinal) {
+        Object value = row.getValue(ordinal);
+        return compareAsText && value != null ? ColumnType.render(value) : value;
+    }
+}
@@ -0,0 +1,44 @@
+package edu.uob;
+
+/* The words of the query language, recognised by the Lexer whatever their case.
+   A keyword can still name a table or column where the grammar expects a name, the parser decides */
+public enum Keyword {
+    USE, CREATE, DATABASE, TABLE, DROP, ALTER, ADD, INSERT, INTO, VALUES, SELECT, FROM, WHERE, UPDATE, SET, DELETE,
+    JOIN, ON, AND, OR, LIKE, ORDER, BY, ASC, DESC, LIMIT, OFFSET, BEGIN, COMMIT, ROLLBACK, SHOW, STATS,
+    INDEX, USING, HASH, BTREE, DECLARE, CURSOR, FOR, FETCH, CLOSE, PREPARE, AS, EXECUTE, DEALLOCATE, EXPLAIN,
+    COPY, TO, GROUP, COUNT, SUM, AVG, MIN, MAX,
+    TRUE, FALSE, NULL;
+
+    /* the keywords by their length, so a word is only compared with the keywords as long as it */
+    private static final Keyword[][] BY_LENGTH = new Keyword[16][];
+
+    static {
+        for (int length = 0; length < BY_LENGTH.length; length++) {
+            int count = 0;
+            for (Keyword keyword : values()) {
+                count += keyword.name().length() == length ? 1 : 0;
+            }
+            BY_LENGTH[length] = new Keyword[count];
+            count = 0;
+            for (Keyword keyword : values()) {
+                if (keyword.name().length() == length) {
+                    BY_LENGTH[length][count++] = keyword;
+                }
+            }
+        }
+    }
+
+    /* The keyword spelled by the characters between start and end, or null */
+    public static Keyword lookup(String text, int start, int end) {
+        int length = end - start;
+        if (length >= BY_LENGTH.length) {
+            return null;
+        }
+        for (Keyword keyword : BY_LENGTH[length]) {
+            if (text.regionMatches(true, start, keyword.name(), 0, length)) {
+                return keyword;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,208 @@
+package edu.uob;
+
+import java.util.Arrays;
+
+/* Splits a command into typed tokens in a single pass over its characters. A token is only its type, its keyword and
+   where it starts and ends in the command, kept in arrays that the next command reuses, so scanning allocates nothing
+   once the arrays have grown to the longest command of a connection (every Session has its own Lexer).
+       "'" ... "'"                           a string literal, the quotes included
+       "(" ")" "," ";" "*"                   symbols
+       "==" "!=" ">=" "<=" ">" "<" "="       operators
+       "?"                                   a parameter of a prepared statement
+   and anything else up to white space or one of the characters above is a word: a keyword, a number, TRUE, FALSE
+   or NULL, or otherwise an identifier */
+public class Lexer {
+    public enum TokenType {
+        KEYWORD,
+        IDENTIFIER,
+        LITERAL,    // a string literal, a number, TRUE, FALSE or NULL
+        OPERATOR,
+        SYMBOL,
+        PARAMETER
+    }
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private String command = "";
+    private int size;
+    private TokenType[] types = new TokenType[INITIAL_CAPACITY];
+    private Keyword[] keywords = new Keyword[INITIAL_CAPACITY];
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] ends = new int[INITIAL_CAPACITY];
+
+    public void scan(String command) {
+        this.command = command;
+        size = 0;
+        int length = command.length();
+        int position = 0;
+        while (position < length) {
+            char c = command.charAt(position);
+            int start = position;
+            switch (c) {
+                case ' ':
+                case '\t':
+                case '\n':
+                case '\r':
+                case '\f':
+                    position++;
+                    break;
+                case '\'':
+                    // a string literal runs to the next quote, or to the end of an unterminated one
+                    position = command.indexOf('\'', position + 1);
+                    position = position == -1 ? length : position + 1;
+                    add(TokenType.LITERAL, null, start, position);
+                    break;
+                case '(':
+                case ')':
+                case ',':
+                case ';':
+                case '*':
+                    add(TokenType.SYMBOL, null, start, ++position);
+                    break;
+                case '?':
+                    add(TokenType.PARAMETER, null, start, ++position);
+                    break;
+                case '=':
+                case '>':
+                case '<':
+                    position++;
+                    if (position < length && command.charAt(position) == '=') {
+                        position++;
+                    }
+                    add(TokenType.OPERATOR, null, start, position);
+                    break;
+                default:
+                    if (c == '!' && position + 1 < length && command.charAt(position + 1) == '=') {
+                        position += 2;
+                        add(TokenType.OPERATOR, null, start, position);
+                        break;
+                    }
+                    position = wordEnd(position + 1);
+                    Keyword keyword = Keyword.lookup(command, start, position);
+                    if (keyword == Keyword.TRUE || keyword == Keyword.FALSE || keyword == Keyword.NULL || isNumber(start, position)) {
+                        add(TokenType.LITERAL, keyword, start, position);
+                    } else {
+                        add(keyword != null ? TokenType.KEYWORD : TokenType.IDENTIFIER, keyword, start, position);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private int wordEnd(int position) {
+        int length = command.length();
+        while (position < length) {
+            switch (command.charAt(position)) {
+                case ' ':
+                case '\t':
+                case '\n':
+                case '\r':
+                case '\f':
+                case '\'':
+                case '(':
+                case ')':
+                case ',':
+                case ';':
+                case '*':
+                case '?':
+                case '=':
+                case '>':
+                case '<':
+                    return position;
+                case '!':
+                    if (position + 1 < length && command.charAt(position + 1) == '=') {
+                        return position;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            position++;
+        }
+        return position;
+    }
+
+    /* An optional sign, digits and at most one decimal point */
+    private boolean isNumber(int start, int end) {
+        int position = start;
+        if (command.charAt(position) == '+' || command.charAt(position) == '-') {
+            position++;
+        }
+        boolean digits = false;
+        boolean point = false;
+        for (; position < end; position++) {
+            char c = command.charAt(position);
+            if (c >= '0' && c <= '9') {
+                digits = true;
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                return false;
+            }
+        }
+        return digits;
+    }
+
+    private void add(TokenType type, Keyword keyword, int start, int end) {
+        if (size == types.length) {
+            types = Arrays.copyOf(types, 2 * size);
+            keywords = Arrays.copyOf(keywords, 2 * size);
+            starts = Arrays.copyOf(starts, 2 * size);
+            ends = Arrays.copyOf(ends, 2 * size);
+        }
+        types[size] = type;
+        keywords[size] = keyword;
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TokenType type(int index) {
+        return types[index];
+    }
+
+    /* The keyword of a token, null for a token that is not one */
+    public Keyword keyword(int index) {
+        return keywords[index];
+    }
+
+    public boolean is(int index, Keyword keyword) {
+        return index < size && keywords[index] == keyword;
+    }
+
+    /* Whether the token is exactly the given symbol or operator */
+    public boolean is(int index, String symbol) {
+        return index < size && (types[index] == TokenType.SYMBOL || types[index] == TokenType.OPERATOR)
+                && ends[index] - starts[index] == symbol.length() && command.startsWith(symbol, starts[index]);
+    }
+
+    public boolean isStringLiteral(int index) {
+        return types[index] == TokenType.LITERAL && command.charAt(starts[index]) == '\'';
+    }
+
+    public int start(int index) {
+        return starts[index];
+    }
+
+    public int end(int index) {
+        return ends[index];
+    }
+
+    /* The text of a token as it was written */
+    public String text(int index) {
+        return command.substring(starts[index], ends[index]);
+    }
+
+    /* The text of a literal without the quotes of a string */
+    public String value(int index) {
+        if (!isStringLiteral(index)) {
+            return text(index);
+        }
+        int end = ends[index] > starts[index] + 1 && command.charAt(ends[index] - 1) == '\'' ? ends[index] - 1 : ends[index];
+        return command.substring(starts[index] + 1, end);
+    }
+}
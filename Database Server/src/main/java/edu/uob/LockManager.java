@@ -0,0 +1,103 @@
+package edu.uob;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/* The locks of one database, always taken in this order:
+   1. the database lock, shared by every statement on its tables and exclusive for schema changes,
+      checkpoints and compaction, which touch several tables or the log as a whole;
+   2. the table's own StampedLock, written by INSERT, UPDATE, DELETE and index changes. SELECT and JOIN read a
+      snapshot (see VersionClock) and only hold its read lock while they copy their candidate rows.
+   A lock that cannot be taken straight away is timed, the totals are shown by "SHOW STATS;" */
+public class LockManager {
+    private final ReentrantReadWriteLock databaseLock = new ReentrantReadWriteLock();
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    public void lockShared() {
+        if (!databaseLock.readLock().tryLock()) {
+            long start = System.nanoTime();
+            databaseLock.readLock().lock();
+            recordWait(start);
+        }
+        acquisitions.increment();
+    }
+
+    public void unlockShared() {
+        databaseLock.readLock().unlock();
+    }
+
+    public void lockExclusive() {
+        if (!databaseLock.writeLock().tryLock()) {
+            long start = System.nanoTime();
+            databaseLock.writeLock().lock();
+            recordWait(start);
+        }
+        acquisitions.increment();
+    }
+
+    public void unlockExclusive() {
+        databaseLock.writeLock().unlock();
+    }
+
+    public boolean holdsExclusive() {
+        return databaseLock.isWriteLockedByCurrentThread();
+    }
+
+    public long readLock(Table table) {
+        long stamp = table.lock.tryReadLock();
+        if (stamp == 0) {
+            long start = System.nanoTime();
+            stamp = table.lock.readLock();
+            recordWait(start);
+        }
+        acquisitions.increment();
+        return stamp;
+    }
+
+    public long writeLock(Table table) {
+        long stamp = table.lock.tryWriteLock();
+        if (stamp == 0) {
+            long start = System.nanoTime();
+            stamp = table.lock.writeLock();
+            recordWait(start);
+        }
+        acquisitions.increment();
+        return stamp;
+    }
+
+    public void unlock(Table table, long stamp) {
+        table.lock.unlock(stamp);
+    }
+
+    /* Run a short read of the table's lists and maps under its read lock. They are plain collections, so a read
+       without the lock could see one half-changed by a writer, or one whose contents were never published to it */
+    public <T> T read(Table table, Supplier<T> read) {
+        long stamp = readLock(table);
+        try {
+            return read.get();
+        } finally {
+            table.lock.unlockRead(stamp);
+        }
+    }
+
+    private void recordWait(long start) {
+        waits.increment();
+        waitNanos.add(System.nanoTime() - start);
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    public double getWaitMillis() {
+        return waitNanos.sum() / 1_000_000.0;
+    }
+}
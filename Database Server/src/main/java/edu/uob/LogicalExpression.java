@@ -2,7 +2,7 @@ package edu.uob;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Stack;
+import java.util.function.Predicate;
 
 public class LogicalExpression implements Expression{
     List<Expression> expressions; // Can contain Condition or LogicalExpression objects
@@ -18,71 +18,87 @@ public class LogicalExpression implements Expression{
     }
 
     @Override
-    public boolean evaluate(Row row) {
-        boolean result = !"OR".equals(operator);
-
+    public Predicate<Row> compile(Table table) {
+        List<Predicate<Row>> predicates = new ArrayList<>();
         for (Expression expr : expressions) {
-            boolean exprResult;
-            exprResult = expr.evaluate(row);
+            predicates.add(expr.compile(table));
+        }
+        boolean isOr = "OR".equals(operator);
 
-            if ("AND".equals(operator)) {
-                result = result && exprResult;
-            } else { //"OR"
-                result = result || exprResult;
-            }
+        // Specialise the common shapes, and stop evaluating as soon as the result is known
+        switch (predicates.size()) {
+            case 0:
+                return row -> !isOr;
+            case 1:
+                return predicates.get(0);
+            case 2:
+                Predicate<Row> first = predicates.get(0);
+                Predicate<Row> second = predicates.get(1);
+                return isOr ? row -> first.test(row) || second.test(row) : row -> first.test(row) && second.test(row);
+            default:
+                List<Predicate<Row>> all = List.copyOf(predicates);
+                if (isOr) {
+                    return row -> {
+                        for (Predicate<Row> predicate : all) {
+                            if (predicate.test(row)) {
+                                return true;
+                            }
+                        }
+                        return false;
+                    };
+                }
+                return row -> {
+                    for (Predicate<Row> predicate : all) {
+                        if (!predicate.test(row)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                };
         }
-        return result;
     }
 
-    /* <Condition>       ::=  "(" <Condition> <BoolOperator> <Condition> ")" | <Condition> <BoolOperator> <Condition> | "(" [AttributeName] <Comparator> [Value] ")" | [AttributeName] <Comparator> [Value]
-       <BoolOperator>    ::= "AND" | "OR"
-       <Comparator>      ::=  "==" | ">" | "<" | ">=" | "<=" | "!=" | " LIKE " */
-
-    /*  (pass == FALSE) AND (mark > 35); */
+    @Override
+    public LogicalExpression bind(List<String> values) {
+        LogicalExpression bound = new LogicalExpression(operator);
+        for (Expression expr : expressions) {
+            bound.addExpression(expr.bind(values));
+        }
+        return bound;
+    }
 
-    public static LogicalExpression parseConditions(ArrayList<String> tokens) {
-        Stack<LogicalExpression> stack = new Stack<>();
-        // Initialize the root expression with a neutral operator like "AND".
-        LogicalExpression rootExpression = new LogicalExpression("AND");
-        stack.push(rootExpression);
+    /* The conditions every matching row has to satisfy, collected through nested ANDs.
+       A group with a single member is transparent whatever its operator. */
+    public List<Condition> getConjuncts() {
+        List<Condition> conjuncts = new ArrayList<>();
+        collectConjuncts(conjuncts);
+        return conjuncts;
+    }
 
-        ArrayList<String> conditionParts = new ArrayList<>();
+    private void collectConjuncts(List<Condition> conjuncts) {
+        if ("OR".equals(operator) && expressions.size() > 1) {
+            return;
+        }
+        for (Expression expr : expressions) {
+            if (expr instanceof Condition) {
+                conjuncts.add((Condition) expr);
+            } else {
+                ((LogicalExpression) expr).collectConjuncts(conjuncts);
+            }
+        }
+    }
 
-        for (String token : tokens) {
-            switch (token.toUpperCase()) {
-                case "AND":
-                case "OR":
-                    LogicalExpression newExpr = new LogicalExpression(token);
-                    // Always add newExpr as a component to the current top expression on the stack.
-                    stack.peek().addExpression(newExpr);
-                    // Push newExpr onto the stack to start a new clause.
-                    stack.push(newExpr);
-                    break;
-                case "(":
-                    // Start a new logical expression with the default "AND" which will be changed if needed.
-                    LogicalExpression newLogicalExpr = new LogicalExpression("AND");
-                    stack.push(newLogicalExpr);
-                    break;
-                case ")":
-                    // Pops the current logical expression as it's completed.
-                    LogicalExpression finishedExpr = stack.pop();
-                    // If there's another logical expression underneath, add the completed one to it.
-                    if (!stack.isEmpty()) {
-                        stack.peek().addExpression(finishedExpr);
-                    }
-                    break;
-                default:
-                    // Non-operator tokens should be part of a condition.
-                    conditionParts.add(token);
-                    // When have three parts, a full condition.
-                    if (conditionParts.size() == 3) {
-                        Condition condition = new Condition(conditionParts.get(0), conditionParts.get(1), conditionParts.get(2));
-                        stack.peek().addExpression(condition);
-                        conditionParts.clear();
-                    }
-                    break;
+    /* The conditions as a WHERE clause would spell them, nested groups in parentheses */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Expression expr : expressions) {
+            if (text.length() > 0) {
+                text.append(' ').append(operator).append(' ');
             }
+            boolean group = expr instanceof LogicalExpression && ((LogicalExpression) expr).expressions.size() > 1;
+            text.append(group ? "(" + expr + ")" : expr.toString());
         }
-        return rootExpression;
+        return text.toString();
     }
 }
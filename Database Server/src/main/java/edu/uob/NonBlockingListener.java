@@ -0,0 +1,363 @@
+package edu.uob;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/* Front end for DBServer that serves every connection from one selector thread, so an idle connection
+   costs its session and a few small buffers instead of a thread. The protocol is the one DBClient speaks:
+   a command per line, each response followed by a line holding END_OF_TRANSMISSION.
+   Complete commands run on a bounded pool of worker threads, one command per connection at a time
+   so that every client gets its responses in order. A response is handed to the selector in chunks as the command
+   produces it, and the command waits while its client is MAX_PENDING_CHUNKS behind, so a large result only ever
+   takes a few chunks of memory. */
+public class NonBlockingListener {
+    private static final char END_OF_TRANSMISSION = 4;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    /* a longer line is not a command, the connection is dropped */
+    private static final int MAX_COMMAND_BYTES = 1024 * 1024;
+    private static final int WORKER_QUEUE_CAPACITY = 1024;
+    private static final int RESPONSE_CHUNK_BYTES = 64 * 1024;
+    private static final int MAX_PENDING_CHUNKS = 4;
+
+    /* Everything the selector keeps for one client, only touched on the selector thread */
+    private static final class Connection {
+        final SocketChannel channel;
+        final Session session = new Session();
+        // bytes of a command whose newline has not arrived yet, only allocated while there are some
+        ByteArrayOutputStream partialCommand;
+        final Queue<String> commands = new ArrayDeque<>(1);
+        final Queue<Completion> responses = new ArrayDeque<>(1);
+        // chunks of the response the command may still hand over before the client has read the ones before
+        final Semaphore pendingChunks = new Semaphore(MAX_PENDING_CHUNKS);
+        boolean running;
+        volatile boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /* A chunk of a response handed from a worker to the selector thread, the last one ends the command.
+       A chunk took one of its connection's pendingChunks, unless it is the answer to a command that could not run.
+       An aborted completion carries no chunk: the connection is closed once the chunks before it have been sent */
+    private static final class Completion {
+        final Connection connection;
+        final ByteBuffer response;
+        final boolean last;
+        final boolean pending;
+        final boolean aborted;
+
+        Completion(Connection connection, ByteBuffer response, boolean last, boolean pending) {
+            this(connection, response, last, pending, false);
+        }
+
+        Completion(Connection connection, ByteBuffer response, boolean last, boolean pending, boolean aborted) {
+            this.connection = connection;
+            this.response = response;
+            this.last = last;
+            this.pending = pending;
+            this.aborted = aborted;
+        }
+    }
+
+    /* Encodes a response into chunks and hands each one over as it fills up */
+    private final class ResponseWriter extends Writer {
+        private final Connection connection;
+        private final CharsetEncoder encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private ByteBuffer chunk = ByteBuffer.allocate(RESPONSE_CHUNK_BYTES);
+        /* set once a chunk has been handed over, the response can then no longer be taken back */
+        private boolean started;
+
+        ResponseWriter(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(char[] characters, int offset, int length) throws IOException {
+            CharBuffer input = CharBuffer.wrap(characters, offset, length);
+            while (encoder.encode(input, chunk, false).isOverflow()) {
+                handOver(false);
+            }
+        }
+
+        @Override
+        public void write(String text, int offset, int length) throws IOException {
+            CharBuffer input = CharBuffer.wrap(text, offset, offset + length);
+            while (encoder.encode(input, chunk, false).isOverflow()) {
+                handOver(false);
+            }
+        }
+
+        @Override
+        public void flush() {
+            // chunks are handed over when they are full, and at close
+        }
+
+        /* Hand over the rest, ending the command */
+        @Override
+        public void close() throws IOException {
+            CharBuffer input = CharBuffer.allocate(0);
+            while (encoder.encode(input, chunk, true).isOverflow()) {
+                handOver(false);
+            }
+            while (encoder.flush(chunk).isOverflow()) {
+                handOver(false);
+            }
+            handOver(true);
+        }
+
+        boolean isStarted() {
+            return started;
+        }
+
+        /* Forget what has been written and not handed over yet */
+        void discard() {
+            chunk.clear();
+            encoder.reset();
+        }
+
+        /* End a response that was started but cannot be finished: its client is disconnected after the chunks
+           handed over so far, which is the only way to tell it that the rows it was sent are not all of them */
+        void abort() {
+            completions.add(new Completion(connection, null, true, false, true));
+            selector.wakeup();
+        }
+
+        private void handOver(boolean last) throws IOException {
+            try {
+                while (!connection.pendingChunks.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                    if (connection.closed) {
+                        throw new IOException("The client closed the connection");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending a response");
+            }
+            started = true;
+            chunk.flip();
+            completions.add(new Completion(connection, chunk, last, true));
+            selector.wakeup();
+            chunk = ByteBuffer.allocate(RESPONSE_CHUNK_BYTES);
+        }
+    }
+
+    private final DBServer server;
+    private final Charset charset = Charset.defaultCharset();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Queue<Completion> completions = new ConcurrentLinkedQueue<>();
+    private final ThreadPoolExecutor workers;
+    private Selector selector;
+
+    public NonBlockingListener(DBServer server, int workerCount) {
+        this.server = server;
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(WORKER_QUEUE_CAPACITY));
+    }
+
+    public void listenOn(int portNumber) throws IOException {
+        try (Selector selector = Selector.open();
+             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.selector = selector;
+            serverChannel.bind(new InetSocketAddress(portNumber));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Server listening on port " + portNumber);
+
+            while (!Thread.interrupted()) {
+                selector.select();
+                deliverCompletions();
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept(serverChannel);
+                        } else if (key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Server encountered a non-fatal IO error:");
+                        e.printStackTrace();
+                        if (key.attachment() != null) {
+                            close(key);
+                        }
+                    }
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+        System.out.println("Connection established: " + channel.getRemoteAddress());
+    }
+
+    /* Split what has arrived into lines, a line is only a command once its newline is there */
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        readBuffer.clear();
+        int count = connection.channel.read(readBuffer);
+        if (count < 0) {
+            close(key); // the client closed the connection
+            return;
+        }
+        byte[] bytes = readBuffer.array();
+        int lineStart = 0;
+        for (int i = 0; i < count; i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            String command;
+            if (connection.partialCommand != null) {
+                connection.partialCommand.write(bytes, lineStart, i - lineStart);
+                command = connection.partialCommand.toString(charset);
+                connection.partialCommand = null;
+            } else {
+                command = new String(bytes, lineStart, i - lineStart, charset);
+            }
+            // a line ends like it does for BufferedReader.readLine in the blocking listener
+            if (command.endsWith("\r")) {
+                command = command.substring(0, command.length() - 1);
+            }
+            connection.commands.add(command);
+            lineStart = i + 1;
+        }
+        if (lineStart < count) {
+            if (connection.partialCommand == null) {
+                connection.partialCommand = new ByteArrayOutputStream();
+            }
+            connection.partialCommand.write(bytes, lineStart, count - lineStart);
+            if (connection.partialCommand.size() > MAX_COMMAND_BYTES) {
+                close(key);
+                return;
+            }
+        }
+        runNextCommand(connection);
+    }
+
+    private void runNextCommand(Connection connection) {
+        if (connection.running || connection.commands.isEmpty()) {
+            return;
+        }
+        String command = connection.commands.remove();
+        connection.running = true;
+        try {
+            workers.execute(() -> execute(command, connection));
+        } catch (RejectedExecutionException e) {
+            completions.add(new Completion(connection, charset.encode("[ERROR]: The server is busy, please try again.\n" + END_OF_TRANSMISSION + "\n"), true, false));
+            selector.wakeup();
+        }
+    }
+
+    private void execute(String command, Connection connection) {
+        System.out.println("Received message: " + command);
+        ResponseWriter response = new ResponseWriter(connection);
+        try {
+            try {
+                server.handleCommand(command, connection.session, response);
+            } catch (IOException | RuntimeException e) {
+                if (connection.closed) {
+                    return;
+                }
+                e.printStackTrace();
+                if (response.isStarted()) {
+                    // an [ERROR] after part of the rows would read like one more row
+                    response.abort();
+                    return;
+                }
+                // a failing command must still be answered, or the client would wait forever
+                response.discard();
+                response.write("[ERROR]: " + e.getMessage());
+            }
+            response.write("\n" + END_OF_TRANSMISSION + "\n");
+            response.close();
+        } catch (IOException e) {
+            // the client went away while its response was being sent
+        }
+    }
+
+    /* Queue the finished responses for writing, and start each connection's next command */
+    private void deliverCompletions() {
+        Completion completion;
+        while ((completion = completions.poll()) != null) {
+            Connection connection = completion.connection;
+            SelectionKey key = connection.channel.keyFor(selector);
+            if (key == null || !key.isValid()) {
+                continue; // the client went away while its command ran
+            }
+            connection.responses.add(completion);
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            if (completion.last && !completion.aborted) {
+                connection.running = false;
+                runNextCommand(connection);
+            }
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        while (!connection.responses.isEmpty()) {
+            Completion response = connection.responses.peek();
+            if (response.aborted) {
+                close(key);
+                return;
+            }
+            connection.channel.write(response.response);
+            if (response.response.hasRemaining()) {
+                return; // the socket is full, carry on when it becomes writable again
+            }
+            connection.responses.remove();
+            if (response.pending) {
+                connection.pendingChunks.release();
+            }
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    private void close(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        connection.closed = true;
+        connection.session.closeCursors();
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
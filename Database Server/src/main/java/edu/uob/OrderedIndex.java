@@ -0,0 +1,83 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/* Ordered index over one column, created with "CREATE INDEX ON t (column) USING BTREE".
+   Rows are kept in a B+tree by the numeric value of the column, the value the range comparators use,
+   so a range condition becomes a bounded scan. Rows whose value is not a number can never match a range
+   and are kept aside, after the numbers, for ordered scans over the whole table. */
+public class OrderedIndex implements TableIndex {
+    public static final String KIND = "BTREE";
+
+    private String columnName;
+    private BPlusTree tree;
+    private Set<Row> unorderedRows;
+
+    public OrderedIndex(String columnName) {
+        this.columnName = columnName;
+        this.tree = new BPlusTree();
+        this.unorderedRows = new LinkedHashSet<>();
+    }
+
+    @Override
+    public String getColumnName() {
+        return columnName;
+    }
+
+    @Override
+    public String getKind() {
+        return KIND;
+    }
+
+    @Override
+    public void add(Object key, Row row) {
+        double numericKey = ColumnType.toDouble(key);
+        if (Double.isNaN(numericKey)) {
+            unorderedRows.add(row);
+        } else {
+            tree.insert(numericKey + 0.0, row);  // + 0.0 folds -0.0 into 0.0, they compare equal in a condition
+        }
+    }
+
+    @Override
+    public void remove(Object key, Row row) {
+        double numericKey = ColumnType.toDouble(key);
+        if (Double.isNaN(numericKey)) {
+            unorderedRows.remove(row);
+        } else {
+            tree.remove(numericKey + 0.0, row);
+        }
+    }
+
+    @Override
+    public void rebuild(List<Row> rows, int ordinal) {
+        tree.clear();
+        unorderedRows.clear();
+        for (Row row : rows) {
+            add(row.getValue(ordinal), row);
+        }
+    }
+
+    /* The rows in the range in ascending order, or null when there are more than limit of them */
+    public List<Row> range(double lower, boolean lowerInclusive, double upper, boolean upperInclusive, int limit) {
+        List<Row> rangeRows = new ArrayList<>();
+        boolean complete = tree.scan(lower, lowerInclusive, upper, upperInclusive, row -> {
+            rangeRows.add(row);
+            return rangeRows.size() <= limit;
+        });
+        return complete ? rangeRows : null;
+    }
+
+    /* Every row in the order of Table.valueOrder: numbers ascending, then the other values */
+    public List<Row> orderedRows(int ordinal) {
+        List<Row> orderedRows = new ArrayList<>(tree.size() + unorderedRows.size());
+        tree.scan(Double.NEGATIVE_INFINITY, true, Double.POSITIVE_INFINITY, true, orderedRows::add);
+        List<Row> otherRows = new ArrayList<>(unorderedRows);
+        otherRows.sort(Table.valueOrder(ordinal));
+        orderedRows.addAll(otherRows);
+        return orderedRows;
+    }
+}
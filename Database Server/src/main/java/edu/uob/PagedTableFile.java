@@ -0,0 +1,493 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+
+/* The binary table file: a sequence of pages of PAGE_SIZE bytes, a page holding a row larger than that spans
+   several. Every page starts with a CRC32 of the rest of the page and the number of PAGE_SIZE blocks it spans.
+   The first page is the table header:
+       magic, format version, page size, next row id, column count, then each column name
+   and the others hold rows:
+       row count, then per row: id, value count, then each value as its length and its UTF-8 bytes.
+   Values are stored as the text they were inserted with, spaces and all, so nothing is lost to padding.
+   The file remembers which page holds each row and keeps a free-space map of the pages, so a checkpoint only
+   rewrites the pages whose rows changed. Those pages go to a double-write file first and only then in place,
+   a page torn by a crash is restored from its copy when the table is read again */
+public class PagedTableFile {
+    public static final String EXTENSION = ".tbl";
+    public static final int PAGE_SIZE = 8192;
+    private static final String DOUBLE_WRITE_EXTENSION = ".dwb";
+    private static final int MAGIC = 0x554F4254; // "UOBT"
+    private static final int FORMAT_VERSION = 1;
+    /* crc and span */
+    private static final int PAGE_HEADER_SIZE = 8;
+    /* a data page adds its row count */
+    private static final int DATA_HEADER_SIZE = PAGE_HEADER_SIZE + 4;
+
+    private static final class Page {
+        final long firstBlock;
+        final int span;
+        /* id -> size of the row's record, in the order the rows are stored */
+        final Map<Integer, Integer> recordSizes = new LinkedHashMap<>();
+        int usedBytes = DATA_HEADER_SIZE;
+        boolean dirty;
+
+        Page(long firstBlock, int span) {
+            this.firstBlock = firstBlock;
+            this.span = span;
+        }
+
+        int freeBytes() {
+            return span * PAGE_SIZE - usedBytes;
+        }
+    }
+
+    private final Path path;
+    private int headerSpan;
+    private final List<Page> pages = new ArrayList<>();
+    /* row id -> the page holding the row */
+    private final Map<Integer, Page> pageOfRow = new HashMap<>();
+    /* the pages with free space, smallest first, so a row goes to the fullest page it fits in */
+    private final TreeSet<Page> freeSpaceMap = new TreeSet<>(Comparator.comparingInt(Page::freeBytes).thenComparingLong(page -> page.firstBlock));
+    /* the block after the last page */
+    private long nextBlock;
+
+    public PagedTableFile(Path path) {
+        this.path = path;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    private Path getDoubleWritePath() {
+        return path.resolveSibling(path.getFileName() + DOUBLE_WRITE_EXTENSION);
+    }
+
+    /* Read a table file, finishing first a checkpoint that a crash interrupted */
+    public static Table read(Path path) throws IOException {
+        PagedTableFile file = new PagedTableFile(path);
+        file.recover();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = file.readPage(channel, 0);
+            if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION || header.getInt() != PAGE_SIZE) {
+                throw new IOException("The file " + path + " is not a table file this server can read.");
+            }
+            int nextRowId = header.getInt();
+            int columnCount = header.getInt();
+            List<String> columnNames = new ArrayList<>(columnCount);
+            for (int i = 0; i < columnCount; i++) {
+                columnNames.add(getString(header));
+            }
+            String tableName = path.getFileName().toString().replace(EXTENSION, "");
+            Table table = new Table(tableName, columnNames);
+            table.tablePath = path;
+            file.headerSpan = header.getInt(4);
+
+            /* Parse the pages in chunks of whole pages on the loader's pool. Only the first chunk is known to start
+               with a page, the others look for their first page, so check that every chunk starts where the one
+               before it ended and read a chunk again from there when it does not */
+            long blockCount = channel.size() / PAGE_SIZE;
+            long chunkBlocks = Math.max(1, TableLoader.chunkSize(channel.size()) / PAGE_SIZE);
+            int rowWidth = table.columns.size();
+            List<Callable<PageChunk>> tasks = new ArrayList<>();
+            for (long start = file.headerSpan; start < blockCount; start += chunkBlocks) {
+                long chunkStart = start;
+                long chunkEnd = Math.min(blockCount, start + chunkBlocks);
+                boolean startsWithPage = start == file.headerSpan;
+                tasks.add(() -> file.readPages(channel, chunkStart, chunkEnd, startsWithPage, rowWidth));
+            }
+            long block = file.headerSpan;
+            for (PageChunk chunk : TableLoader.parseAll(tasks)) {
+                if (block >= chunk.end) {
+                    // a page of the chunk before runs over this whole chunk
+                    continue;
+                }
+                if (chunk.firstPage != block) {
+                    chunk = file.readPages(channel, block, chunk.end, true, rowWidth);
+                }
+                for (Page page : chunk.pages) {
+                    file.addPage(page);
+                    for (int id : page.recordSizes.keySet()) {
+                        file.pageOfRow.put(id, page);
+                    }
+                }
+                table.appendLoadedRows(chunk.rows);
+                block = chunk.next;
+            }
+            file.nextBlock = block;
+            table.nextRowId = Math.max(table.nextRowId, nextRowId);
+            table.setPagedFile(file);
+            return table;
+        }
+    }
+
+    /* The pages that start in the blocks from start to end, and their rows */
+    private static final class PageChunk {
+        final long end;
+        final List<Page> pages = new ArrayList<>();
+        final TableLoader.Chunk rows;
+        /* the first block of the first page, -1 when no page starts in the chunk */
+        long firstPage = -1;
+        /* the block after the last page */
+        long next;
+
+        PageChunk(long end, int columnCount) {
+            this.end = end;
+            this.rows = new TableLoader.Chunk(columnCount);
+        }
+    }
+
+    /* Parse the pages starting in a range of blocks, mapped into memory. Unless the range is known to start with
+       a page, its first page is the first block with a valid span and checksum: a block in the middle of a page
+       spanning several has neither */
+    private PageChunk readPages(FileChannel channel, long start, long end, boolean startsWithPage, int columnCount) throws IOException {
+        PageChunk chunk = new PageChunk(end, columnCount);
+        long blockCount = channel.size() / PAGE_SIZE;
+        ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start * PAGE_SIZE, (end - start) * PAGE_SIZE);
+        long block = start;
+        if (!startsWithPage) {
+            while (block < end && mapPage(channel, region, start, block, blockCount) == null) {
+                block++;
+            }
+            if (block == end) {
+                return chunk;
+            }
+        }
+        chunk.firstPage = block;
+        while (block < end) {
+            ByteBuffer data = mapPage(channel, region, start, block, blockCount);
+            if (data == null) {
+                throw new IOException("Page " + block + " of " + path + " is damaged.");
+            }
+            Page page = new Page(block, data.getInt(4));
+            int rowCount = data.getInt();
+            for (int i = 0; i < rowCount; i++) {
+                int recordStart = data.position();
+                int id = data.getInt();
+                int valueCount = data.getInt();
+                Object[] values = chunk.rows.newValues();
+                for (int j = 0; j < valueCount; j++) {
+                    int length = data.getInt();
+                    chunk.rows.setValue(values, j + 1, chunk.rows.decode(data, data.position(), length));
+                    data.position(data.position() + length);
+                }
+                chunk.rows.addRow(id, values);
+                page.recordSizes.put(id, data.position() - recordStart);
+                page.usedBytes += data.position() - recordStart;
+            }
+            chunk.pages.add(page);
+            block += page.span;
+        }
+        chunk.next = block;
+        return chunk;
+    }
+
+    /* The page starting at a block as a buffer positioned after its page header, null when its span or checksum is
+       wrong. The page is a slice of the mapped region, or mapped by itself when it runs past the end of the region */
+    private static ByteBuffer mapPage(FileChannel channel, ByteBuffer region, long regionStart, long block, long blockCount) throws IOException {
+        int offset = (int) ((block - regionStart) * PAGE_SIZE);
+        int span = region.getInt(offset + 4);
+        if (span < 1 || span > blockCount - block || span > Integer.MAX_VALUE / PAGE_SIZE) {
+            return null;
+        }
+        ByteBuffer page = offset + (long) span * PAGE_SIZE <= region.capacity()
+                ? region.slice(offset, span * PAGE_SIZE)
+                : channel.map(FileChannel.MapMode.READ_ONLY, block * PAGE_SIZE, (long) span * PAGE_SIZE);
+        if (page.getInt(0) != checksum(page)) {
+            return null;
+        }
+        page.position(PAGE_HEADER_SIZE);
+        return page;
+    }
+
+    /* A page as a buffer positioned after its page header, its checksum verified */
+    private ByteBuffer readPage(FileChannel channel, long block) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(PAGE_HEADER_SIZE);
+        readFully(channel, header, block * PAGE_SIZE);
+        int span = header.getInt(4);
+        if (span < 1 || (block + span) * PAGE_SIZE > channel.size()) {
+            throw new IOException("Page " + block + " of " + path + " is damaged.");
+        }
+        ByteBuffer page = ByteBuffer.allocate(span * PAGE_SIZE);
+        readFully(channel, page, block * PAGE_SIZE);
+        if (page.getInt(0) != checksum(page)) {
+            throw new IOException("Page " + block + " of " + path + " is damaged.");
+        }
+        page.position(PAGE_HEADER_SIZE);
+        return page;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+    }
+
+    /* The pages in the double-write file are complete copies of what was being written in place when the
+       server stopped. A double-write file that is itself incomplete means the table file was not touched yet */
+    private void recover() throws IOException {
+        Path doubleWritePath = getDoubleWritePath();
+        if (!Files.exists(doubleWritePath)) {
+            return;
+        }
+        ByteBuffer copies = ByteBuffer.wrap(Files.readAllBytes(doubleWritePath));
+        List<Long> positions = new ArrayList<>();
+        List<ByteBuffer> images = new ArrayList<>();
+        while (copies.remaining() >= Long.BYTES + PAGE_HEADER_SIZE) {
+            long position = copies.getLong();
+            int span = copies.getInt(copies.position() + 4);
+            if (span < 1 || copies.remaining() < span * PAGE_SIZE) {
+                break;
+            }
+            ByteBuffer image = copies.slice();
+            image.limit(span * PAGE_SIZE);
+            if (image.getInt(0) != checksum(image)) {
+                break;
+            }
+            positions.add(position);
+            images.add(image);
+            copies.position(copies.position() + span * PAGE_SIZE);
+        }
+        if (copies.hasRemaining()) {
+            Files.delete(doubleWritePath);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < images.size(); i++) {
+                writeFully(channel, images.get(i), positions.get(i));
+            }
+            channel.force(false);
+        }
+        Files.delete(doubleWritePath);
+    }
+
+    /* Bring the file up to date with the table. Only the rows in changedRowIds have changed since the last write,
+       unless rewriteAll is set (a new table, or a change of its columns): then the file is written anew */
+    public void write(Table table, Set<Integer> changedRowIds, boolean rewriteAll) throws IOException {
+        if (rewriteAll || !Files.exists(path)) {
+            writeAll(table);
+            return;
+        }
+        Map<Integer, byte[]> records = new HashMap<>();
+        for (int id : changedRowIds) {
+            Page page = pageOfRow.remove(id);
+            if (page != null) {
+                freeSpaceMap.remove(page);
+                page.usedBytes -= page.recordSizes.remove(id);
+                page.dirty = true;
+                freeSpaceMap.add(page);
+            }
+            Row row = table.findRowById(id);
+            if (row != null) {
+                byte[] record = encodeRecord(table, row);
+                records.put(id, record);
+                place(id, record.length).dirty = true;
+            }
+        }
+
+        List<Long> positions = new ArrayList<>();
+        List<ByteBuffer> images = new ArrayList<>();
+        positions.add(0L);
+        images.add(encodeHeader(table, headerSpan));
+        for (Page page : pages) {
+            if (page.dirty) {
+                positions.add(page.firstBlock * PAGE_SIZE);
+                images.add(encodePage(table, page, records));
+                page.dirty = false;
+            }
+        }
+
+        Path doubleWritePath = getDoubleWritePath();
+        try (FileChannel copies = FileChannel.open(doubleWritePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer position = ByteBuffer.allocate(Long.BYTES);
+            long offset = 0;
+            for (int i = 0; i < images.size(); i++) {
+                position.clear();
+                position.putLong(positions.get(i)).flip();
+                writeFully(copies, position, offset);
+                writeFully(copies, images.get(i).duplicate(), offset + Long.BYTES);
+                offset += Long.BYTES + images.get(i).capacity();
+            }
+            copies.force(false);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < images.size(); i++) {
+                writeFully(channel, images.get(i), positions.get(i));
+            }
+            channel.force(false);
+        }
+        Files.deleteIfExists(doubleWritePath);
+    }
+
+    /* Lay the rows out again from the first page, into a new file that replaces the old one */
+    private void writeAll(Table table) throws IOException {
+        pages.clear();
+        pageOfRow.clear();
+        freeSpaceMap.clear();
+        ByteBuffer header = encodeHeader(table, 0);
+        headerSpan = header.getInt(4);
+        nextBlock = headerSpan;
+        Map<Integer, byte[]> records = new HashMap<>();
+        for (Row row : table.getRows()) {
+            byte[] record = encodeRecord(table, row);
+            records.put(row.getIdNumber(), record);
+            // appended rows fill the last page, then go to a new one
+            Page last = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+            if (last != null && last.freeBytes() >= record.length) {
+                freeSpaceMap.remove(last);
+                addRecord(last, row.getIdNumber(), record.length);
+                freeSpaceMap.add(last);
+            } else {
+                place(row.getIdNumber(), record.length);
+            }
+        }
+
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header, 0);
+            for (Page page : pages) {
+                writeFully(channel, encodePage(table, page, records), page.firstBlock * PAGE_SIZE);
+                page.dirty = false;
+            }
+            channel.force(false);
+        }
+        try {
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(getDoubleWritePath());
+    }
+
+    /* Find room for a record through the free-space map, or add a page for it */
+    private Page place(int id, int recordSize) {
+        Page probe = new Page(-1, 1);
+        probe.usedBytes = PAGE_SIZE - recordSize;
+        Page page = freeSpaceMap.ceiling(probe);
+        if (page == null) {
+            int span = (DATA_HEADER_SIZE + recordSize + PAGE_SIZE - 1) / PAGE_SIZE;
+            page = new Page(nextBlock, span);
+            nextBlock += span;
+            page.dirty = true;
+            addPage(page);
+        }
+        freeSpaceMap.remove(page);
+        addRecord(page, id, recordSize);
+        freeSpaceMap.add(page);
+        return page;
+    }
+
+    private void addPage(Page page) {
+        pages.add(page);
+        freeSpaceMap.add(page);
+    }
+
+    private void addRecord(Page page, int id, int recordSize) {
+        page.recordSizes.put(id, recordSize);
+        page.usedBytes += recordSize;
+        pageOfRow.put(id, page);
+    }
+
+    private static ByteBuffer encodeHeader(Table table, int span) throws IOException {
+        List<byte[]> names = new ArrayList<>();
+        int size = PAGE_HEADER_SIZE + 5 * Integer.BYTES;
+        for (Column column : table.columns.subList(1, table.columns.size())) {
+            byte[] name = column.getName().getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            size += Integer.BYTES + name.length;
+        }
+        int neededSpan = (size + PAGE_SIZE - 1) / PAGE_SIZE;
+        if (span != 0 && neededSpan > span) {
+            throw new IOException("The header of " + table.getName() + " no longer fits its page.");
+        }
+        ByteBuffer page = ByteBuffer.allocate((span != 0 ? span : neededSpan) * PAGE_SIZE);
+        page.position(PAGE_HEADER_SIZE);
+        page.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(PAGE_SIZE).putInt(table.nextRowId).putInt(names.size());
+        for (byte[] name : names) {
+            page.putInt(name.length).put(name);
+        }
+        return seal(page);
+    }
+
+    private static ByteBuffer encodePage(Table table, Page page, Map<Integer, byte[]> records) {
+        ByteBuffer buffer = ByteBuffer.allocate(page.span * PAGE_SIZE);
+        buffer.position(PAGE_HEADER_SIZE);
+        buffer.putInt(page.recordSizes.size());
+        for (int id : page.recordSizes.keySet()) {
+            byte[] record = records.get(id);
+            buffer.put(record != null ? record : encodeRecord(table, table.findRowById(id)));
+        }
+        return seal(buffer);
+    }
+
+    private static byte[] encodeRecord(Table table, Row row) {
+        int valueCount = table.columns.size() - 1;
+        byte[][] values = new byte[valueCount][];
+        int size = 2 * Integer.BYTES;
+        for (int i = 0; i < valueCount; i++) {
+            values[i] = row.getString(i + 1).getBytes(StandardCharsets.UTF_8);
+            size += Integer.BYTES + values[i].length;
+        }
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.putInt(row.getIdNumber()).putInt(valueCount);
+        for (byte[] value : values) {
+            record.putInt(value.length).put(value);
+        }
+        return record.array();
+    }
+
+    /* Fill in the span and the checksum of a page */
+    private static ByteBuffer seal(ByteBuffer page) {
+        page.putInt(4, page.capacity() / PAGE_SIZE);
+        page.putInt(0, checksum(page));
+        page.clear();
+        return page;
+    }
+
+    private static int checksum(ByteBuffer page) {
+        CRC32 crc = new CRC32();
+        ByteBuffer content = page.duplicate();
+        content.position(4);
+        crc.update(content);
+        return (int) crc.getValue();
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+
+    public void delete() throws IOException {
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(getDoubleWritePath());
+    }
+}
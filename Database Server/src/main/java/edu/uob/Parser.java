@@ -0,0 +1,502 @@
+package edu.uob;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/* A recursive descent parser for the query language, one method per rule of the grammar, reading the typed tokens
+   of a Lexer once from left to right and building the Statement they spell:
+
+   <Command>         ::=  <Use> | <Create> | <Drop> | <Alter> | <Insert> | <Select> | <Update> | <Delete> | <Join>
+                        | "BEGIN" | "COMMIT" | "ROLLBACK" | "SHOW " "STATS" | <Declare> | <Fetch> | "CLOSE " [CursorName]
+                        | <Prepare> | <Execute> | "DEALLOCATE " [StatementName] | "EXPLAIN " <Select> | <Copy>
+   <Condition>       ::=  <AndCondition> | <AndCondition> " OR " <Condition>
+   <AndCondition>    ::=  <Comparison> | <Comparison> " AND " <AndCondition>
+   <Comparison>      ::=  "(" <Condition> ")" | [AttributeName] <Comparator> [Value]
+
+   AND binds more tightly than OR, so "a == 1 OR b == 2 AND c == 3" is "a == 1 OR (b == 2 AND c == 3)".
+   A name may be any word but a reserved one (see ReservedWordsDetector). "?" stands for a value inside PREPARE */
+public class Parser {
+    private static final ReservedWordsDetector reservedWordsDetector = new ReservedWordsDetector();
+
+    private final Lexer lexer;
+    private int position;
+    private boolean parametersAllowed;
+    private int parameterCount;
+
+    public Parser(Lexer lexer) {
+        this.lexer = lexer;
+    }
+
+    /* Parse the whole command, which ends with ";" */
+    public Statement parse() throws ParseException {
+        position = 0;
+        Statement statement = command();
+        expectSymbol(";");
+        if (position < lexer.size()) {
+            throw error("Unexpected " + lexer.text(position) + " after the end of the command");
+        }
+        return statement;
+    }
+
+    private Statement command() throws ParseException {
+        Keyword keyword = position < lexer.size() && lexer.type(position) == Lexer.TokenType.KEYWORD ? lexer.keyword(position) : null;
+        if (keyword == null) {
+            throw error("Unrecognized command");
+        }
+        position++;
+        switch (keyword) {
+            case USE:
+                return new Statement.Named(Keyword.USE, name("a database"));
+            case CREATE:
+                return create();
+            case DROP:
+                return drop();
+            case ALTER:
+                return alter();
+            case INSERT:
+                return insert();
+            case SELECT:
+                return select();
+            case UPDATE:
+                return update();
+            case DELETE:
+                expect(Keyword.FROM);
+                String tableName = name("a table");
+                expect(Keyword.WHERE);
+                return new Statement.Delete(tableName, condition());
+            case JOIN:
+                return join();
+            case BEGIN:
+            case COMMIT:
+            case ROLLBACK:
+                return new Statement.Simple(keyword);
+            case SHOW:
+                expect(Keyword.STATS);
+                return new Statement.Simple(Keyword.SHOW);
+            case DECLARE:
+                String cursorName = label("a cursor");
+                expect(Keyword.CURSOR);
+                expect(Keyword.FOR);
+                expect(Keyword.SELECT);
+                return new Statement.Query(Keyword.DECLARE, cursorName, select());
+            case FETCH:
+                int count = integer("row count");
+                expect(Keyword.FROM);
+                return new Statement.Fetch(count, label("a cursor"));
+            case CLOSE:
+                return new Statement.Named(Keyword.CLOSE, label("a cursor"));
+            case PREPARE:
+                return prepare();
+            case EXECUTE:
+                return execute();
+            case DEALLOCATE:
+                return new Statement.Named(Keyword.DEALLOCATE, label("a prepared statement"));
+            case EXPLAIN:
+                expect(Keyword.SELECT);
+                return new Statement.Query(Keyword.EXPLAIN, null, select());
+            case COPY:
+                return copy();
+            default:
+                position--;
+                throw error("Unrecognized command");
+        }
+    }
+
+    /* "CREATE " "DATABASE " [DatabaseName] | "CREATE " "TABLE " [TableName] ["(" <AttributeList> ")"]
+     | "CREATE " "INDEX " "ON " [TableName] "(" [AttributeName] ")" [" USING " ("HASH" | "BTREE")] */
+    private Statement create() throws ParseException {
+        if (accept(Keyword.DATABASE)) {
+            return new Statement.DatabaseChange(Keyword.CREATE, name("a database"));
+        }
+        if (accept(Keyword.TABLE)) {
+            String tableName = name("a table");
+            List<String> columnNames = new ArrayList<>();
+            if (acceptSymbol("(")) {
+                do {
+                    columnNames.add(name("an attribute"));
+                } while (acceptSymbol(","));
+                expectSymbol(")");
+            }
+            return new Statement.TableChange(Keyword.CREATE, tableName, columnNames);
+        }
+        if (accept(Keyword.INDEX)) {
+            expect(Keyword.ON);
+            String tableName = name("a table");
+            expectSymbol("(");
+            String columnName = name("an attribute");
+            expectSymbol(")");
+            String indexKind = HashIndex.KIND;
+            if (accept(Keyword.USING)) {
+                indexKind = name("an index type").toUpperCase();
+            }
+            return new Statement.IndexChange(Keyword.CREATE, tableName, columnName, indexKind);
+        }
+        throw error("Expected DATABASE, TABLE or INDEX after CREATE");
+    }
+
+    /* "DROP " "DATABASE " [DatabaseName] | "DROP " "TABLE " [TableName] | "DROP " "INDEX " "ON " [TableName] "(" [AttributeName] ")" */
+    private Statement drop() throws ParseException {
+        if (accept(Keyword.DATABASE)) {
+            return new Statement.DatabaseChange(Keyword.DROP, name("a database"));
+        }
+        if (accept(Keyword.TABLE)) {
+            return new Statement.TableChange(Keyword.DROP, name("a table"), List.of());
+        }
+        if (accept(Keyword.INDEX)) {
+            expect(Keyword.ON);
+            String tableName = name("a table");
+            expectSymbol("(");
+            String columnName = name("an attribute");
+            expectSymbol(")");
+            return new Statement.IndexChange(Keyword.DROP, tableName, columnName, null);
+        }
+        throw error("Expected DATABASE, TABLE or INDEX after DROP");
+    }
+
+    /* "ALTER " "TABLE " [TableName] " " <AlterationType> " " [AttributeName]
+       <AlterationType>  ::=  "ADD" | "DROP" */
+    private Statement alter() throws ParseException {
+        expect(Keyword.TABLE);
+        String tableName = name("a table");
+        Keyword alteration;
+        if (accept(Keyword.ADD)) {
+            alteration = Keyword.ADD;
+        } else if (accept(Keyword.DROP)) {
+            alteration = Keyword.DROP;
+        } else {
+            throw error("Expected ADD or DROP");
+        }
+        return new Statement.AlterTable(tableName, alteration, name("an attribute"));
+    }
+
+    /* "INSERT " "INTO " [TableName] " VALUES" <Tuple> {"," <Tuple>}
+       <Tuple>           ::=  "(" <ValueList> ")" */
+    private Statement insert() throws ParseException {
+        expect(Keyword.INTO);
+        String tableName = name("a table");
+        expect(Keyword.VALUES);
+        List<List<Statement.Value>> tuples = new ArrayList<>();
+        do {
+            expectSymbol("(");
+            List<Statement.Value> values = new ArrayList<>();
+            do {
+                values.add(value());
+            } while (acceptSymbol(","));
+            expectSymbol(")");
+            tuples.add(values);
+        } while (acceptSymbol(","));
+        return new Statement.Insert(tableName, tuples);
+    }
+
+    /* "SELECT " <WildAttribList> " FROM " [TableName] [" WHERE " <Condition>] [<GroupBy>] [<OrderBy>] [<Limit>]
+       <WildAttribList>  ::=  "*" | <SelectItem> | <SelectItem> "," <WildAttribList>
+       <SelectItem>      ::=  [AttributeName] | <Function> "(" [AttributeName] ")" | "COUNT" "(" "*" ")"
+       <Function>        ::=  "COUNT" | "SUM" | "AVG" | "MIN" | "MAX"
+       <GroupBy>         ::=  " GROUP " " BY " [AttributeName]
+       <OrderBy>         ::=  " ORDER " " BY " [AttributeName] [" ASC" | " DESC"]
+       <Limit>           ::=  " LIMIT " [IntegerLiteral] [" OFFSET " [IntegerLiteral]]
+       A function name followed by "(" is a function, anywhere else it may name an attribute */
+    private Statement.Select select() throws ParseException {
+        List<String> columnNames = new ArrayList<>();
+        List<Statement.Aggregate> items = new ArrayList<>();
+        boolean aggregated = false;
+        if (!acceptSymbol("*")) {
+            do {
+                Keyword function = aggregateFunction();
+                if (function != null) {
+                    expectSymbol("(");
+                    String columnName = function == Keyword.COUNT && acceptSymbol("*") ? null : name("an attribute");
+                    expectSymbol(")");
+                    items.add(new Statement.Aggregate(function, columnName));
+                    aggregated = true;
+                } else {
+                    String columnName = name("an attribute");
+                    columnNames.add(columnName);
+                    items.add(new Statement.Aggregate(null, columnName));
+                }
+            } while (acceptSymbol(","));
+        }
+        expect(Keyword.FROM);
+        String tableName = name("a table");
+        LogicalExpression conditions = accept(Keyword.WHERE) ? condition() : new LogicalExpression("AND");
+        String groupColumn = null;
+        if (accept(Keyword.GROUP)) {
+            expect(Keyword.BY);
+            groupColumn = name("an attribute");
+            aggregated = true;
+        }
+        String orderColumn = null;
+        boolean descending = false;
+        if (accept(Keyword.ORDER)) {
+            expect(Keyword.BY);
+            orderColumn = name("an attribute");
+            descending = accept(Keyword.DESC);
+            if (!descending) {
+                accept(Keyword.ASC);
+            }
+        }
+        int limit = -1;
+        int offset = 0;
+        if (accept(Keyword.LIMIT)) {
+            limit = integer("LIMIT");
+            if (accept(Keyword.OFFSET)) {
+                offset = integer("OFFSET");
+            }
+        }
+        return new Statement.Select(columnNames, aggregated ? items : List.of(), tableName, conditions, groupColumn,
+                orderColumn, descending, limit, offset);
+    }
+
+    /* The aggregate function at the current token, when a "(" follows it */
+    private Keyword aggregateFunction() {
+        if (position + 1 >= lexer.size() || lexer.type(position) != Lexer.TokenType.KEYWORD || !lexer.is(position + 1, "(")) {
+            return null;
+        }
+        Keyword keyword = lexer.keyword(position);
+        switch (keyword) {
+            case COUNT:
+            case SUM:
+            case AVG:
+            case MIN:
+            case MAX:
+                position++;
+                return keyword;
+            default:
+                return null;
+        }
+    }
+
+    /* "UPDATE " [TableName] " SET " <NameValueList> " WHERE " <Condition>
+       <NameValueList>   ::=  <NameValuePair> | <NameValuePair> "," <NameValueList>
+       <NameValuePair>   ::=  [AttributeName] "=" [Value] */
+    private Statement update() throws ParseException {
+        String tableName = name("a table");
+        expect(Keyword.SET);
+        List<String> columnNames = new ArrayList<>();
+        List<Statement.Value> values = new ArrayList<>();
+        do {
+            columnNames.add(name("an attribute"));
+            expectSymbol("=");
+            values.add(value());
+        } while (acceptSymbol(","));
+        expect(Keyword.WHERE);
+        return new Statement.Update(tableName, columnNames, values, condition());
+    }
+
+    /* "JOIN " [TableName] " AND " [TableName] " ON " [AttributeName] " AND " [AttributeName] */
+    private Statement join() throws ParseException {
+        String firstTableName = name("a table");
+        expect(Keyword.AND);
+        String secondTableName = name("a table");
+        expect(Keyword.ON);
+        String firstAttribute = name("an attribute");
+        expect(Keyword.AND);
+        return new Statement.Join(firstTableName, secondTableName, firstAttribute, name("an attribute"));
+    }
+
+    /* "COPY " [TableName] (" FROM " | " TO ") [StringLiteral], the literal naming a file in the server's copy directory */
+    private Statement copy() throws ParseException {
+        String tableName = name("a table");
+        Keyword direction;
+        if (accept(Keyword.FROM)) {
+            direction = Keyword.FROM;
+        } else if (accept(Keyword.TO)) {
+            direction = Keyword.TO;
+        } else {
+            throw error("Expected FROM or TO");
+        }
+        if (position >= lexer.size() || !lexer.isStringLiteral(position)) {
+            throw error("Expected the file name in quotes");
+        }
+        return new Statement.Copy(tableName, direction, lexer.value(position++));
+    }
+
+    /* "PREPARE " [StatementName] " AS " <Command>, any command but PREPARE, EXECUTE and DEALLOCATE */
+    private Statement prepare() throws ParseException {
+        String statementName = label("a prepared statement");
+        expect(Keyword.AS);
+        if (lexer.is(position, Keyword.PREPARE) || lexer.is(position, Keyword.EXECUTE) || lexer.is(position, Keyword.DEALLOCATE)) {
+            throw error(lexer.keyword(position) + " cannot be prepared");
+        }
+        parametersAllowed = true;
+        parameterCount = 0;
+        Statement statement = command();
+        parametersAllowed = false;
+        return new Statement.Prepare(statementName, statement, parameterCount);
+    }
+
+    /* "EXECUTE " [StatementName] [" (" <ValueList> ")"] */
+    private Statement execute() throws ParseException {
+        String statementName = label("a prepared statement");
+        List<String> values = new ArrayList<>();
+        if (acceptSymbol("(")) {
+            do {
+                values.add(value().text);
+            } while (acceptSymbol(","));
+            expectSymbol(")");
+        }
+        return new Statement.Execute(statementName, values);
+    }
+
+    /* <Condition>, the root of a WHERE clause is always a LogicalExpression */
+    private LogicalExpression condition() throws ParseException {
+        Expression expression = orCondition();
+        if (expression instanceof LogicalExpression) {
+            return (LogicalExpression) expression;
+        }
+        LogicalExpression root = new LogicalExpression("AND");
+        root.addExpression(expression);
+        return root;
+    }
+
+    private Expression orCondition() throws ParseException {
+        Expression first = andCondition();
+        if (!lexer.is(position, Keyword.OR)) {
+            return first;
+        }
+        LogicalExpression or = new LogicalExpression("OR");
+        or.addExpression(first);
+        while (accept(Keyword.OR)) {
+            or.addExpression(andCondition());
+        }
+        return or;
+    }
+
+    private Expression andCondition() throws ParseException {
+        Expression first = comparison();
+        if (!lexer.is(position, Keyword.AND)) {
+            return first;
+        }
+        LogicalExpression and = new LogicalExpression("AND");
+        and.addExpression(first);
+        while (accept(Keyword.AND)) {
+            and.addExpression(comparison());
+        }
+        return and;
+    }
+
+    /* <Comparator>      ::=  "==" | ">" | "<" | ">=" | "<=" | "!=" | " LIKE " */
+    private Expression comparison() throws ParseException {
+        if (acceptSymbol("(")) {
+            Expression expression = orCondition();
+            expectSymbol(")");
+            return expression;
+        }
+        String attributeName = name("an attribute");
+        String comparator;
+        if (accept(Keyword.LIKE)) {
+            comparator = "LIKE";
+        } else if (position < lexer.size() && lexer.type(position) == Lexer.TokenType.OPERATOR && !lexer.is(position, "=")) {
+            comparator = lexer.text(position++);
+            // "> =" written apart is still ">="
+            if ((comparator.equals(">") || comparator.equals("<")) && lexer.is(position, "=")) {
+                position++;
+                comparator += "=";
+            }
+        } else {
+            throw error("Expected a comparator after " + attributeName);
+        }
+        Statement.Value value = value();
+        Condition condition = new Condition(attributeName, comparator, value.parameter == -1 ? value.text : "?");
+        condition.parameter = value.parameter;
+        return condition;
+    }
+
+    /* [Value], a literal without its quotes or a word, or a parameter inside PREPARE */
+    private Statement.Value value() throws ParseException {
+        if (position >= lexer.size()) {
+            throw error("Expected a value");
+        }
+        switch (lexer.type(position)) {
+            case LITERAL:
+            case IDENTIFIER:
+            case KEYWORD:
+                return new Statement.Value(lexer.value(position++), -1);
+            case PARAMETER:
+                if (!parametersAllowed) {
+                    throw error("A parameter can only be used in PREPARE");
+                }
+                position++;
+                return new Statement.Value("?", parameterCount++);
+            default:
+                throw error("Expected a value instead of " + lexer.text(position));
+        }
+    }
+
+    /* The name of a database, table or attribute */
+    private String name(String what) throws ParseException {
+        return word(what, false);
+    }
+
+    /* The name of a cursor or a prepared statement, which lives only in the session and may be any word */
+    private String label(String what) throws ParseException {
+        return word(what, true);
+    }
+
+    private String word(String what, boolean reservedAllowed) throws ParseException {
+        if (position < lexer.size()) {
+            Lexer.TokenType type = lexer.type(position);
+            boolean word = type == Lexer.TokenType.IDENTIFIER || type == Lexer.TokenType.KEYWORD
+                    || (type == Lexer.TokenType.LITERAL && !lexer.isStringLiteral(position));
+            if (word) {
+                String name = lexer.text(position);
+                if (reservedAllowed || !reservedWordsDetector.isReservedWord(name)) {
+                    position++;
+                    return name;
+                }
+            }
+        }
+        throw error("Expected the name of " + what);
+    }
+
+    private int integer(String what) throws ParseException {
+        if (position < lexer.size() && lexer.type(position) == Lexer.TokenType.LITERAL && !lexer.isStringLiteral(position)) {
+            try {
+                int value = Integer.parseInt(lexer.text(position));
+                if (value >= 0) {
+                    position++;
+                    return value;
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+        }
+        throw error("Invalid " + what + ", expected a whole number");
+    }
+
+    private boolean accept(Keyword keyword) {
+        if (lexer.is(position, keyword) && lexer.type(position) == Lexer.TokenType.KEYWORD) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(Keyword keyword) throws ParseException {
+        if (!accept(keyword)) {
+            throw error("Expected " + keyword);
+        }
+    }
+
+    private boolean acceptSymbol(String symbol) {
+        if (lexer.is(position, symbol)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expectSymbol(String symbol) throws ParseException {
+        if (!acceptSymbol(symbol)) {
+            throw error("Expected \"" + symbol + "\"");
+        }
+    }
+
+    private ParseException error(String message) {
+        if (position < lexer.size()) {
+            return new ParseException(message + " at " + lexer.text(position) + ".", lexer.start(position));
+        }
+        return new ParseException(message + " at the end of the command.", position);
+    }
+}
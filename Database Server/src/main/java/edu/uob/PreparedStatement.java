@@ -0,0 +1,22 @@
+package edu.uob;
+
+/* A statement parsed once by PREPARE and run by EXECUTE with values in place of its "?" parameters:
+       PREPARE byName AS SELECT mark FROM marks WHERE name == ?;
+       EXECUTE byName ('Simon');
+   A parameter stands for a value. Binding copies the parts of the statement that hold parameters with the values
+   put in (see Statement.bind), so the statement is never tokenized or parsed again */
+public class PreparedStatement {
+    final String name;
+    final Statement statement;
+    private final int parameterCount;
+
+    PreparedStatement(String name, Statement statement, int parameterCount) {
+        this.name = name;
+        this.statement = statement;
+        this.parameterCount = parameterCount;
+    }
+
+    public int getParameterCount() {
+        return parameterCount;
+    }
+}
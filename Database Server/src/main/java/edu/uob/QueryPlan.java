@@ -0,0 +1,118 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* A SELECT made ready to run against its table: the columns it prints, checked once, and the query it asks of
+   Table.scanRows, whose rows an aggregate query sends through a HashAggregate. SELECT, DECLARE and EXPLAIN all
+   run one. The statement itself is cached between runs, but the plan is made each time, because an index created
+   or dropped since changes how the table is best read */
+public class QueryPlan {
+    private final Table table;
+    private final Statement.Select select;
+    private final List<String> selectedColumns;
+
+    QueryPlan(Table table, Statement.Select select, List<String> selectedColumns) {
+        this.table = table;
+        this.select = select;
+        this.selectedColumns = selectedColumns;
+    }
+
+    public Table getTable() {
+        return table;
+    }
+
+    public List<String> getSelectedColumns() {
+        return selectedColumns;
+    }
+
+    /* The rows of the query as the snapshot sees them one at a time, past the offset already. SELECT and the
+       cursor keep to the limit as they write the rows */
+    public Table.RowScan scan(long snapshot) {
+        Table.RowScan scan = table.scanRows(select.conditions, select.orderColumn, select.descending, snapshot);
+        for (int skipped = 0; skipped < select.offset && scan.hasNext(); skipped++) {
+            scan.next();
+        }
+        return scan;
+    }
+
+    public int getLimit() {
+        return select.limit;
+    }
+
+    /* The result rows of an aggregate query, the rows passing the WHERE clause streamed through a HashAggregate */
+    public List<List<String>> aggregate(long snapshot) {
+        HashAggregate aggregate = new HashAggregate(table, select.aggregates, select.groupColumn);
+        int rowCount = isRowCount() ? table.getCommittedRowCount(snapshot) : -1;
+        if (rowCount != -1) {
+            aggregate.addRowCount(rowCount);
+        } else {
+            Table.RowScan scan = table.scanRows(select.conditions, null, false, snapshot);
+            while (scan.hasNext()) {
+                aggregate.add(scan.next());
+            }
+        }
+        return aggregate.results(select.orderColumn != null, select.descending, select.offset, select.limit);
+    }
+
+    /* COUNT(*) alone over the whole table, which the table's row count answers without a scan */
+    private boolean isRowCount() {
+        if (select.groupColumn != null || !select.conditions.expressions.isEmpty()) {
+            return false;
+        }
+        for (Statement.Aggregate item : select.aggregates) {
+            if (item.function != Keyword.COUNT || item.columnName != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* The steps of the query as a table of step and detail, in the order they run */
+    public Table explain(long snapshot) {
+        Table plan = new Table("plan", List.of("step", "detail"));
+        if (select.isAggregate() && isRowCount() && table.getCommittedRowCount(snapshot) != -1) {
+            plan.insertRow(List.of("count", "the row count kept for " + table.getName() + ", no scan"));
+            plan.insertRow(List.of("columns", String.join(", ", selectedColumns)));
+            return plan;
+        }
+        // an aggregate query reads its rows in no particular order, the groups are ordered afterwards
+        String scanOrder = select.isAggregate() ? null : select.orderColumn;
+        Table.AccessPath accessPath = table.explainScan(select.conditions, scanOrder, snapshot);
+        plan.insertRow(List.of("scan", accessPath.access + " of " + table.getName() + ", " + accessPath.candidateCount + " candidate rows"));
+        if (!select.conditions.expressions.isEmpty()) {
+            plan.insertRow(List.of("filter", select.conditions.toString()));
+        }
+        if (select.isAggregate()) {
+            List<String> functions = new ArrayList<>();
+            for (Statement.Aggregate item : select.aggregates) {
+                if (item.function != null) {
+                    functions.add(item.toString());
+                }
+            }
+            String grouping = select.groupColumn != null ? "hash on " + select.groupColumn : "one group";
+            plan.insertRow(List.of("aggregate", grouping + (functions.isEmpty() ? "" : ": " + String.join(", ", functions))));
+            if (select.orderColumn != null) {
+                plan.insertRow(List.of("order", select.orderColumn + (select.descending ? " DESC" : " ASC") + ", the groups sorted"));
+            }
+            if (select.limit != -1 || select.offset != 0) {
+                String limit = select.limit != -1 ? Integer.toString(select.limit) : "all";
+                plan.insertRow(List.of("limit", limit + " groups after " + select.offset));
+            }
+            plan.insertRow(List.of("columns", String.join(", ", selectedColumns)));
+            return plan;
+        }
+        if (select.orderColumn != null) {
+            String direction = select.descending ? " DESC" : " ASC";
+            plan.insertRow(List.of("order", select.orderColumn + direction + (accessPath.inOrder ? ", in index order" : ", sorted")));
+        }
+        if (select.limit != -1 || select.offset != 0) {
+            String limit = select.limit != -1 ? Integer.toString(select.limit) : "all";
+            // without a sort the scan stops once it has the rows it needs
+            String stop = select.orderColumn == null || accessPath.inOrder ? ", the scan stops early" : "";
+            plan.insertRow(List.of("limit", limit + " after " + select.offset + stop));
+        }
+        plan.insertRow(List.of("columns", String.join(", ", selectedColumns)));
+        return plan;
+    }
+}
@@ -0,0 +1,73 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.List;
+
+/* Writes rows the way the server prints them: a line of column names, then a line per row, every value padded
+   with spaces to line up. A result goes out a value at a time to the connection's writer, which sends it on in
+   chunks of its buffer, so a SELECT never holds its whole result in memory (see DBServer.handleCommand) */
+public class ResultWriter {
+    private static final int COLUMN_WIDTH = 18;
+    /* the padding of every value shorter than a column, cut from one string */
+    private static final String SPACES = " ".repeat(COLUMN_WIDTH);
+
+    private final Writer out;
+
+    public ResultWriter(Writer out) {
+        this.out = out;
+    }
+
+    public void writeColumnNames(List<String> columnNames) throws IOException {
+        for (String columnName : columnNames) {
+            writeValue(columnName);
+        }
+        endRow();
+    }
+
+    /* The values of a row at the given ordinals */
+    public void writeRow(Row row, int[] ordinals) throws IOException {
+        writeValues(row.getValues(), ordinals);
+        endRow();
+    }
+
+    /* Values of a row read at once (see Row.getValues) at the given ordinals, the row is not ended */
+    public void writeValues(Object[] values, int[] ordinals) throws IOException {
+        for (int ordinal : ordinals) {
+            // A column added after the row was created has no slot yet
+            writeValue(ColumnType.render(ordinal < values.length ? values[ordinal] : null));
+        }
+    }
+
+    /* Rows the database lock is no longer held for, up to limit of them (-1 for all). Returns how many were written.
+       Each row is checked against the table's schema version once its values are read, and the scan once it has
+       run out, since a condition tested with moved ordinals would leave rows out (see Table.getSchemaVersion) */
+    public int writeRows(Table table, int schemaVersion, Iterator<Row> rows, int[] ordinals, int limit) throws IOException {
+        int written = 0;
+        while ((limit == -1 || written < limit) && rows.hasNext()) {
+            Object[] values = rows.next().getValues();
+            table.checkSchemaVersion(schemaVersion);
+            writeValues(values, ordinals);
+            endRow();
+            written++;
+        }
+        table.checkSchemaVersion(schemaVersion);
+        return written;
+    }
+
+    public void writeValue(String value) throws IOException {
+        writePadded(out, value);
+    }
+
+    public void endRow() throws IOException {
+        out.write('\n');
+    }
+
+    static void writePadded(Writer out, String value) throws IOException {
+        out.write(value);
+        if (value.length() < COLUMN_WIDTH) {
+            out.write(SPACES, 0, COLUMN_WIDTH - value.length());
+        }
+    }
+}
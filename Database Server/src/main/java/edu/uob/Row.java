@@ -1,46 +1,146 @@
 package edu.uob;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
+/* One version of a row. The values are kept in an array indexed by column ordinal (see Table.getColumnIndex),
+   slot 0 always holds the id. Values are stored parsed, see ColumnType.
+   UPDATE does not change a version but puts a new one in front of it, and DELETE only ends the newest version,
+   so a reader keeps seeing the versions of its snapshot (see VersionClock) while writers carry on.
+   A version is stamped with the commit that created it and the commit that replaced or deleted it;
+   a stamp below zero belongs to a transaction that has not committed yet */
 public class Row {
+    /* the deleted stamp of a version nothing has replaced or deleted */
+    public static final long ALIVE = Long.MAX_VALUE;
+    /* the snapshot of writers: the newest version of every row that is not deleted, committed or not */
+    public static final long LATEST = Long.MAX_VALUE;
+
     private int id;
-    private Map<String, String> valuesMap = new HashMap<>();
+    /* volatile so that a reader without the database lock sees a whole array, see Table.getSchemaVersion */
+    private volatile Object[] values;
+    private volatile long created;
+    private volatile long deleted = ALIVE;
+    /* the version this one replaced, null once no snapshot can need it any more */
+    private volatile Row older;
+    /* position of the row in Table.rows */
+    int slot;
 
-    public Row(int id, List<String> attributeNames, List<String> values) {
+    public Row(int id, Object[] values) {
         this.id = id;
-        valuesMap.put("id", Integer.toString(id));
-
-        for (int i = 1; i <attributeNames.size(); i++) {
-            if (i <= values.size()) {
-                valuesMap.put(attributeNames.get(i), values.get(i-1));
-            } else {
-                valuesMap.put(attributeNames.get(i), null);
-            }
-        }
+        this.values = values;
+        this.values[0] = (long) id;
     }
 
     public String getId() {
         return Integer.toString(id);
     }
 
-    public String getValue(String attributeName) {
-        for (Map.Entry<String, String> entry : valuesMap.entrySet()) {
-            // Check if the entry's key matches attributeName, ignoring case differences
-            if (entry.getKey().equalsIgnoreCase(attributeName)) {
-                return entry.getValue();
+    public int getIdNumber() {
+        return id;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public void setCreated(long created) {
+        this.created = created;
+    }
+
+    public long getDeleted() {
+        return deleted;
+    }
+
+    public void setDeleted(long deleted) {
+        this.deleted = deleted;
+    }
+
+    public Row getOlder() {
+        return older;
+    }
+
+    public void setOlder(Row older) {
+        this.older = older;
+    }
+
+    /* Replaced or deleted, committed or not: not part of the LATEST snapshot */
+    public boolean isDeleted() {
+        return deleted != ALIVE;
+    }
+
+    public boolean isVisibleAt(long snapshot) {
+        if (snapshot == LATEST) {
+            return deleted == ALIVE;
+        }
+        long createdStamp = created;
+        long deletedStamp = deleted;
+        return createdStamp >= 0 && createdStamp <= snapshot && (deletedStamp < 0 || deletedStamp > snapshot);
+    }
+
+    /* The version of this row a snapshot sees, starting from this version and going back in time */
+    public Row versionAt(long snapshot) {
+        for (Row version = this; version != null; version = version.older) {
+            if (version.isVisibleAt(snapshot)) {
+                return version;
             }
         }
-        // If no matching key is found, return an empty string
-        return "";
+        return null;
+    }
+
+    /* A copy of the values for the version that will replace this one */
+    public Object[] copyValues(int columnCount) {
+        Object[] copy = new Object[Math.max(columnCount, values.length)];
+        System.arraycopy(values, 0, copy, 0, values.length);
+        return copy;
+    }
+
+    /* The stored value: a Long, Double, Boolean or String, or null when the value is empty */
+    public Object getValue(int ordinal) {
+        // A column added after this row was created has no slot yet
+        Object[] currentValues = values;
+        if (ordinal < 0 || ordinal >= currentValues.length) {
+            return null;
+        }
+        return currentValues[ordinal];
+    }
+
+    /* Every value at once. A schema change gives the row a new array rather than shifting this one (see dropValue),
+       so the values keep the ordinals they were read with */
+    Object[] getValues() {
+        return values;
+    }
+
+    /* The value as the text it was inserted with */
+    public String getString(int ordinal) {
+        return ColumnType.render(getValue(ordinal));
+    }
+
+    /* Replace every value at once, the id stays. Only while loading, when nobody reads the table yet */
+    public void replaceValues(Object[] values) {
+        this.values = values;
+        this.values[0] = (long) id;
     }
 
-    public void updateValue(String attributeName, String value) {
-        valuesMap.put(attributeName, value);
+    /* Give a row read by COPY its id, once the rows before it in the file have been counted. Only before the table holds it */
+    void setId(int id) {
+        this.id = id;
+        this.values[0] = (long) id;
     }
 
-    public void dropValue(String attributeName) {
-        valuesMap.remove(attributeName);
+    /* Used when a column's type is widened, readers see the value before or after, which render the same */
+    public void updateValue(int ordinal, Object value) {
+        if (ordinal >= values.length) {
+            Object[] grownValues = new Object[ordinal + 1];
+            System.arraycopy(values, 0, grownValues, 0, values.length);
+            values = grownValues;
+        }
+        values[ordinal] = value;
+    }
+
+    public void dropValue(int ordinal) {
+        if (ordinal >= values.length) {
+            return;
+        }
+        Object[] remainingValues = new Object[values.length - 1];
+        System.arraycopy(values, 0, remainingValues, 0, ordinal);
+        System.arraycopy(values, ordinal + 1, remainingValues, ordinal, values.length - ordinal - 1);
+        values = remainingValues;
     }
 }
@@ -0,0 +1,147 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/* The state of one client connection: the database chosen with USE, the changes of an open transaction,
+   the cursors declared and the statements prepared. Every connection gets its own session, so clients never see each other's USE */
+public class Session {
+    /* How many cursors a session can hold open, "-Dedu.uob.maxCursors=4" changes it */
+    public static final int DEFAULT_MAX_CURSORS = Integer.parseInt(System.getProperty("edu.uob.maxCursors", "16"));
+    /* How long a cursor can go unused before it is closed, "-Dedu.uob.cursorIdleSeconds=60" changes it */
+    public static final long DEFAULT_CURSOR_IDLE_MILLIS = 1000 * Long.parseLong(System.getProperty("edu.uob.cursorIdleSeconds", "300"));
+
+    private Database currentDatabase;
+    private Path currentDatabasePath;
+    /* the changes made since BEGIN, applied together by COMMIT; null when no transaction is open */
+    private List<PendingChange> pendingChanges;
+    /* lower case cursor name -> the cursor, the server may close one behind the session's back when it goes idle */
+    private final Map<String, Cursor> cursors = new LinkedHashMap<>();
+    private int maxCursors = DEFAULT_MAX_CURSORS;
+    /* lower case statement name -> the statement, they outlive USE and transactions */
+    private final Map<String, PreparedStatement> preparedStatements = new HashMap<>();
+    private long cursorIdleMillis = DEFAULT_CURSOR_IDLE_MILLIS;
+    /* a session runs one command at a time, so its commands share a lexer */
+    private final Lexer lexer = new Lexer();
+
+    /* An INSERT, UPDATE or DELETE, run when the transaction commits against the rows committed by then */
+    public interface Change {
+        String apply(Transaction transaction) throws IOException;
+    }
+
+    public static final class PendingChange {
+        final String tableName;
+        final Change change;
+
+        public PendingChange(String tableName, Change change) {
+            this.tableName = tableName;
+            this.change = change;
+        }
+    }
+
+    public Lexer getLexer() {
+        return lexer;
+    }
+
+    public Database getCurrentDatabase() {
+        return currentDatabase;
+    }
+
+    public Path getCurrentDatabasePath() {
+        return currentDatabasePath;
+    }
+
+    /* The cursors of the database used before are closed, they read its tables */
+    public void useDatabase(Database database, Path databasePath) {
+        closeCursors();
+        this.currentDatabase = database;
+        this.currentDatabasePath = databasePath;
+    }
+
+    public boolean inTransaction() {
+        return pendingChanges != null;
+    }
+
+    public void beginTransaction() {
+        pendingChanges = new ArrayList<>();
+    }
+
+    public void addPendingChange(PendingChange pendingChange) {
+        pendingChanges.add(pendingChange);
+    }
+
+    /* The changes of the transaction, which is over: they are either applied or thrown away */
+    public List<PendingChange> endTransaction() {
+        List<PendingChange> changes = pendingChanges;
+        pendingChanges = null;
+        return changes;
+    }
+
+    public PreparedStatement getPreparedStatement(String name) {
+        return preparedStatements.get(name.toLowerCase());
+    }
+
+    /* Returns false when a statement of that name exists already */
+    public boolean addPreparedStatement(PreparedStatement statement) {
+        return preparedStatements.putIfAbsent(statement.name.toLowerCase(), statement) == null;
+    }
+
+    public PreparedStatement removePreparedStatement(String name) {
+        return preparedStatements.remove(name.toLowerCase());
+    }
+
+    public long getCursorIdleMillis() {
+        return cursorIdleMillis;
+    }
+
+    public void setMaxCursors(int maxCursors) {
+        this.maxCursors = maxCursors;
+    }
+
+    public void setCursorIdleMillis(long cursorIdleMillis) {
+        this.cursorIdleMillis = cursorIdleMillis;
+    }
+
+    /* The open cursor of that name, or null */
+    public synchronized Cursor getCursor(String name) {
+        closeIdleCursors();
+        return cursors.get(name.toLowerCase());
+    }
+
+    /* Returns false when the session already holds as many cursors as it may */
+    public synchronized boolean addCursor(Cursor cursor) {
+        closeIdleCursors();
+        if (cursors.size() >= maxCursors) {
+            return false;
+        }
+        cursors.put(cursor.name.toLowerCase(), cursor);
+        return true;
+    }
+
+    public synchronized Cursor removeCursor(String name) {
+        closeIdleCursors();
+        Cursor cursor = cursors.remove(name.toLowerCase());
+        if (cursor != null) {
+            cursor.close();
+        }
+        return cursor;
+    }
+
+    /* Called when the connection goes away, or the session uses another database */
+    public synchronized void closeCursors() {
+        for (Cursor cursor : cursors.values()) {
+            cursor.close();
+        }
+        cursors.clear();
+    }
+
+    /* Forget the cursors that went idle, and the ones the server has closed already */
+    private void closeIdleCursors() {
+        cursors.values().removeIf(cursor -> cursor.closeIfIdle(cursor.database.getCursorTime()));
+    }
+}
@@ -0,0 +1,409 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* The syntax tree of a command, built by the Parser in one pass over its tokens. A statement holds nothing of a
+   session or a table, so once parsed it can be cached and run again (see DBServer.runCommand), and a prepared
+   one is bound to new values without being parsed again. Names are kept as they were written, the statements
+   that need them in lower case convert them when they run */
+public abstract class Statement {
+    /* the keyword the command starts with */
+    final Keyword kind;
+
+    Statement(Keyword kind) {
+        this.kind = kind;
+    }
+
+    /* USE, SHOW and CREATE/DROP DATABASE only touch the catalog, BEGIN, ROLLBACK, CLOSE, PREPARE and DEALLOCATE
+       only the session, and do not need the database lock */
+    boolean isCatalogCommand() {
+        switch (kind) {
+            case USE:
+            case SHOW:
+            case BEGIN:
+            case ROLLBACK:
+            case CLOSE:
+            case PREPARE:
+            case DEALLOCATE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /* CREATE TABLE, DROP TABLE and ALTER TABLE take the database lock exclusively */
+    boolean isSchemaChange() {
+        return false;
+    }
+
+    /* Between BEGIN and COMMIT the session stays in its database and its tables keep their columns */
+    boolean isAllowedInTransaction() {
+        switch (kind) {
+            case USE:
+            case CREATE:
+            case DROP:
+            case ALTER:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /* The statement with the values of EXECUTE in place of its "?" parameters */
+    Statement bind(List<String> values) {
+        return this;
+    }
+
+    /* A value written in a command, or the number of the parameter standing in for it */
+    static final class Value {
+        final String text;
+        final int parameter;
+
+        Value(String text, int parameter) {
+            this.text = text;
+            this.parameter = parameter;
+        }
+
+        static List<String> bind(List<Value> values, List<String> parameterValues) {
+            List<String> boundValues = new ArrayList<>(values.size());
+            for (Value value : values) {
+                boundValues.add(value.parameter == -1 ? value.text : parameterValues.get(value.parameter));
+            }
+            return boundValues;
+        }
+
+        static List<Value> literals(List<String> texts) {
+            List<Value> values = new ArrayList<>(texts.size());
+            for (String text : texts) {
+                values.add(new Value(text, -1));
+            }
+            return values;
+        }
+    }
+
+    /* "BEGIN" | "COMMIT" | "ROLLBACK" | "SHOW " "STATS" */
+    static final class Simple extends Statement {
+        Simple(Keyword kind) {
+            super(kind);
+        }
+    }
+
+    /* "USE " [DatabaseName] | "CLOSE " [CursorName] | "DEALLOCATE " [StatementName] */
+    static final class Named extends Statement {
+        final String name;
+
+        Named(Keyword kind, String name) {
+            super(kind);
+            this.name = name;
+        }
+    }
+
+    /* "CREATE " "DATABASE " [DatabaseName] | "DROP " "DATABASE " [DatabaseName] */
+    static final class DatabaseChange extends Statement {
+        final String databaseName;
+
+        DatabaseChange(Keyword kind, String databaseName) {
+            super(kind);
+            this.databaseName = databaseName;
+        }
+
+        @Override
+        boolean isCatalogCommand() {
+            return true;
+        }
+    }
+
+    /* "CREATE " "TABLE " [TableName] ["(" <AttributeList> ")"] | "DROP " "TABLE " [TableName] */
+    static final class TableChange extends Statement {
+        final String tableName;
+        /* the attributes of CREATE TABLE */
+        final List<String> columnNames;
+
+        TableChange(Keyword kind, String tableName, List<String> columnNames) {
+            super(kind);
+            this.tableName = tableName;
+            this.columnNames = columnNames;
+        }
+
+        @Override
+        boolean isSchemaChange() {
+            return true;
+        }
+    }
+
+    /* "CREATE " "INDEX " "ON " [TableName] "(" [AttributeName] ")" [" USING " ("HASH" | "BTREE")]
+     | "DROP " "INDEX " "ON " [TableName] "(" [AttributeName] ")" */
+    static final class IndexChange extends Statement {
+        final String tableName;
+        final String columnName;
+        /* the kind of index CREATE INDEX makes */
+        final String indexKind;
+
+        IndexChange(Keyword kind, String tableName, String columnName, String indexKind) {
+            super(kind);
+            this.tableName = tableName;
+            this.columnName = columnName;
+            this.indexKind = indexKind;
+        }
+    }
+
+    /* "ALTER " "TABLE " [TableName] " " ("ADD" | "DROP") " " [AttributeName] */
+    static final class AlterTable extends Statement {
+        final String tableName;
+        final Keyword alteration;
+        final String columnName;
+
+        AlterTable(String tableName, Keyword alteration, String columnName) {
+            super(Keyword.ALTER);
+            this.tableName = tableName;
+            this.alteration = alteration;
+            this.columnName = columnName;
+        }
+
+        @Override
+        boolean isSchemaChange() {
+            return true;
+        }
+    }
+
+    /* "INSERT " "INTO " [TableName] " VALUES" <Tuple> {"," <Tuple>}
+       <Tuple>           ::=  "(" <ValueList> ")" */
+    static final class Insert extends Statement {
+        final String tableName;
+        /* the values of each row, in the order they were written */
+        final List<List<Value>> tuples;
+
+        Insert(String tableName, List<List<Value>> tuples) {
+            super(Keyword.INSERT);
+            this.tableName = tableName;
+            this.tuples = tuples;
+        }
+
+        List<List<String>> getTuples() {
+            return bindTuples(List.of());
+        }
+
+        private List<List<String>> bindTuples(List<String> parameterValues) {
+            List<List<String>> boundTuples = new ArrayList<>(tuples.size());
+            for (List<Value> tuple : tuples) {
+                boundTuples.add(Value.bind(tuple, parameterValues));
+            }
+            return boundTuples;
+        }
+
+        @Override
+        Insert bind(List<String> parameterValues) {
+            List<List<Value>> boundTuples = new ArrayList<>(tuples.size());
+            for (List<String> tuple : bindTuples(parameterValues)) {
+                boundTuples.add(Value.literals(tuple));
+            }
+            return new Insert(tableName, boundTuples);
+        }
+    }
+
+    /* An item of the attribute list of an aggregate query: an aggregate function, or the grouped attribute */
+    static final class Aggregate {
+        /* COUNT, SUM, AVG, MIN or MAX, null for the grouped attribute itself */
+        final Keyword function;
+        /* null for COUNT(*) */
+        final String columnName;
+
+        Aggregate(Keyword function, String columnName) {
+            this.function = function;
+            this.columnName = columnName;
+        }
+
+        /* The column name the result is printed under, the item as it was written */
+        @Override
+        public String toString() {
+            if (function == null) {
+                return columnName;
+            }
+            return function + "(" + (columnName != null ? columnName : "*") + ")";
+        }
+    }
+
+    /* "SELECT " <WildAttribList> " FROM " [TableName] [" WHERE " <Condition>] [<GroupBy>] [<OrderBy>] [<Limit>] */
+    static final class Select extends Statement {
+        /* empty for "*" */
+        final List<String> columnNames;
+        /* every item of the attribute list when it has an aggregate function or there is a GROUP BY, otherwise empty */
+        final List<Aggregate> aggregates;
+        final String tableName;
+        /* no expressions when there is no WHERE clause */
+        final LogicalExpression conditions;
+        /* null when there is no GROUP BY */
+        final String groupColumn;
+        /* null when there is no ORDER BY */
+        final String orderColumn;
+        final boolean descending;
+        /* -1 when there is no LIMIT */
+        final int limit;
+        final int offset;
+
+        Select(List<String> columnNames, List<Aggregate> aggregates, String tableName, LogicalExpression conditions, String groupColumn,
+               String orderColumn, boolean descending, int limit, int offset) {
+            super(Keyword.SELECT);
+            this.columnNames = columnNames;
+            this.aggregates = aggregates;
+            this.tableName = tableName;
+            this.conditions = conditions;
+            this.groupColumn = groupColumn;
+            this.orderColumn = orderColumn;
+            this.descending = descending;
+            this.limit = limit;
+            this.offset = offset;
+        }
+
+        /* Whether the query answers with a row per group rather than a row per row of the table */
+        boolean isAggregate() {
+            return !aggregates.isEmpty() || groupColumn != null;
+        }
+
+        @Override
+        Select bind(List<String> values) {
+            return new Select(columnNames, aggregates, tableName, conditions.bind(values), groupColumn, orderColumn, descending, limit, offset);
+        }
+    }
+
+    /* "UPDATE " [TableName] " SET " <NameValueList> " WHERE " <Condition> */
+    static final class Update extends Statement {
+        final String tableName;
+        final List<String> columnNames;
+        final List<Value> values;
+        final LogicalExpression conditions;
+
+        Update(String tableName, List<String> columnNames, List<Value> values, LogicalExpression conditions) {
+            super(Keyword.UPDATE);
+            this.tableName = tableName;
+            this.columnNames = columnNames;
+            this.values = values;
+            this.conditions = conditions;
+        }
+
+        List<String> getValues() {
+            return Value.bind(values, List.of());
+        }
+
+        @Override
+        Update bind(List<String> parameterValues) {
+            return new Update(tableName, columnNames, Value.literals(Value.bind(values, parameterValues)), conditions.bind(parameterValues));
+        }
+    }
+
+    /* "DELETE " "FROM " [TableName] " WHERE " <Condition> */
+    static final class Delete extends Statement {
+        final String tableName;
+        final LogicalExpression conditions;
+
+        Delete(String tableName, LogicalExpression conditions) {
+            super(Keyword.DELETE);
+            this.tableName = tableName;
+            this.conditions = conditions;
+        }
+
+        @Override
+        Delete bind(List<String> values) {
+            return new Delete(tableName, conditions.bind(values));
+        }
+    }
+
+    /* "JOIN " [TableName] " AND " [TableName] " ON " [AttributeName] " AND " [AttributeName] */
+    static final class Join extends Statement {
+        final String firstTableName;
+        final String secondTableName;
+        final String firstAttribute;
+        final String secondAttribute;
+
+        Join(String firstTableName, String secondTableName, String firstAttribute, String secondAttribute) {
+            super(Keyword.JOIN);
+            this.firstTableName = firstTableName;
+            this.secondTableName = secondTableName;
+            this.firstAttribute = firstAttribute;
+            this.secondAttribute = secondAttribute;
+        }
+    }
+
+    /* "COPY " [TableName] " FROM " [StringLiteral] | "COPY " [TableName] " TO " [StringLiteral] */
+    static final class Copy extends Statement {
+        final String tableName;
+        /* FROM loads the file into the table, TO writes the table to the file */
+        final Keyword direction;
+        final String fileName;
+
+        Copy(String tableName, Keyword direction, String fileName) {
+            super(Keyword.COPY);
+            this.tableName = tableName;
+            this.direction = direction;
+            this.fileName = fileName;
+        }
+
+        /* Loading commits on its own and writes the table file, with no other statement on the database */
+        @Override
+        boolean isSchemaChange() {
+            return direction == Keyword.FROM;
+        }
+
+        @Override
+        boolean isAllowedInTransaction() {
+            return direction == Keyword.TO;
+        }
+    }
+
+    /* "DECLARE " [CursorName] " CURSOR " " FOR " <Select> | "EXPLAIN " <Select> */
+    static final class Query extends Statement {
+        /* the cursor of DECLARE */
+        final String cursorName;
+        final Select select;
+
+        Query(Keyword kind, String cursorName, Select select) {
+            super(kind);
+            this.cursorName = cursorName;
+            this.select = select;
+        }
+
+        @Override
+        Query bind(List<String> values) {
+            return new Query(kind, cursorName, select.bind(values));
+        }
+    }
+
+    /* "FETCH " [IntegerLiteral] " FROM " [CursorName] */
+    static final class Fetch extends Statement {
+        final int count;
+        final String cursorName;
+
+        Fetch(int count, String cursorName) {
+            super(Keyword.FETCH);
+            this.count = count;
+            this.cursorName = cursorName;
+        }
+    }
+
+    /* "PREPARE " [StatementName] " AS " <Command> */
+    static final class Prepare extends Statement {
+        final String name;
+        final Statement statement;
+        final int parameterCount;
+
+        Prepare(String name, Statement statement, int parameterCount) {
+            super(Keyword.PREPARE);
+            this.name = name;
+            this.statement = statement;
+            this.parameterCount = parameterCount;
+        }
+    }
+
+    /* "EXECUTE " [StatementName] [" (" <ValueList> ")"] */
+    static final class Execute extends Statement {
+        final String name;
+        final List<String> values;
+
+        Execute(String name, List<String> values) {
+            super(Keyword.EXECUTE);
+            this.name = name;
+            this.values = values;
+        }
+    }
+}
@@ -1,38 +1,124 @@
 package edu.uob;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Predicate;
 
 public class Table {
+    /* compaction is not worth it for fewer deleted rows and old versions than this */
+    public static final int MIN_ROWS_TO_COMPACT = 64;
+
     private String name;
     public Path tablePath;
     public List<Column> columns;
+    /* the newest version of every row of the table, including the deleted rows that have not been compacted away yet.
+       The older versions hang off them, see Row.getOlder */
     public List<Row> rows;
     public int nextRowId;
+    private int deletedRowCount;
+    /* versions an update left behind for the snapshots that may still read them */
+    private int oldVersionCount;
+    /* primary key index: id -> newest version, deleted rows included until they are compacted away */
+    private Map<Integer, Row> rowsById;
+    /* set while a compaction of the table is waiting to run, see Database.commit */
+    boolean compactionScheduled;
+    /* System.nanoTime() when a statement last looked the table up, tables left idle are unloaded (see Database.getTable) */
+    volatile long lastUsed = System.nanoTime();
+    /* see LockManager */
+    final StampedLock lock = new StampedLock();
+    /* the lock manager of the database the table belongs to, null for the temporary tables of a query */
+    private LockManager lockManager;
+    /* the file the table was read from, when it is kept in the paged format */
+    private PagedTableFile pagedFile;
+    /* ids of the rows inserted, updated or deleted since the table file was last written */
+    private Set<Integer> changedRowIds = new HashSet<>();
+    /* set when the columns changed, every row has to be written again */
+    private boolean rewriteFile;
+    /* lower case column name -> ordinal of the column in every row */
+    private Map<String, Integer> columnOrdinals;
+    /* lower case column name -> index over that column */
+    private Map<String, TableIndex> indexes;
+    /* counts the columns added and dropped, see getSchemaVersion */
+    private volatile int schemaVersion;
+    /* the rows of the table as the last commit that inserted or deleted any left them, see getCommittedRowCount */
+    private volatile RowCount committedRowCount = new RowCount(0, 0);
+
+    /* A count of rows together with the commit stamp it holds from */
+    private static final class RowCount {
+        final int count;
+        final long stamp;
+
+        RowCount(int count, long stamp) {
+            this.count = count;
+            this.stamp = stamp;
+        }
+    }
 
     public Table(String name, List<String> columnNames) {
         this.name = name.toLowerCase();  // Convert to lowercase for case insensitivity
         this.columns = new ArrayList<>();
         this.rows = new ArrayList<>();
+        this.rowsById = new ConcurrentHashMap<>();
         this.nextRowId = 1;  //Initialize the ID
+        this.indexes = new LinkedHashMap<>();
 
-        columns.add(new Column("id"));
+        Column idColumn = new Column("id");
+        idColumn.setType(ColumnType.INTEGER);
+        columns.add(idColumn);
         for (String columnName : columnNames) {
             this.columns.add(new Column(columnName));
         }
+        updateColumnOrdinals();
+    }
+
+    private void updateColumnOrdinals() {
+        columnOrdinals = new HashMap<>();
+        for (int i = 0; i < columns.size(); i++) {
+            columnOrdinals.putIfAbsent(columns.get(i).getName().toLowerCase(), i);
+        }
     }
 
     public String getName() {
         return name;
     }
 
+    public void setLockManager(LockManager lockManager) {
+        this.lockManager = lockManager;
+    }
+
+    /* Called once the table has been read from its file, which is then up to date */
+    public void setPagedFile(PagedTableFile pagedFile) {
+        this.pagedFile = pagedFile;
+        changedRowIds.clear();
+        rewriteFile = false;
+    }
+
+    /* Write every row to the table file the next time, e.g. after it was imported from another format */
+    public void rewriteFile() {
+        rewriteFile = true;
+    }
+
 
     public List<String> getColumnNames(){
         List<String> columnNames = new ArrayList<>();
@@ -43,144 +129,808 @@ public class Table {
     }
 
     public void addColumn(String columnName) {
+        schemaVersion++;
         // Check if the column already exists
         columns.add(new Column(columnName));
+        updateColumnOrdinals();
+        rewriteFile = true;
+        // Existing rows grow their slot for the new column lazily, Row.getValue returns null until then
     }
 
     public void dropColumn(String columnName) {
         // Find the column to remove
-        Column toRemove = null;
-        for (Column column : columns) {
-            if (column.getName().equalsIgnoreCase(columnName)) {
-                toRemove = column;
-                break;
-            }
-        }
+        int ordinal = getColumnIndex(columnName);
         // If column exists, remove it
-        if (toRemove != null) {
-            columns.remove(toRemove);
-            for (Row row : rows) {
-                row.dropValue(columnName);
+        if (ordinal != -1) {
+            // before any row is changed, see getSchemaVersion
+            schemaVersion++;
+            indexes.remove(columns.get(ordinal).getName().toLowerCase());
+            columns.remove(ordinal);
+            updateColumnOrdinals();
+            rewriteFile = true;
+            for (Row row : allVersions()) {
+                row.dropValue(ordinal);
             }
         } else {
             throw new IllegalArgumentException("Column " + columnName + " does not exist.");
         }
     }
 
-    public void insertRow(List<String> values) throws IOException {
+    /* A row of a temporary table, visible at once */
+    public Row insertRow(List<String> values) {
+        return insertRow(values, null);
+    }
+
+    public Row insertRow(List<String> values, Transaction transaction) {
         //Add to the Data structure
-        List<String> columnNames = this.getColumnNames();
-        Row row = new Row(nextRowId, columnNames, values);
+        Row row = new Row(nextRowId, parseValues(values));
+        if (transaction != null) {
+            transaction.created(row);
+            transaction.countRows(this, 1);
+            transaction.onRollback(() -> {
+                // rolled back newest first, so the row is the last one again
+                rows.remove(row.slot);
+                rowsById.remove(row.getIdNumber(), row);
+                removeFromIndexes(row);
+            });
+        }
+        row.slot = rows.size();
         rows.add(row);
+        rowsById.put(row.getIdNumber(), row);
+        changedRowIds.add(row.getIdNumber());
+        addToIndexes(row);
         nextRowId++;
+        return row;
     }
 
-    public void updateTableFile() throws IOException {
-        try (BufferedWriter writer = Files.newBufferedWriter(tablePath, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
-            // Write column headers
-            for (Column column : columns) {
-                writer.write(column.getName() + whitespace(column.getName()));
+    /* The rows of a multi-row INSERT, appended together with their ids in sequence */
+    public List<Row> insertRows(List<List<String>> tuples, Transaction transaction) {
+        List<Row> insertedRows = new ArrayList<>(tuples.size());
+        for (List<String> values : tuples) {
+            insertedRows.add(insertRow(values, transaction));
+        }
+        return insertedRows;
+    }
 
+    /* Used when loading the table file and replaying the log: keep the persisted id,
+       and replace the row if it is already there so that replaying a record twice is harmless */
+    public Row loadRow(int id, List<String> values) {
+        Object[] rowValues = parseValues(values);
+        Row row = findRowById(id);
+        if (row != null) {
+            // replaced in place, so the row keeps its position in the table
+            removeFromIndexes(row);
+            row.replaceValues(rowValues);
+        } else {
+            row = new Row(id, rowValues);
+            row.slot = rows.size();
+            rows.add(row);
+            rowsById.put(id, row);
+        }
+        changedRowIds.add(id);
+        addToIndexes(row);
+        if (id >= nextRowId) {
+            nextRowId = id + 1;
+        }
+        return row;
+    }
+
+    /* Parse the inserted text once into the stored values of a new row (slot 0 is left for the id) */
+    private Object[] parseValues(List<String> values) {
+        Object[] rowValues = new Object[columns.size()];
+        for (int i = 1; i < rowValues.length && i <= values.size(); i++) {
+            rowValues[i] = parseValue(i, values.get(i - 1));
+        }
+        return rowValues;
+    }
+
+    /* Parse a value for the column at the given ordinal, widening the column's type when the value does not fit */
+    public Object parseValue(int ordinal, String text) {
+        Object value = ColumnType.parse(text);
+        Column column = columns.get(ordinal);
+        ColumnType widenedType = column.getType().widen(ColumnType.typeOf(value));
+        if (widenedType != column.getType()) {
+            if (widenedType == ColumnType.STRING) {
+                // The column can no longer be kept parsed, turn the values already stored back into text
+                storeAsText(ordinal);
+            }
+            column.setType(widenedType);
+        }
+        return column.getType().convert(value);
+    }
+
+    private void storeAsText(int ordinal) {
+        List<Row> versions = allVersions();
+        for (Row row : versions) {
+            row.updateValue(ordinal, ColumnType.STRING.convert(row.getValue(ordinal)));
+        }
+        TableIndex index = indexes.get(columns.get(ordinal).getName().toLowerCase());
+        if (index != null) {
+            index.rebuild(versions, ordinal);
+        }
+    }
+
+    /* Used when reading a table file: append the rows of a chunk parsed in parallel (see TableLoader), in one pass.
+       Unlike loadRow the ids are taken to be new to the table, a table file holds every row once */
+    public void appendLoadedRows(TableLoader.Chunk chunk) {
+        widenColumns(chunk);
+        for (Row row : chunk.rows) {
+            row.slot = rows.size();
+            rows.add(row);
+            rowsById.put(row.getIdNumber(), row);
+            addToIndexes(row);
+            if (row.getIdNumber() >= nextRowId) {
+                nextRowId = row.getIdNumber() + 1;
+            }
+        }
+    }
+
+    /* COPY ... FROM: append the chunks of a file in order, with the next ids handed out in one go. The indexes are
+       brought up to date once all the rows are in, an index at a time, or rebuilt when the table was empty.
+       The rows carry the transaction's stamp, so a snapshot taken before the copy does not see them */
+    public List<Row> appendCopiedRows(List<TableLoader.Chunk> chunks, Transaction transaction) {
+        boolean wasEmpty = rows.isEmpty();
+        int count = 0;
+        for (TableLoader.Chunk chunk : chunks) {
+            count += chunk.rows.size();
+        }
+        List<Row> copiedRows = new ArrayList<>(count);
+        int id = nextRowId;
+        nextRowId += count;
+        for (TableLoader.Chunk chunk : chunks) {
+            widenColumns(chunk);
+            for (Row row : chunk.rows) {
+                row.setId(id++);
+                transaction.created(row);
+                row.slot = rows.size();
+                rows.add(row);
+                rowsById.put(row.getIdNumber(), row);
+                copiedRows.add(row);
+            }
+        }
+        transaction.countRows(this, count);
+        for (TableIndex index : indexes.values()) {
+            int ordinal = getColumnIndex(index.getColumnName());
+            if (wasEmpty) {
+                index.rebuild(copiedRows, ordinal);
+            } else {
+                for (Row row : copiedRows) {
+                    index.add(row.getValue(ordinal), row);
+                }
             }
-            writer.newLine(); // End the line for column headers
+        }
+        // a table that was empty is written whole, otherwise only the pages the new rows go to
+        if (wasEmpty) {
+            rewriteFile = true;
+        } else {
+            for (Row row : copiedRows) {
+                changedRowIds.add(row.getIdNumber());
+            }
+        }
+        return copiedRows;
+    }
 
-            // Write rows
-            if (rows != null) {
-                for (Row row : rows) {
-                    for (Column column : columns) {
-                        writer.write(row.getValue(column.getName()) + whitespace(row.getValue(column.getName())));
+    /* Widen the columns to hold the values of a parsed chunk, converting the values stored as text where needed */
+    private void widenColumns(TableLoader.Chunk chunk) {
+        for (int ordinal = 1; ordinal < columns.size() && ordinal < chunk.types.length; ordinal++) {
+            Column column = columns.get(ordinal);
+            ColumnType widenedType = column.getType().widen(chunk.types[ordinal]);
+            if (widenedType == ColumnType.STRING) {
+                if (column.getType() != ColumnType.STRING && column.getType() != ColumnType.NONE) {
+                    storeAsText(ordinal);
+                }
+                if (chunk.nonTextValues[ordinal]) {
+                    for (Row row : chunk.rows) {
+                        row.updateValue(ordinal, ColumnType.STRING.convert(row.getValue(ordinal)));
                     }
-                    writer.newLine(); // End the line for each row
                 }
             }
+            column.setType(widenedType);
         }
     }
 
-    private String whitespace(String value) {
-        StringBuilder whitespace = new StringBuilder();
-        int length = value.length();
-        while(length < 18) {  // To make sure the data value align with each other
-            whitespace.append(" ");
-            length++;
+    /* The newest version of a row, null when there is none or it has been deleted */
+    public Row findRowById(int id) {
+        Row row = rowsById.get(id);
+        return row != null && !row.isDeleted() ? row : null;
+    }
+
+    /* The version a snapshot sees of the row whose id equals a stored or literal value, null when there is none */
+    public Row findRowByIdValue(Object value, long snapshot) {
+        if (!(value instanceof Long)) {
+            return null;
+        }
+        long id = (Long) value;
+        Row row = id == (int) id ? rowsById.get((int) id) : null;
+        return row != null ? row.versionAt(snapshot) : null;
+    }
+
+    /* Used when replaying the log: the row is gone for every snapshot */
+    public void removeRowById(int id) {
+        Row row = findRowById(id);
+        if (row != null) {
+            row.setDeleted(0);
+            deletedRowCount++;
+            changedRowIds.add(id);
+        }
+    }
+
+    /* Whether deleted rows and old versions have become more than the given fraction of the table,
+       small numbers of them are left alone as compacting would cost more than it saves */
+    public boolean needsCompaction(double threshold) {
+        int garbage = deletedRowCount + oldVersionCount;
+        return garbage >= MIN_ROWS_TO_COMPACT && garbage > threshold * rows.size();
+    }
+
+    /* Drop in one pass the deleted rows and the old versions no snapshot from the horizon on can see.
+       The rows are copied into a new list, so a reader still iterating the old one is not disturbed */
+    public void compact(long horizon) {
+        if (deletedRowCount == 0 && oldVersionCount == 0) {
+            return;
+        }
+        List<Row> keptRows = new ArrayList<>(rows.size());
+        int deletedRows = 0;
+        for (Row row : rows) {
+            long deletedStamp = row.getDeleted();
+            if (deletedStamp >= 0 && deletedStamp <= horizon) {
+                rowsById.remove(row.getIdNumber(), row);
+                continue;
+            }
+            if (row.isDeleted()) {
+                deletedRows++;
+            }
+            dropOldVersions(row, horizon);
+            row.slot = keptRows.size();
+            keptRows.add(row);
+        }
+        rows = keptRows;
+        deletedRowCount = deletedRows;
+        oldVersionCount = 0;
+        List<Row> versions = allVersions();
+        oldVersionCount = versions.size() - rows.size();
+        for (TableIndex index : indexes.values()) {
+            index.rebuild(versions, getColumnIndex(index.getColumnName()));
+        }
+    }
+
+    /* Cut the chain of versions after the first one committed at or before the horizon: no snapshot from
+       the horizon on can see the versions behind it. Returns the versions cut off */
+    private List<Row> dropOldVersions(Row newest, long horizon) {
+        for (Row version = newest; version != null; version = version.getOlder()) {
+            long created = version.getCreated();
+            if (created >= 0 && created <= horizon) {
+                List<Row> droppedVersions = new ArrayList<>();
+                for (Row dropped = version.getOlder(); dropped != null; dropped = dropped.getOlder()) {
+                    droppedVersions.add(dropped);
+                }
+                version.setOlder(null);
+                return droppedVersions;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /* Every version of every row, the indexes hold them all so that a snapshot finds the versions it sees */
+    private List<Row> allVersions() {
+        List<Row> versions = new ArrayList<>(rows.size() + oldVersionCount);
+        for (Row row : rows) {
+            for (Row version = row; version != null; version = version.getOlder()) {
+                versions.add(version);
+            }
+        }
+        return versions;
+    }
+
+    public TableIndex getIndex(String columnName) {
+        return indexes.get(columnName.toLowerCase());
+    }
+
+    /* kind is HashIndex.KIND or OrderedIndex.KIND */
+    public void createIndex(String columnName, String kind) {
+        int ordinal = getColumnIndex(columnName);
+        String exactColumnName = columns.get(ordinal).getName();
+        TableIndex index = OrderedIndex.KIND.equalsIgnoreCase(kind) ? new OrderedIndex(exactColumnName) : new HashIndex(exactColumnName);
+        index.rebuild(allVersions(), ordinal);
+        indexes.put(index.getColumnName().toLowerCase(), index);
+    }
+
+    public void dropIndex(String columnName) {
+        indexes.remove(columnName.toLowerCase());
+    }
+
+    private void addToIndexes(Row row) {
+        for (TableIndex index : indexes.values()) {
+            index.add(row.getValue(getColumnIndex(index.getColumnName())), row);
+        }
+    }
+
+    private void removeFromIndexes(Row row) {
+        for (TableIndex index : indexes.values()) {
+            index.remove(row.getValue(getColumnIndex(index.getColumnName())), row);
+        }
+    }
+
+    private Path getIndexFilePath() {
+        return tablePath.resolveSibling(name + ".idx");
+    }
+
+    /* The index definitions are kept next to the table file, one "<kind> column" line per index */
+    public void updateIndexFile() throws IOException {
+        if (indexes.isEmpty()) {
+            Files.deleteIfExists(getIndexFilePath());
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        for (TableIndex index : indexes.values()) {
+            lines.add(index.getKind() + "\t" + index.getColumnName());
         }
-        return whitespace.toString();
+        Files.write(getIndexFilePath(), lines, StandardCharsets.UTF_8);
+    }
+
+    public void loadIndexFile() throws IOException {
+        if (!Files.exists(getIndexFilePath())) {
+            return;
+        }
+        for (String line : Files.readAllLines(getIndexFilePath(), StandardCharsets.UTF_8)) {
+            String[] definition = line.split("\t");
+            if (definition.length == 2 && getColumnIndex(definition[1]) != -1) {
+                createIndex(definition[1], definition[0]);
+            }
+        }
+    }
+
+    /* Write the changes since the last call to the table's file, see PagedTableFile and TextTableFile */
+    public void updateTableFile() throws IOException {
+        if (tablePath.getFileName().toString().endsWith(TextTableFile.EXTENSION)) {
+            TextTableFile.write(this, tablePath);
+        } else {
+            if (pagedFile == null || !pagedFile.getPath().equals(tablePath)) {
+                pagedFile = new PagedTableFile(tablePath);
+                rewriteFile = true;
+            }
+            pagedFile.write(this, changedRowIds, rewriteFile);
+        }
+        changedRowIds.clear();
+        rewriteFile = false;
     }
 
     public void deleteTableFile() {
         try {
             Files.deleteIfExists(tablePath);
+            if (pagedFile != null) {
+                pagedFile.delete();
+            }
+            Files.deleteIfExists(getIndexFilePath());
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /* How many rows have not been deleted */
+    public int getRowCount() {
+        return rows.size() - deletedRowCount;
+    }
+
+    /* How many rows the snapshot sees, without looking at them: -1 when a commit after the snapshot inserted or
+       deleted rows, since only the newest committed count is kept. Rows of transactions still running are not
+       counted, their changes reach the count when they commit (see VersionClock.commit) */
+    public int getCommittedRowCount(long snapshot) {
+        RowCount rowCount = committedRowCount;
+        return rowCount.stamp <= snapshot ? rowCount.count : -1;
+    }
+
+    /* Count the rows once they are all loaded, every one of them committed as of the stamp */
+    public void resetCommittedRowCount(long stamp) {
+        committedRowCount = new RowCount(getRowCount(), stamp);
+    }
+
+    /* A commit inserted and deleted rows. Commits are stamped one at a time, so they never overlap here */
+    public void commitRowCount(int change, long stamp) {
+        committedRowCount = new RowCount(committedRowCount.count + change, stamp);
+    }
+
+    /* The newest version of the rows that have not been deleted, as a writer sees them */
     public List<Row> getRows(){
-        return rows;
+        if (deletedRowCount == 0) {
+            return rows;
+        }
+        List<Row> liveRows = new ArrayList<>(rows.size() - deletedRowCount);
+        for (Row row : rows) {
+            if (!row.isDeleted()) {
+                liveRows.add(row);
+            }
+        }
+        return liveRows;
+    }
+
+    /* The rows as a snapshot sees them, in id order */
+    public List<Row> snapshotRows(long snapshot) {
+        if (snapshot == Row.LATEST || lockManager == null) {
+            return getRows();
+        }
+        List<Row> newestVersions = lockManager.read(this, () -> new ArrayList<>(rows));
+        List<Row> snapshotRows = new ArrayList<>(newestVersions.size());
+        for (Row row : newestVersions) {
+            Row version = row.versionAt(snapshot);
+            if (version != null) {
+                snapshotRows.add(version);
+            }
+        }
+        return snapshotRows;
     }
-    public List<Row> selectRowsWithCondition(ArrayList<String> whereClause) {
-        LogicalExpression conditions = LogicalExpression.parseConditions(whereClause);
 
+    /* Run a query: read the candidate rows from an index when the condition allows it, otherwise scan,
+       and return the rows the snapshot sees that satisfy the whole condition in id order, or ordered by
+       orderColumn when given. Writers pass Row.LATEST and hold the table's write lock; readers hold its read lock
+       only while the candidates are collected, see LockManager.read.
+       The first offset rows are left out, and no more than limit are returned when it is not -1. When the candidates
+       come in the requested order the scan stops as soon as it has found enough rows */
+    public List<Row> selectRows(LogicalExpression conditions, String orderColumn, boolean descending, long snapshot, int offset, int limit) {
+        RowScan scan = scanRows(conditions, orderColumn, descending, snapshot);
+        for (int skipped = 0; skipped < offset && scan.hasNext(); skipped++) {
+            scan.next();
+        }
+        List<Row> selectedRows = new ArrayList<>();
+        while ((limit == -1 || selectedRows.size() < limit) && scan.hasNext()) {
+            selectedRows.add(scan.next());
+        }
+        return selectedRows;
+    }
+
+    /* The rows of selectRows one at a time. The condition is checked as the rows are asked for, so a caller that
+       stops early never looks at the rest of the candidates; only a sort needs them all up front */
+    public RowScan scanRows(LogicalExpression conditions, String orderColumn, boolean descending, long snapshot) {
+        Predicate<Row> condition = conditions.compile(this);
+        int orderOrdinal = orderColumn != null ? getColumnIndex(orderColumn) : -1;
+
+        IndexScan scan = findCandidates(conditions, orderOrdinal, snapshot);
+        boolean inOrder = scan.isInOrder(orderOrdinal);
+
+        List<Row> candidates = scan.rows instanceof List ? (List<Row>) scan.rows : new ArrayList<>(scan.rows);
+        if (inOrder) {
+            return new RowScan(candidates, descending, condition, scan.fullScan, snapshot);
+        }
+        RowScan allRows = new RowScan(candidates, false, condition, scan.fullScan, snapshot);
         List<Row> filteredRows = new ArrayList<>();
-        for (Row row : rows) {
-            if (conditions.evaluate(row)) {
-                filteredRows.add(row);
+        while (allRows.hasNext()) {
+            filteredRows.add(allRows.next());
+        }
+        // Keep the order a scan would have produced, or sort when no index gave the requested one
+        filteredRows.sort(orderOrdinal != -1 ? valueOrder(orderOrdinal) : Comparator.comparingInt(Row::getIdNumber));
+        return new RowScan(filteredRows, descending, null, false, snapshot);
+    }
+
+    /* The candidates of a query in order, or in reverse, yielding the versions that satisfy the condition */
+    public static final class RowScan implements Iterator<Row> {
+        private final ListIterator<Row> candidates;
+        private final boolean descending;
+        /* null when the candidates are all matching versions already */
+        private final Predicate<Row> condition;
+        private final boolean fullScan;
+        private final long snapshot;
+        private Row next;
+
+        RowScan(List<Row> candidates, boolean descending, Predicate<Row> condition, boolean fullScan, long snapshot) {
+            this.candidates = candidates.listIterator(descending ? candidates.size() : 0);
+            this.descending = descending;
+            this.condition = condition;
+            this.fullScan = fullScan;
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && (descending ? candidates.hasPrevious() : candidates.hasNext())) {
+                Row row = descending ? candidates.previous() : candidates.next();
+                if (condition == null) {
+                    next = row;
+                    break;
+                }
+                // a full scan meets the newest versions, the indexes hold every version
+                Row version = fullScan ? row.versionAt(snapshot) : row.isVisibleAt(snapshot) ? row : null;
+                if (version != null && condition.test(version)) {
+                    next = version;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Row next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            Row row = next;
+            next = null;
+            return row;
         }
-        return filteredRows;
     }
 
-    public String returnSelectedRows(List<Row> rows, List<String> columnNames) {
-        StringBuilder result = new StringBuilder();
-        // generate the table's column names
-        for (String columnName : columnNames) {
-            result.append(columnName).append(whitespace(columnName));
+    /* The order used by ORDER BY: numbers ascending, then the other values by their text, empty values last,
+       rows with equal values in id order */
+    public static Comparator<Row> valueOrder(int ordinal) {
+        return (first, second) -> {
+            int result = compareValues(first.getValue(ordinal), second.getValue(ordinal));
+            return result != 0 ? result : Integer.compare(first.getIdNumber(), second.getIdNumber());
+        };
+    }
+
+    /* The order of two values for ORDER BY, also the one MIN and MAX use */
+    public static int compareValues(Object firstValue, Object secondValue) {
+        double firstNumber = ColumnType.toDouble(firstValue);
+        double secondNumber = ColumnType.toDouble(secondValue);
+        if (!Double.isNaN(firstNumber) && !Double.isNaN(secondNumber)) {
+            return Double.compare(firstNumber + 0.0, secondNumber + 0.0);
+        } else if (Double.isNaN(firstNumber) != Double.isNaN(secondNumber)) {
+            return Double.isNaN(firstNumber) ? 1 : -1;
+        } else if (firstValue == null || secondValue == null) {
+            return firstValue == null ? (secondValue == null ? 0 : 1) : -1;
         }
-        result.append("\n");
-        // according to the column name, retrieve the data value
-        for (Row row : rows) {
-            for (String columnName : columnNames) {
-                int columnIndex = getColumnIndex(columnName);
-                if (columnIndex != -1) {
-                    result.append(row.getValue(columnName)).append(whitespace(row.getValue(columnName)));
+        return ColumnType.render(firstValue).compareTo(ColumnType.render(secondValue));
+    }
+
+    /* Rows read from an index, in the order of the column at orderedBy (-1 when in no particular order),
+       or the newest version of every row when fullScan is set */
+    private static final class IndexScan {
+        Collection<Row> rows;
+        int orderedBy;
+        boolean fullScan;
+        /* how the rows were found, for EXPLAIN */
+        String access;
+
+        IndexScan(Collection<Row> rows, int orderedBy, String access) {
+            this.rows = rows;
+            this.orderedBy = orderedBy;
+            this.access = access;
+        }
+
+        /* Whether the rows come in the order asked for, so that they need no sort */
+        boolean isInOrder(int orderOrdinal) {
+            return fullScan ? orderOrdinal == -1 : orderOrdinal != -1 && orderedBy == orderOrdinal;
+        }
+    }
+
+    /* How scanRows would find the rows of a query, as EXPLAIN shows it */
+    public static final class AccessPath {
+        public final String access;
+        public final int candidateCount;
+        /* false when the rows have to be sorted */
+        public final boolean inOrder;
+
+        AccessPath(String access, int candidateCount, boolean inOrder) {
+            this.access = access;
+            this.candidateCount = candidateCount;
+            this.inOrder = inOrder;
+        }
+    }
+
+    public AccessPath explainScan(LogicalExpression conditions, String orderColumn, long snapshot) {
+        int orderOrdinal = orderColumn != null ? getColumnIndex(orderColumn) : -1;
+        IndexScan scan = findCandidates(conditions, orderOrdinal, snapshot);
+        return new AccessPath(scan.access, scan.rows.size(), scan.isInOrder(orderOrdinal));
+    }
+
+    private IndexScan findCandidates(LogicalExpression conditions, int orderOrdinal, long snapshot) {
+        if (snapshot == Row.LATEST || lockManager == null) {
+            return findCandidates(conditions.getConjuncts(), orderOrdinal, snapshot);
+        }
+        return lockManager.read(this, () -> findCandidates(conditions.getConjuncts(), orderOrdinal, snapshot));
+    }
+
+    /* The rows a query has to look at. A reader copies whatever it reads out of the table's structures,
+       so that it can check them after a writer has moved on */
+    private IndexScan findCandidates(List<Condition> conjuncts, int orderOrdinal, long snapshot) {
+        IndexScan indexScan = planIndexScan(conjuncts, snapshot);
+        if (indexScan != null) {
+            return indexScan;
+        }
+        TableIndex orderIndex = orderOrdinal != -1 ? indexes.get(columns.get(orderOrdinal).getName().toLowerCase()) : null;
+        if (orderIndex instanceof OrderedIndex) {
+            // The ordered index gives the requested order without sorting
+            return new IndexScan(((OrderedIndex) orderIndex).orderedRows(orderOrdinal), orderOrdinal, "ordered index on " + orderIndex.getColumnName() + " for the order");
+        }
+        IndexScan fullScan = new IndexScan(snapshot == Row.LATEST ? rows : new ArrayList<>(rows), -1, "full scan");
+        fullScan.fullScan = true;
+        return fullScan;
+    }
+
+    /* Choose the index access that yields the fewest candidate rows for the conditions every matching row
+       has to satisfy: an equality on the id, an equality on a hash index, or a range on an ordered index.
+       The whole condition is still checked on the rows found. Returns null when a full scan is needed. */
+    private IndexScan planIndexScan(List<Condition> conjuncts, long snapshot) {
+        // An id point lookup through the primary key finds at most one row, nothing beats it
+        for (Condition conjunct : conjuncts) {
+            if (getColumnIndex(conjunct.attributeName) == 0 && "==".equals(conjunct.operator)) {
+                Row row = findRowByIdValue(conjunct.literalFor(ColumnType.INTEGER), snapshot);
+                return new IndexScan(row != null ? List.of(row) : Collections.emptyList(), -1, "id lookup");
+            }
+        }
+        IndexScan bestScan = null;
+        // Hash probes are sized for free, so look at them first
+        for (Condition conjunct : conjuncts) {
+            TableIndex index = indexes.get(conjunct.attributeName.toLowerCase());
+            if (!(index instanceof HashIndex) || !"==".equals(conjunct.operator)) {
+                continue;
+            }
+            ColumnType columnType = columns.get(getColumnIndex(conjunct.attributeName)).getType();
+            Collection<Row> matches = ((HashIndex) index).lookup(conjunct.literalFor(columnType));
+            if (snapshot != Row.LATEST) {
+                matches = new ArrayList<>(matches);
+            }
+            if (bestScan == null || matches.size() < bestScan.rows.size()) {
+                bestScan = new IndexScan(matches, -1, "hash index on " + index.getColumnName());
+            }
+        }
+        // Combine the range conditions on each ordered column into one bounded scan
+        for (TableIndex index : indexes.values()) {
+            if (!(index instanceof OrderedIndex)) {
+                continue;
+            }
+            int ordinal = getColumnIndex(index.getColumnName());
+            double lower = Double.NEGATIVE_INFINITY;
+            double upper = Double.POSITIVE_INFINITY;
+            boolean lowerInclusive = true;
+            boolean upperInclusive = true;
+            boolean bounded = false;
+            for (Condition conjunct : conjuncts) {
+                if (getColumnIndex(conjunct.attributeName) != ordinal) {
+                    continue;
+                }
+                double literal = ColumnType.toDouble(conjunct.value);
+                boolean isRange = !"==".equals(conjunct.operator) && !"!=".equals(conjunct.operator) && !"LIKE".equals(conjunct.operator);
+                if (Double.isNaN(literal)) {
+                    if (isRange) {
+                        // a range against something that is not a number never matches
+                        return new IndexScan(Collections.emptyList(), ordinal, "nothing, " + conjunct.value + " is not a number");
+                    }
+                    continue;
+                }
+                boolean isLower = conjunct.operator.startsWith(">") || "==".equals(conjunct.operator);
+                boolean isUpper = conjunct.operator.startsWith("<") || "==".equals(conjunct.operator);
+                boolean inclusive = !">".equals(conjunct.operator) && !"<".equals(conjunct.operator);
+                if (!isLower && !isUpper) {
+                    continue;
+                }
+                if (isLower && (literal > lower || (literal == lower && !inclusive))) {
+                    lower = literal;
+                    lowerInclusive = inclusive;
+                }
+                if (isUpper && (literal < upper || (literal == upper && !inclusive))) {
+                    upper = literal;
+                    upperInclusive = inclusive;
                 }
+                bounded = true;
+            }
+            if (!bounded) {
+                continue;
+            }
+            // Give up on the scan as soon as it is no better than what we already have
+            int limit = bestScan != null ? bestScan.rows.size() - 1 : Integer.MAX_VALUE;
+            List<Row> rangeRows = limit < 0 ? null : ((OrderedIndex) index).range(lower, lowerInclusive, upper, upperInclusive, limit);
+            if (rangeRows != null) {
+                bestScan = new IndexScan(rangeRows, ordinal, "ordered index range on " + index.getColumnName());
             }
-            result.append("\n"); // Move to the next line after processing a row
+        }
+        return bestScan;
+    }
+
+    public String returnSelectedRows(List<Row> rows, List<String> columnNames) {
+        StringWriter result = new StringWriter();
+        try {
+            writeSelectedRows(result, rows, columnNames);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // a StringWriter does not fail
         }
         return result.toString();
     }
 
-    private int getColumnIndex(String columnName) {
-        for(int i = 0; i < columns.size(); i++) {
-            if (columns.get(i).getName().equalsIgnoreCase(columnName)) {
-                return i;
+    /* Write the rows a row at a time, see ResultWriter */
+    public void writeSelectedRows(Writer out, List<Row> rows, List<String> columnNames) throws IOException {
+        ResultWriter resultWriter = new ResultWriter(out);
+        // generate the table's column names
+        resultWriter.writeColumnNames(columnNames);
+        // resolve the requested column names to ordinals once, skipping the ones the table does not have
+        int[] ordinals = new int[columnNames.size()];
+        int ordinalCount = 0;
+        for (String columnName : columnNames) {
+            int columnIndex = getColumnIndex(columnName);
+            if (columnIndex != -1) {
+                ordinals[ordinalCount++] = columnIndex;
             }
         }
-        return -1;
+        ordinals = Arrays.copyOf(ordinals, ordinalCount);
+        // according to the column ordinal, retrieve the data value
+        for (Row row : rows) {
+            resultWriter.writeRow(row, ordinals);
+        }
+    }
+
+    /* The ordinals of the named columns, leaving out the ones the table does not have */
+    public int[] getColumnOrdinals(List<String> columnNames) {
+        return columnNames.stream().mapToInt(this::getColumnIndex).filter(ordinal -> ordinal != -1).toArray();
+    }
+
+    /* Changes whenever a column is added or dropped. A query writes its rows to the client after it has released the
+       database lock, so that a slow client holds up nobody (see DBServer.runCommand); ALTER TABLE may then run while
+       the rows are written and move their values to other ordinals. The writer reads each row's values and then
+       checks that the version is still the one its ordinals were resolved under, see checkSchemaVersion */
+    public int getSchemaVersion() {
+        return schemaVersion;
+    }
+
+    /* Fails a write of rows that the table's columns changed under. The client gets no end of the response, the
+       connection is dropped instead, since an [ERROR] after part of the rows would read like a row */
+    public void checkSchemaVersion(int version) throws IOException {
+        if (schemaVersion != version) {
+            throw new IOException("Table '" + name + "' was altered while its rows were being sent.");
+        }
     }
 
-    public void updateRowsWithCondition(ArrayList<String> setClause, ArrayList<String> whereClause) {
-        List<Row> rowsToUpdate = selectRowsWithCondition(whereClause);
+    /* Case-insensitive lookup of a column's ordinal, -1 if the table has no such column */
+    public int getColumnIndex(String columnName) {
+        Integer ordinal = columnOrdinals.get(columnName.toLowerCase());
+        return ordinal != null ? ordinal : -1;
+    }
 
+    /* Put a new version in front of every matching row. The old versions stay in the indexes for the snapshots
+       still reading them, until no snapshot can see them any more. Returns the new versions */
+    public List<Row> updateRowsWithCondition(List<String> columnNames, List<String> newValues, LogicalExpression conditions, Transaction transaction) {
+        List<Row> rowsToUpdate = selectRows(conditions, null, false, Row.LATEST, 0, -1);
+
+        List<Integer> ordinals = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        for (int i = 0; i < columnNames.size(); i++) {
+            int ordinal = getColumnIndex(columnNames.get(i));
+            ordinals.add(ordinal);
+            values.add(parseValue(ordinal, newValues.get(i)));
+        }
+
+        List<Row> updatedRows = new ArrayList<>(rowsToUpdate.size());
         for (Row row : rowsToUpdate) {
-            for (int i = 0; i < setClause.size(); i += 4) {
-                /* <NameValueList>   ::=  <NameValuePair> | <NameValuePair> "," <NameValueList>
-                   <NameValuePair>   ::=  [AttributeName] "=" [Value] */
-                String columnName = setClause.get(i);
-                String value = setClause.get(i + 2);
-                row.updateValue(columnName, value);
+            Object[] rowValues = row.copyValues(columns.size());
+            for (int i = 0; i < ordinals.size(); i++) {
+                rowValues[ordinals.get(i)] = values.get(i);
             }
+            Row newVersion = new Row(row.getIdNumber(), rowValues);
+            newVersion.setOlder(row);
+            newVersion.slot = row.slot;
+            transaction.ended(row);
+            transaction.created(newVersion);
+            transaction.onRollback(() -> {
+                row.setDeleted(Row.ALIVE);
+                rows.set(newVersion.slot, row);
+                rowsById.put(row.getIdNumber(), row);
+                removeFromIndexes(newVersion);
+                oldVersionCount--;
+            });
+            addToIndexes(newVersion);
+            rows.set(row.slot, newVersion);
+            rowsById.put(newVersion.getIdNumber(), newVersion);
+            changedRowIds.add(newVersion.getIdNumber());
+            oldVersionCount++;
+            for (Row droppedVersion : dropOldVersions(newVersion, transaction.getHorizon())) {
+                removeFromIndexes(droppedVersion);
+                oldVersionCount--;
+            }
+            updatedRows.add(newVersion);
         }
+        return updatedRows;
     }
 
-    public void deleteRowsWithCondition(ArrayList<String> whereClause) {
-        List<Row> rowsToDelete = selectRowsWithCondition(whereClause);
-
-        Iterator<Row> iterator = rows.iterator();
-        while(iterator.hasNext()) {
-            Row currentRow = iterator.next();
-            if (rowsToDelete.contains(currentRow)) {
-                iterator.remove();
-            }
+    /* End the newest version of every matching row. The row stays, for the snapshots that still see it,
+       until compaction removes it */
+    public List<Row> deleteRowsWithCondition(LogicalExpression conditions, Transaction transaction) {
+        List<Row> rowsToDelete = selectRows(conditions, null, false, Row.LATEST, 0, -1);
+        for (Row row : rowsToDelete) {
+            transaction.ended(row);
+            transaction.onRollback(() -> {
+                row.setDeleted(Row.ALIVE);
+                deletedRowCount--;
+            });
+            deletedRowCount++;
+            changedRowIds.add(row.getIdNumber());
         }
+        transaction.countRows(this, -rowsToDelete.size());
+        return rowsToDelete;
     }
 }
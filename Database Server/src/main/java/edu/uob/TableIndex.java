@@ -0,0 +1,18 @@
+package edu.uob;
+
+import java.util.List;
+
+/* An index over one column of a table, kept current by Table on every change to its rows */
+public interface TableIndex {
+    String getColumnName();
+
+    /* The keyword used in "CREATE INDEX ... USING <kind>" and in the table's .idx file */
+    String getKind();
+
+    void add(Object key, Row row);
+
+    void remove(Object key, Row row);
+
+    /* Rebuild from scratch, e.g. after the column's values were converted to another type */
+    void rebuild(List<Row> rows, int ordinal);
+}
@@ -0,0 +1,122 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/* Reads the rows of a table file in parallel: the file is memory mapped a chunk at a time, the chunks are parsed
+   into rows on a ForkJoinPool, and the rows are appended to the table in file order (see Table.appendLoadedRows).
+   Parsing the values is most of the work of loading a table, so loading scales with the number of cores.
+   PagedTableFile splits its files at page boundaries, TextTableFile at line boundaries */
+public class TableLoader {
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    /* chunks are no smaller than this many bytes, a small table is parsed in one */
+    static final long MINIMUM_CHUNK_SIZE = Long.parseLong(System.getProperty("edu.uob.minimumChunkSize", Long.toString(1 << 20)));
+    /* a mapping is limited to 2 GB, and a few chunks per core keep the cores busy until the end */
+    private static final long MAXIMUM_CHUNK_SIZE = 64 << 20;
+    private static final int CHUNKS_PER_CORE = 4;
+
+    /* The rows parsed from one chunk, with the narrowest type of each column that holds their values */
+    public static class Chunk {
+        final List<Row> rows = new ArrayList<>();
+        final ColumnType[] types;
+        /* set for a column with a number or boolean among its values, which the table converts if the column holds text */
+        final boolean[] nonTextValues;
+        private byte[] scratch = new byte[256];
+
+        public Chunk(int columnCount) {
+            types = new ColumnType[columnCount];
+            Arrays.fill(types, ColumnType.NONE);
+            nonTextValues = new boolean[columnCount];
+        }
+
+        public Object[] newValues() {
+            return new Object[types.length];
+        }
+
+        /* Parse a value the way Table.parseValue does, values beyond the table's columns are ignored */
+        public void setValue(Object[] values, int ordinal, String text) {
+            if (ordinal >= types.length) {
+                return;
+            }
+            Object value = ColumnType.parse(text);
+            ColumnType valueType = ColumnType.typeOf(value);
+            types[ordinal] = types[ordinal].widen(valueType);
+            nonTextValues[ordinal] |= valueType != ColumnType.NONE && valueType != ColumnType.STRING;
+            values[ordinal] = value;
+        }
+
+        public void addRow(int id, Object[] values) {
+            rows.add(new Row(id, values));
+        }
+
+        /* The UTF-8 text of length bytes at the index, the buffer's position is left alone */
+        public String decode(ByteBuffer buffer, int index, int length) {
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, 2 * scratch.length)];
+            }
+            buffer.get(index, scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    /* How many bytes of a file of the given size to give each chunk */
+    static long chunkSize(long fileSize) {
+        long size = fileSize / ((long) POOL.getParallelism() * CHUNKS_PER_CORE);
+        return Math.min(MAXIMUM_CHUNK_SIZE, Math.max(MINIMUM_CHUNK_SIZE, size));
+    }
+
+    /* Run the tasks on the pool, the results come back in the order of the tasks */
+    static <T> List<T> parseAll(List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>(tasks.size());
+        for (Future<T> result : POOL.invokeAll(tasks)) {
+            try {
+                results.add(result.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while loading a table");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                // the pool wraps the checked exception of a task in RuntimeExceptions
+                for (Throwable wrapped = cause; wrapped != null; wrapped = wrapped.getCause()) {
+                    if (wrapped instanceof IOException) {
+                        throw (IOException) wrapped;
+                    }
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+        return results;
+    }
+
+    /* The position after the first line break at or after the given one, the end of the file when there is none */
+    static long nextLineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long offset = position;
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read < 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return offset + i + 1;
+                }
+            }
+            offset += read;
+        }
+    }
+}
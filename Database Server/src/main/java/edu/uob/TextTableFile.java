@@ -0,0 +1,132 @@
+package edu.uob;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/* The original text table file: a line of column names, then a line per row, the values separated by white space
+   and padded to line up. A value containing white space does not survive it, so tables are kept in PagedTableFile
+   and this format is only read to import the tables of older databases, or written when the server is started with
+   "-Dedu.uob.tableFormat=text" to export them (see Database.loadDatabase) */
+public class TextTableFile {
+    public static final String EXTENSION = ".tab";
+
+    public static Table read(Path path) throws IOException {
+        String tableName = path.getFileName().toString().replace(EXTENSION, "");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long bodyStart = TableLoader.nextLineStart(channel, 0);
+            String headerLine = StandardCharsets.UTF_8.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, bodyStart)).toString();
+            List<String> columnNames = new ArrayList<>();
+            if (!headerLine.isBlank()) {
+                /* Obtain the table's column names */
+                columnNames.addAll(Arrays.asList(headerLine.trim().split("\\s+")));
+                columnNames.remove("id");
+            }
+            Table table = new Table(tableName, columnNames);
+            table.tablePath = path;
+
+            /* Parse the other lines in chunks that end with a line break, on the loader's pool */
+            long chunkSize = TableLoader.chunkSize(size - bodyStart);
+            int rowWidth = table.columns.size();
+            List<Callable<TableLoader.Chunk>> tasks = new ArrayList<>();
+            long start = bodyStart;
+            while (start < size) {
+                long chunkStart = start;
+                long chunkEnd = size - start <= chunkSize ? size : TableLoader.nextLineStart(channel, start + chunkSize - 1);
+                tasks.add(() -> readLines(channel, chunkStart, chunkEnd, rowWidth));
+                start = chunkEnd;
+            }
+            for (TableLoader.Chunk chunk : TableLoader.parseAll(tasks)) {
+                table.appendLoadedRows(chunk);
+            }
+            return table;
+        }
+    }
+
+    /* Parse the lines between two positions, each the persisted id followed by the values */
+    private static TableLoader.Chunk readLines(FileChannel channel, long start, long end, int rowWidth) throws IOException {
+        TableLoader.Chunk chunk = new TableLoader.Chunk(rowWidth);
+        ByteBuffer lines = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        int position = 0;
+        while (position < lines.limit()) {
+            int lineEnd = position;
+            while (lineEnd < lines.limit() && lines.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            Object[] values = null;
+            int id = 0;
+            int ordinal = 0;
+            int index = position;
+            while (true) {
+                while (index < lineEnd && isWhitespace(lines.get(index))) {
+                    index++;
+                }
+                if (index == lineEnd) {
+                    break;
+                }
+                int valueStart = index;
+                while (index < lineEnd && !isWhitespace(lines.get(index))) {
+                    index++;
+                }
+                String value = chunk.decode(lines, valueStart, index - valueStart);
+                if (ordinal == 0) {
+                    /* keep the persisted id, the log refers to rows by id */
+                    id = Integer.parseInt(value);
+                    values = chunk.newValues();
+                } else {
+                    chunk.setValue(values, ordinal, value);
+                }
+                ordinal++;
+            }
+            if (values != null) {
+                chunk.addRow(id, values);
+            }
+            position = lineEnd + 1;
+        }
+        return chunk;
+    }
+
+    /* The white space that separates values, as in the pattern \s. A UTF-8 encoded character other than these never
+       contains their bytes, so the lines can be split before they are decoded */
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+
+    public static void write(Table table, Path path) throws IOException {
+        /* Write a temporary file and move it over the old one, so a crash never leaves a half written table */
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporaryPath, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Write column headers
+            for (Column column : table.columns) {
+                ResultWriter.writePadded(writer, column.getName());
+            }
+            writer.newLine(); // End the line for column headers
+
+            // Write rows
+            for (Row row : table.getRows()) {
+                for (int i = 0; i < table.columns.size(); i++) {
+                    String value = row.getString(i);
+                    ResultWriter.writePadded(writer, value);
+                }
+                writer.newLine(); // End the line for each row
+            }
+        }
+        try {
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
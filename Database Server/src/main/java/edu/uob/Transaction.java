@@ -0,0 +1,119 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* The row versions one writer has created and ended. They carry the transaction's pending stamp
+   until VersionClock.commit gives them the commit stamp, which makes them visible to new snapshots.
+   The log records of the changes are kept here too, they reach the log together at commit (see Database.commit) */
+public class Transaction {
+    private final long id;
+    /* versions older than this stamp can be dropped: no snapshot that was open when the transaction began needs them */
+    private final long horizon;
+    private final List<Row> createdVersions = new ArrayList<>();
+    private final List<Row> endedVersions = new ArrayList<>();
+    /* how to take each change back, in the order the changes were made */
+    private final List<Runnable> undoActions = new ArrayList<>();
+    private final List<List<String>> logRecords = new ArrayList<>();
+    private final Set<Table> changedTables = new LinkedHashSet<>();
+    /* table -> rows inserted less rows deleted, see Table.getCommittedRowCount */
+    private final Map<Table, Integer> rowCountChanges = new LinkedHashMap<>();
+    /* the position of the transaction's COMMIT record in the log, see WriteAheadLog.appendTransaction */
+    private long logPosition;
+
+    public Transaction(long id, long horizon) {
+        this.id = id;
+        this.horizon = horizon;
+    }
+
+    /* The stamp written into the versions until the transaction commits */
+    public long getPendingStamp() {
+        return -id;
+    }
+
+    public long getHorizon() {
+        return horizon;
+    }
+
+    /* A version inserted or put in front of an older one */
+    public void created(Row version) {
+        version.setCreated(getPendingStamp());
+        createdVersions.add(version);
+    }
+
+    /* A version replaced by an update, or deleted */
+    public void ended(Row version) {
+        version.setDeleted(getPendingStamp());
+        endedVersions.add(version);
+    }
+
+    public List<Row> getCreatedVersions() {
+        return createdVersions;
+    }
+
+    public List<Row> getEndedVersions() {
+        return endedVersions;
+    }
+
+    public void countRows(Table table, int change) {
+        rowCountChanges.merge(table, change, Integer::sum);
+    }
+
+    public Map<Table, Integer> getRowCountChanges() {
+        return rowCountChanges;
+    }
+
+    public void onRollback(Runnable undoAction) {
+        undoActions.add(undoAction);
+    }
+
+    /* Take the changes back, newest first. Only before the transaction is in the log, while its tables are still locked */
+    public void rollback() {
+        for (int i = undoActions.size() - 1; i >= 0; i--) {
+            undoActions.get(i).run();
+        }
+        undoActions.clear();
+        createdVersions.clear();
+        endedVersions.clear();
+        logRecords.clear();
+        changedTables.clear();
+        rowCountChanges.clear();
+    }
+
+    public void logInsert(Table table, Row row) {
+        log(table, WriteAheadLog.rowRecord(WriteAheadLog.INSERT, table, row));
+    }
+
+    public void logUpdate(Table table, Row row) {
+        log(table, WriteAheadLog.rowRecord(WriteAheadLog.UPDATE, table, row));
+    }
+
+    public void logDelete(Table table, Row row) {
+        log(table, WriteAheadLog.deleteRecord(table, row));
+    }
+
+    private void log(Table table, List<String> record) {
+        logRecords.add(record);
+        changedTables.add(table);
+    }
+
+    public List<List<String>> getLogRecords() {
+        return logRecords;
+    }
+
+    public Set<Table> getChangedTables() {
+        return changedTables;
+    }
+
+    public long getLogPosition() {
+        return logPosition;
+    }
+
+    public void setLogPosition(long logPosition) {
+        this.logPosition = logPosition;
+    }
+}
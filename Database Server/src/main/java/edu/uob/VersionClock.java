@@ -0,0 +1,52 @@
+package edu.uob;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/* Hands out the snapshots of readers and the commit stamps of writers for one database.
+   A snapshot is the stamp of the last commit when a statement starts: it sees exactly the row versions
+   committed up to then. Commits are stamped one at a time, so a snapshot never sees half of a commit.
+   The oldest open snapshot is the horizon below which old versions can be dropped */
+public class VersionClock {
+    private long lastCommit;
+    private long lastTransactionId;
+    /* open snapshot -> how many statements hold it */
+    private final TreeMap<Long, Integer> openSnapshots = new TreeMap<>();
+
+    public synchronized long beginSnapshot() {
+        openSnapshots.merge(lastCommit, 1, Integer::sum);
+        return lastCommit;
+    }
+
+    public synchronized void endSnapshot(long snapshot) {
+        openSnapshots.computeIfPresent(snapshot, (stamp, count) -> count > 1 ? count - 1 : null);
+    }
+
+    public synchronized Transaction beginTransaction() {
+        return new Transaction(++lastTransactionId, getHorizon());
+    }
+
+    /* Every snapshot taken from now on sees the transaction's versions */
+    public synchronized long commit(Transaction transaction) {
+        long stamp = ++lastCommit;
+        for (Row version : transaction.getCreatedVersions()) {
+            version.setCreated(stamp);
+        }
+        for (Row version : transaction.getEndedVersions()) {
+            version.setDeleted(stamp);
+        }
+        for (Map.Entry<Table, Integer> rowCountChange : transaction.getRowCountChanges().entrySet()) {
+            rowCountChange.getKey().commitRowCount(rowCountChange.getValue(), stamp);
+        }
+        return stamp;
+    }
+
+    public synchronized long getLastCommit() {
+        return lastCommit;
+    }
+
+    /* No snapshot, open or future, is older than this stamp */
+    public synchronized long getHorizon() {
+        return openSnapshots.isEmpty() ? lastCommit : openSnapshots.firstKey();
+    }
+}
@@ -0,0 +1,273 @@
+package edu.uob;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/* Append-only log of the row mutations of one database.
+   Every INSERT, UPDATE and DELETE appends a record here instead of rewriting the table file,
+   and Database.checkpoint() later folds the log back into the table files and truncates it.
+   The records of a statement or transaction are followed by a COMMIT record, replay ignores records
+   without one. A commit waits until its records are forced to disk; commits arriving while the disk is busy
+   are forced together by the next sync, so concurrent sessions share one fsync (see sync) */
+public class WriteAheadLog {
+    public static final String LOG_FILE_NAME = "wal.log";
+    /* Number of records after which the database folds the log into the table files */
+    public static final int CHECKPOINT_INTERVAL = 1000;
+
+    public static final String INSERT = "INSERT";
+    public static final String UPDATE = "UPDATE";
+    public static final String DELETE = "DELETE";
+    public static final String COMMIT = "COMMIT";
+
+    private final Path logPath;
+    private FileChannel channel;
+    private BufferedWriter writer;
+    private int recordCount;
+    /* records appended since the log was opened, a commit is identified by this count after its COMMIT record */
+    private long appendedPosition;
+    /* guarded by syncMonitor: every record up to syncedPosition is on disk, syncing while one thread forces the log */
+    private final Object syncMonitor = new Object();
+    private long syncedPosition;
+    private boolean syncing;
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+
+    public WriteAheadLog(Path databasePath) {
+        this.logPath = databasePath.resolve(LOG_FILE_NAME);
+        this.recordCount = 0;
+    }
+
+    /* Both INSERT and UPDATE carry the full row image, so replaying them twice is harmless */
+    public static List<String> rowRecord(String type, Table table, Row row) {
+        List<String> fields = new ArrayList<>();
+        fields.add(type);
+        fields.add(table.getName());
+        for (int i = 0; i < table.columns.size(); i++) {
+            fields.add(row.getString(i));
+        }
+        return fields;
+    }
+
+    public static List<String> deleteRecord(Table table, Row row) {
+        List<String> fields = new ArrayList<>();
+        fields.add(DELETE);
+        fields.add(table.getName());
+        fields.add(row.getId());
+        return fields;
+    }
+
+    /* Append the records of one transaction and its COMMIT record, returning the position to pass to sync */
+    public synchronized long appendTransaction(List<List<String>> records) throws IOException {
+        for (List<String> record : records) {
+            appendRecord(record);
+        }
+        appendRecord(List.of(COMMIT));
+        commits.increment();
+        return appendedPosition;
+    }
+
+    private void appendRecord(List<String> fields) throws IOException {
+        StringBuilder record = new StringBuilder();
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) {
+                record.append('\t');
+            }
+            escape(fields.get(i), record);
+        }
+        if (writer == null) {
+            channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+        }
+        // The checksum lets replay detect a record that was torn by a crash half way through the write
+        writer.write(checksum(record.toString()));
+        writer.write('\t');
+        writer.write(record.toString());
+        writer.newLine();
+        recordCount++;
+        appendedPosition++;
+    }
+
+    public synchronized void flush() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    /* Return once every record up to the position is on disk. The first committer to arrive forces the log
+       for everything appended so far, the ones arriving meanwhile wait and are then usually covered already */
+    public void sync(long position) throws IOException {
+        synchronized (syncMonitor) {
+            while (syncing && syncedPosition < position) {
+                try {
+                    syncMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the log to be written");
+                }
+            }
+            if (syncedPosition >= position) {
+                return;
+            }
+            syncing = true;
+        }
+        long target = position;
+        try {
+            FileChannel syncChannel;
+            synchronized (this) {
+                flush();
+                target = appendedPosition;
+                syncChannel = channel;
+            }
+            if (syncChannel != null) {
+                syncChannel.force(false);
+            }
+            syncs.increment();
+        } catch (IOException e) {
+            target = 0;
+            throw e;
+        } finally {
+            synchronized (syncMonitor) {
+                syncedPosition = Math.max(syncedPosition, target);
+                syncing = false;
+                syncMonitor.notifyAll();
+            }
+        }
+    }
+
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    public long getSyncs() {
+        return syncs.sum();
+    }
+
+    public synchronized boolean needsCheckpoint() {
+        return recordCount >= CHECKPOINT_INTERVAL;
+    }
+
+    /* The records are in the table files now. No commit is waiting for the log, the caller holds the database lock exclusively */
+    public synchronized void truncate() throws IOException {
+        close();
+        Files.deleteIfExists(logPath);
+        recordCount = 0;
+        synchronized (syncMonitor) {
+            syncedPosition = appendedPosition;
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+            channel = null;
+        }
+    }
+
+    /* Read back every intact record of a committed transaction, stopping at the first one that fails its checksum.
+       A log from before COMMIT records were written has none, all of its records count as committed */
+    public synchronized List<List<String>> readRecords() throws IOException {
+        List<List<String>> records = new ArrayList<>();
+        int committedRecords = 0;
+        boolean hasCommitRecords = false;
+        if (!Files.exists(logPath)) {
+            return records;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(logPath, StandardCharsets.UTF_8)) {
+            String currentLine;
+            while ((currentLine = reader.readLine()) != null) {
+                int separator = currentLine.indexOf('\t');
+                if (separator < 0) {
+                    break;
+                }
+                String record = currentLine.substring(separator + 1);
+                if (!currentLine.substring(0, separator).equals(checksum(record))) {
+                    break;
+                }
+                List<String> fields = unescape(record);
+                if (fields.size() == 1 && COMMIT.equals(fields.get(0))) {
+                    hasCommitRecords = true;
+                    committedRecords = records.size();
+                    continue;
+                }
+                records.add(fields);
+            }
+        }
+        if (hasCommitRecords) {
+            records.subList(committedRecords, records.size()).clear();
+        }
+        recordCount = records.size();
+        return records;
+    }
+
+    private static String checksum(String record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static void escape(String value, StringBuilder out) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    private static List<String> unescape(String record) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (c == '\t') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\\' && i + 1 < record.length()) {
+                char next = record.charAt(++i);
+                switch (next) {
+                    case 't':
+                        field.append('\t');
+                        break;
+                    case 'n':
+                        field.append('\n');
+                        break;
+                    case 'r':
+                        field.append('\r');
+                        break;
+                    default:
+                        field.append(next);
+                }
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
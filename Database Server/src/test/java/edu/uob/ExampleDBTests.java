@@ -2,11 +2,26 @@ package edu.uob;
 
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ExampleDBTests {
 
@@ -90,6 +105,960 @@ public class ExampleDBTests {
         assertTrue(response.contains("Simon"), "Simon was added to a table and the server restarted - but Simon was not returned by SELECT *");
     }
 
+    // Updates and deletes only reach the log between checkpoints, a restarted server has to replay them
+    @Test
+    public void testLogReplayAfterRestart() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55, TRUE);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 35, FALSE);");
+        sendCommandToServer("DELETE FROM marks WHERE name == 'Sion';");
+        sendCommandToServer("UPDATE marks SET mark = 40 WHERE name == 'Rob';");
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        String response = sendCommandToServer("SELECT id, name, mark FROM marks;");
+        // Simon as inserted, Sion deleted, Rob with his updated mark
+        assertTrue(response.matches("\\[OK\\]\nid +name +mark +\n1 +Simon +65 +\n3 +Rob +40 +\n"), "The replayed rows should be exactly the ones left before the restart");
+        // The ids survive the restart, so the next insert does not reuse the id of a deleted row
+        sendCommandToServer("INSERT INTO marks VALUES ('Chris', 20, FALSE);");
+        response = sendCommandToServer("SELECT id, name FROM marks WHERE name == 'Chris';");
+        assertTrue(response.matches("(?s).*\n4 +Chris +\n"), "Chris should have been given the id after the highest persisted one");
+    }
+
+    // Values are stored parsed, but must come back exactly as they were inserted (also after a restart)
+    @Test
+    public void testTypedColumnsRoundTrip() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, code);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, 007);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55.5, 12);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 35, 1.50);");
+        String response = sendCommandToServer("SELECT name FROM marks WHERE mark > 50;");
+        assertTrue(response.contains("Simon") && response.contains("Sion"), "Both marks above 50 should have been returned");
+        assertFalse(response.contains("Rob"), "Rob's mark is below 50 but Rob was returned");
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        response = sendCommandToServer("SELECT * FROM marks;");
+        assertTrue(response.contains("007") && response.contains("1.50") && response.contains("55.5"), "Values should be returned exactly as they were inserted");
+        response = sendCommandToServer("SELECT name FROM marks WHERE code == 12;");
+        assertTrue(response.contains("Sion"), "An equality condition on a number should match the stored value");
+    }
+
+    // Queries on an indexed column must give the same answers as a scan, also after updates, deletes and a restart
+    @Test
+    public void testHashIndex() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55, TRUE);");
+        String response = sendCommandToServer("CREATE INDEX ON marks (name);");
+        assertTrue(response.contains("[OK]"), "Creating an index on an existing column should succeed");
+        response = sendCommandToServer("CREATE INDEX ON marks (age);");
+        assertTrue(response.contains("[ERROR]"), "Creating an index on a column that does not exist should fail");
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 35, FALSE);");
+        sendCommandToServer("UPDATE marks SET name = Bob WHERE name == 'Rob';");
+        sendCommandToServer("DELETE FROM marks WHERE name == 'Sion';");
+        response = sendCommandToServer("SELECT * FROM marks WHERE name == 'Bob';");
+        assertTrue(response.contains("35"), "The index should find a row under its updated value");
+        response = sendCommandToServer("SELECT * FROM marks WHERE (name == 'Rob') OR (name == 'Sion');");
+        assertFalse(response.contains("35") || response.contains("55"), "The index should no longer find updated or deleted rows");
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        response = sendCommandToServer("SELECT * FROM marks WHERE (name == 'Simon') AND (mark > 50);");
+        assertTrue(response.contains("65"), "The index should be rebuilt when the database is loaded again");
+        response = sendCommandToServer("DROP INDEX ON marks (name);");
+        assertTrue(response.contains("[OK]"), "Dropping an existing index should succeed");
+    }
+
+    // Range conditions and ORDER BY on a column with an ordered index
+    @Test
+    public void testOrderedIndex() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55, TRUE);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 35, FALSE);");
+        String response = sendCommandToServer("CREATE INDEX ON marks (mark) USING BTREE;");
+        assertTrue(response.contains("[OK]"), "Creating an ordered index should succeed");
+        sendCommandToServer("INSERT INTO marks VALUES ('Chris', 20, FALSE);");
+        sendCommandToServer("UPDATE marks SET mark = 70 WHERE name == 'Rob';");
+        response = sendCommandToServer("SELECT name FROM marks WHERE (mark > 35) AND (mark <= 65);");
+        assertTrue(response.contains("Simon") && response.contains("Sion"), "Both marks in the range should have been returned");
+        assertFalse(response.contains("Rob") || response.contains("Chris"), "Marks outside the range should not have been returned");
+        response = sendCommandToServer("SELECT name FROM marks ORDER BY mark DESC;");
+        assertTrue(response.indexOf("Rob") < response.indexOf("Simon") && response.indexOf("Sion") < response.indexOf("Chris"), "Rows should be returned in descending order of mark");
+        response = sendCommandToServer("SELECT name FROM marks ORDER BY name;");
+        assertTrue(response.indexOf("Chris") < response.indexOf("Rob") && response.indexOf("Simon") < response.indexOf("Sion"), "Rows should be sorted when there is no ordered index");
+    }
+
+    // Deleting most of a table leaves enough tombstones for the background compaction to kick in
+    @Test
+    public void testDeleteManyRows() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("CREATE INDEX ON marks (mark) USING BTREE;");
+        for (int i = 0; i < 100; i++) {
+            sendCommandToServer("INSERT INTO marks VALUES ('Student" + i + "', " + i + ");");
+        }
+        sendCommandToServer("DELETE FROM marks WHERE mark < 80;");
+        String response = sendCommandToServer("SELECT * FROM marks;");
+        assertFalse(response.contains("Student79"), "A deleted row was returned by SELECT *");
+        assertTrue(response.trim().split("\n").length == 22, "Only the rows that were not deleted should have been returned");
+        response = sendCommandToServer("SELECT name FROM marks WHERE mark >= 70;");
+        assertFalse(response.contains("Student70"), "A deleted row was returned through the index");
+        assertTrue(response.contains("Student80"), "A row that was not deleted was missing from the index");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        response = sendCommandToServer("SELECT id FROM marks WHERE name == 'Simon';");
+        assertTrue(response.contains("101"), "The id of a deleted row should not have been reused");
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        response = sendCommandToServer("SELECT * FROM marks;");
+        assertFalse(response.contains("Student79"), "A deleted row came back after the restart");
+        assertTrue(response.contains("Student99") && response.contains("Simon"), "Rows that were not deleted were lost after the restart");
+    }
+
+    @Test
+    public void testIdLookup() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55, TRUE);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 35, FALSE);");
+        String response = sendCommandToServer("SELECT name FROM marks WHERE id == 2;");
+        assertTrue(response.contains("Sion") && !response.contains("Simon"), "Only the row with id 2 should have been returned");
+        response = sendCommandToServer("SELECT name FROM marks WHERE (id == 2) AND (pass == FALSE);");
+        assertFalse(response.contains("Sion"), "The rest of the condition should still be checked on the row found by id");
+        sendCommandToServer("UPDATE marks SET mark = 40 WHERE id == 3;");
+        sendCommandToServer("DELETE FROM marks WHERE id == 1;");
+        response = sendCommandToServer("SELECT * FROM marks WHERE id == 1;");
+        assertFalse(response.contains("Simon"), "A deleted row was found by its id");
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        response = sendCommandToServer("SELECT mark FROM marks WHERE id == 3;");
+        assertTrue(response.contains("40"), "The update by id should have survived the restart");
+        response = sendCommandToServer("SELECT name FROM marks WHERE id == 'abc';");
+        assertTrue(response.contains("[OK]") && !response.contains("Rob"), "An id that is not a number should match no row");
+    }
+
+    // Every connection has its own session: one client's USE must not change the database of another
+    @Test
+    public void testConcurrentSessions() throws Exception {
+        String firstName = generateRandomName();
+        String secondName = generateRandomName();
+        Session firstSession = new Session();
+        Session secondSession = new Session();
+        server.handleCommand("CREATE DATABASE " + firstName + ";", firstSession);
+        server.handleCommand("CREATE DATABASE " + secondName + ";", secondSession);
+        server.handleCommand("USE " + firstName + ";", firstSession);
+        server.handleCommand("USE " + secondName + ";", secondSession);
+        server.handleCommand("CREATE TABLE marks (name, mark);", firstSession);
+        String response = server.handleCommand("SELECT * FROM marks;", secondSession);
+        assertTrue(response.contains("[ERROR]"), "The table was created in the first session's database, not the second's");
+
+        Thread[] clients = new Thread[4];
+        for (int i = 0; i < clients.length; i++) {
+            int client = i;
+            clients[i] = new Thread(() -> {
+                Session session = new Session();
+                try {
+                    server.handleCommand("USE " + firstName + ";", session);
+                    for (int j = 0; j < 25; j++) {
+                        server.handleCommand("INSERT INTO marks VALUES ('Client" + client + "', " + j + ");", session);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            clients[i].start();
+        }
+        for (Thread thread : clients) {
+            thread.join();
+        }
+        response = server.handleCommand("SELECT id FROM marks;", firstSession);
+        assertTrue(response.trim().split("\n").length == 102, "Every insert from every session should have been stored");
+        assertTrue(response.contains("100") && !response.contains("101"), "Every insert should have been given its own id");
+    }
+
+    // Readers and writers of one table in parallel, the lock metrics are shown by SHOW STATS
+    @Test
+    public void testConcurrentReadersAndWriters() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        Thread[] clients = new Thread[4];
+        String[] failures = new String[clients.length];
+        for (int i = 0; i < clients.length; i++) {
+            int client = i;
+            clients[i] = new Thread(() -> {
+                Session session = new Session();
+                try {
+                    server.handleCommand("USE " + randomName + ";", session);
+                    for (int j = 0; j < 50; j++) {
+                        String response = client % 2 == 0
+                                ? server.handleCommand("INSERT INTO marks VALUES ('Client" + client + "', " + j + ");", session)
+                                : server.handleCommand("SELECT name FROM marks WHERE id == 1;", session);
+                        if (!response.contains("[OK]") || (client % 2 == 1 && !response.contains("Simon"))) {
+                            failures[client] = response;
+                        }
+                    }
+                } catch (Exception e) {
+                    failures[client] = e.toString();
+                }
+            });
+            clients[i].start();
+        }
+        for (Thread thread : clients) {
+            thread.join();
+        }
+        for (String failure : failures) {
+            assertTrue(failure == null, "A statement failed while other sessions used the same table: " + failure);
+        }
+        String response = sendCommandToServer("SELECT id FROM marks;");
+        assertTrue(response.trim().split("\n").length == 103, "Every insert from every session should have been stored");
+        response = sendCommandToServer("SHOW STATS;");
+        assertTrue(response.contains("[OK]") && response.contains("lockWaitMillis"), "SHOW STATS should report the lock wait time");
+    }
+
+    @Test
+    public void testJoinMultipleMatches() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55, TRUE);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 35, FALSE);");
+        sendCommandToServer("DELETE FROM marks WHERE name == 'Sion';");
+        sendCommandToServer("CREATE TABLE coursework (task, submission);");
+        sendCommandToServer("INSERT INTO coursework VALUES ('OXO', 3);");
+        sendCommandToServer("INSERT INTO coursework VALUES ('DB', 1);");
+        sendCommandToServer("INSERT INTO coursework VALUES ('STAG', 1);");
+        String response = sendCommandToServer("JOIN coursework AND marks ON submission AND id;");
+        assertTrue(response.contains("[OK]"), "A valid JOIN should succeed");
+        assertTrue(response.contains("coursework.task") && response.contains("marks.name"), "Joined columns should be named OriginalTableName.AttributeName");
+        String[] lines = response.trim().split("\n");
+        assertTrue(lines.length == 5, "Every matching pair should produce its own row");
+        assertTrue(lines[2].contains("OXO") && lines[2].contains("Rob"), "Rows should follow the order of the first table");
+        assertTrue(lines[3].contains("DB") && lines[3].contains("Simon") && lines[4].contains("STAG") && lines[4].contains("Simon"), "A key matched twice should produce two rows");
+        // marks is the side looked up, through its ids, so the rows follow coursework
+        response = sendCommandToServer("JOIN marks AND coursework ON id AND submission;");
+        assertTrue(response.indexOf("OXO") < response.indexOf("DB") && response.indexOf("DB") < response.indexOf("STAG"), "Rows should follow the order of the table that is scanned");
+    }
+
+    // The smaller table is the one hashed, and the rows then follow the other one
+    @Test
+    public void testJoinHashesSmallerTable() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE tutors (name, course);");
+        sendCommandToServer("INSERT INTO tutors VALUES ('Ann', 'OXO'), ('Bob', 'DB'), ('Cat', 'OXO');");
+        sendCommandToServer("CREATE TABLE students (name, course);");
+        sendCommandToServer("INSERT INTO students VALUES ('Sam', 'DB'), ('Tom', 'OXO'), ('Una', 'STAG'), ('Val', 'OXO'), ('Wes', 'DB');");
+        String[] lines = sendCommandToServer("JOIN tutors AND students ON course AND course;").trim().split("\n");
+        String[][] pairs = {{"Bob", "Sam"}, {"Ann", "Tom"}, {"Cat", "Tom"}, {"Ann", "Val"}, {"Cat", "Val"}, {"Bob", "Wes"}};
+        assertTrue(lines.length == pairs.length + 2, "Every matching pair should produce its own row");
+        for (int i = 0; i < pairs.length; i++) {
+            assertTrue(lines[i + 2].matches((i + 1) + " +" + pairs[i][0] + " +" + pairs[i][1] + " *"), "The first table is smaller, so the rows should follow the second: " + lines[i + 2]);
+        }
+        // the second table is the smaller one the other way round, which gives nested loop order
+        lines = sendCommandToServer("JOIN students AND tutors ON course AND course;").trim().split("\n");
+        assertTrue(lines.length == pairs.length + 2);
+        for (int i = 0; i < pairs.length; i++) {
+            assertTrue(lines[i + 2].matches((i + 1) + " +" + pairs[i][1] + " +" + pairs[i][0] + " *"), "The rows should follow the first table, then the second: " + lines[i + 2]);
+        }
+    }
+
+    @Test
+    public void testSnapshotReads() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE accounts (name, balance);");
+        sendCommandToServer("INSERT INTO accounts VALUES ('Simon', 0);");
+        sendCommandToServer("INSERT INTO accounts VALUES ('Rob', 0);");
+        sendCommandToServer("CREATE INDEX ON accounts (balance) USING BTREE;");
+        Thread writer = new Thread(() -> {
+            Session session = new Session();
+            try {
+                server.handleCommand("USE " + randomName + ";", session);
+                for (int j = 1; j <= 200; j++) {
+                    server.handleCommand("UPDATE accounts SET balance = " + j + " WHERE balance >= 0;", session);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        writer.start();
+        Session session = new Session();
+        server.handleCommand("USE " + randomName + ";", session);
+        while (writer.isAlive()) {
+            String[] lines = server.handleCommand("SELECT balance FROM accounts WHERE balance >= 0;", session).trim().split("\n");
+            assertTrue(lines.length == 4, "A reader should see every row once, whatever the writer is doing");
+            assertTrue(lines[2].trim().equals(lines[3].trim()), "A reader should never see half of an update");
+        }
+        writer.join();
+        String response = sendCommandToServer("SELECT * FROM accounts WHERE balance == 200;");
+        assertTrue(response.contains("Simon") && response.contains("Rob"), "Every update should have been committed");
+    }
+
+    @Test
+    public void testTransactions() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("CREATE TABLE coursework (task, submission);");
+        assertTrue(sendCommandToServer("BEGIN;").contains("[OK]"), "BEGIN should start a transaction");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        sendCommandToServer("INSERT INTO coursework VALUES ('DB', 1);");
+        assertTrue(sendCommandToServer("INSERT INTO marks VALUES ('Rob');").contains("[ERROR]"), "A bad statement should be reported when it is sent");
+        assertTrue(sendCommandToServer("USE " + randomName + ";").contains("[ERROR]"), "USE should not be allowed inside a transaction");
+        Session otherSession = new Session();
+        server.handleCommand("USE " + randomName + ";", otherSession);
+        assertFalse(server.handleCommand("SELECT * FROM marks;", otherSession).contains("Simon"), "Changes should not be seen before COMMIT");
+        assertTrue(sendCommandToServer("COMMIT;").contains("[OK]"), "COMMIT should apply the changes");
+        assertTrue(server.handleCommand("SELECT * FROM marks;", otherSession).contains("Simon"), "Changes should be seen after COMMIT");
+        assertTrue(server.handleCommand("SELECT * FROM coursework;", otherSession).contains("DB"), "Every table of the transaction should be changed");
+
+        sendCommandToServer("BEGIN;");
+        sendCommandToServer("DELETE FROM marks WHERE name == 'Simon';");
+        assertTrue(sendCommandToServer("ROLLBACK;").contains("[OK]"), "ROLLBACK should end the transaction");
+        assertTrue(sendCommandToServer("SELECT * FROM marks;").contains("Simon"), "A rolled back change should not be applied");
+
+        sendCommandToServer("BEGIN;");
+        sendCommandToServer("UPDATE marks SET mark = 70 WHERE name == 'Simon';");
+        sendCommandToServer("INSERT INTO coursework VALUES ('OXO', 2);");
+        server.handleCommand("DROP TABLE coursework;", otherSession);
+        String response = sendCommandToServer("COMMIT;");
+        assertTrue(response.contains("[ERROR]"), "A transaction whose table was dropped should fail to commit");
+        assertTrue(sendCommandToServer("SELECT * FROM marks;").contains("65"), "A failed transaction should leave no change behind");
+        assertTrue(sendCommandToServer("COMMIT;").contains("[ERROR]"), "COMMIT without a transaction should fail");
+
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        response = sendCommandToServer("SELECT * FROM marks;");
+        assertTrue(response.contains("Simon") && response.contains("65"), "Committed changes should survive a restart");
+    }
+
+    // The changes of a transaction are kept until COMMIT and only run then, see DBServer.changeTable
+    @Test
+    public void testTransactionChangesRunAtCommit() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        sendCommandToServer("BEGIN;");
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 35);");
+        assertFalse(sendCommandToServer("SELECT * FROM marks;").contains("Rob"), "A change should not be seen before COMMIT, not even by its own session");
+        // the UPDATE runs after the INSERT before it, and matches the rows committed when COMMIT comes
+        sendCommandToServer("UPDATE marks SET mark = 40 WHERE mark < 60;");
+        Session otherSession = new Session();
+        server.handleCommand("USE " + randomName + ";", otherSession);
+        server.handleCommand("INSERT INTO marks VALUES ('Chris', 20);", otherSession);
+        assertTrue(sendCommandToServer("COMMIT;").contains("[OK]"));
+        String response = sendCommandToServer("SELECT name, mark FROM marks;");
+        assertTrue(response.matches("(?s).*\\nSimon +65 +\\nChris +40 +\\nRob +40 +\\n"), "The WHERE clause should match the rows committed at COMMIT");
+    }
+
+    @Test
+    public void testPagedTableFiles() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon Lock', 65);");
+        for (int i = 0; i < 1200; i++) {
+            sendCommandToServer("INSERT INTO marks VALUES ('Student" + i + "', " + i + ");");
+        }
+        sendCommandToServer("DELETE FROM marks WHERE mark < 100;");
+        sendCommandToServer("UPDATE marks SET mark = 5000 WHERE name == 'Student1100';");
+        // an old text table file in the same database is migrated when the database is used
+        Path databasePath = Paths.get("databases", randomName);
+        Files.writeString(databasePath.resolve("coursework.tab"), "id      task      submission\n1       OXO       3\n2       DB        1\n");
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        String response = sendCommandToServer("SELECT * FROM marks;");
+        assertFalse(response.contains("Student99\t") || response.contains("Student99 "), "A deleted row came back after the restart");
+        assertTrue(response.trim().split("\n").length == 1102, "The rows should have been read back from their pages");
+        assertTrue(sendCommandToServer("SELECT name FROM marks WHERE mark == 5000;").contains("Student1100"), "An updated row should have been written to its page");
+        response = sendCommandToServer("SELECT * FROM coursework;");
+        assertTrue(response.contains("OXO") && response.contains("DB"), "A text table file should have been imported");
+        assertTrue(Files.exists(databasePath.resolve("coursework.tbl")) && !Files.exists(databasePath.resolve("coursework.tab")), "The text table file should have been migrated");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion Lock', 55);");
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        response = sendCommandToServer("SELECT name FROM marks WHERE mark == 55;");
+        assertTrue(response.contains("Sion Lock"), "A value containing a space should survive a restart");
+    }
+
+    @Test
+    public void testParallelTableLoading() throws Exception {
+        // the build reads tables in chunks of a single page, see edu.uob.minimumChunkSize in pom.xml
+        assertTrue(TableLoader.MINIMUM_CHUNK_SIZE <= PagedTableFile.PAGE_SIZE, "Small tables should be read by several tasks");
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, code);");
+        for (int i = 0; i < 1500; i++) {
+            sendCommandToServer("INSERT INTO marks VALUES ('Student" + i + "', " + i + ");");
+            if (i == 700) {
+                // a row larger than a page spans several blocks, which the chunks after it must skip
+                sendCommandToServer("INSERT INTO marks VALUES ('" + "x".repeat(3 * PagedTableFile.PAGE_SIZE) + "', 1);");
+            }
+        }
+        // the last chunk turns the column from integers to text
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 'A12');");
+        StringBuilder courseworks = new StringBuilder("id      task      submission\n");
+        for (int i = 1; i <= 3000; i++) {
+            courseworks.append(i).append("       Task").append(i).append("     ").append(i % 10).append("\n");
+        }
+        Path databasePath = Paths.get("databases", randomName);
+        Files.writeString(databasePath.resolve("coursework.tab"), courseworks.toString());
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        String response = sendCommandToServer("SELECT * FROM marks;");
+        assertTrue(response.trim().split("\n").length == 1504, "Every row should have been read back from the chunks");
+        assertTrue(sendCommandToServer("SELECT name FROM marks WHERE code == 'A12';").contains("Simon"));
+        response = sendCommandToServer("SELECT id FROM marks WHERE name == 'Student1499';");
+        assertTrue(response.contains("1501"), "The rows should keep their ids");
+        assertTrue(sendCommandToServer("SELECT name FROM marks WHERE code == 1200;").contains("Student1200"));
+        assertTrue(sendCommandToServer("SELECT name FROM marks WHERE code == 1;").contains("x".repeat(3 * PagedTableFile.PAGE_SIZE)));
+        response = sendCommandToServer("SELECT task FROM coursework WHERE submission == 7;");
+        assertTrue(response.trim().split("\n").length == 302, "Every line of the text table file should have been imported");
+        assertTrue(response.contains("Task2997"));
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 35);");
+        assertTrue(sendCommandToServer("SELECT id FROM marks WHERE name == 'Rob';").contains("1503"), "The next id should follow the loaded rows");
+    }
+
+    @Test
+    public void testLazyTableLoading() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55);");
+        sendCommandToServer("DELETE FROM marks WHERE name == 'Sion';");
+        sendCommandToServer("CREATE TABLE coursework (task, submission);");
+        sendCommandToServer("CREATE INDEX ON coursework (task);");
+        sendCommandToServer("INSERT INTO coursework VALUES ('OXO', 3);");
+        // a schema change checkpoints, nothing is left in the log
+        sendCommandToServer("CREATE TABLE unused (name);");
+        server = new DBServer();
+        Session session = new Session();
+        server.handleCommand("USE " + randomName + ";", session);
+        String response = server.handleCommand("SHOW STATS;", session);
+        assertTrue(response.matches("(?s).*\\ntables +3 +\\n.*"), "USE should have read the catalog");
+        assertTrue(response.matches("(?s).*\\ntablesLoaded +0 +\\n.*"), "USE should not have read any table");
+        response = server.handleCommand("SELECT * FROM marks;", session);
+        assertTrue(response.contains("Simon") && !response.contains("Sion"), "A table should be read on first use");
+        assertTrue(server.handleCommand("SHOW STATS;", session).matches("(?s).*\\ntablesLoaded +1 +\\n.*"), "Only the table used should have been read");
+        server.handleCommand("INSERT INTO marks VALUES ('Rob', 35);", session);
+        assertTrue(server.handleCommand("SELECT id, name FROM marks WHERE name == 'Rob';", session).matches("(?s).*\\n3 +Rob +\\n"), "The id of a deleted row should not be reused");
+        // the row with the highest id is deleted, only the catalog remembers its id once the table is unloaded
+        server.handleCommand("INSERT INTO marks VALUES ('Dave', 45);", session);
+        server.handleCommand("DELETE FROM marks WHERE name == 'Dave';", session);
+        // tables idle since the last checkpoint are unloaded by the next one
+        session.getCurrentDatabase().setTableIdleMillis(0);
+        server.handleCommand("DROP TABLE unused;", session);
+        assertTrue(server.handleCommand("SHOW STATS;", session).matches("(?s).*\\ntablesLoaded +0 +\\n.*"), "Idle tables should have been unloaded");
+        assertTrue(server.handleCommand("SELECT name FROM marks WHERE mark == 35;", session).contains("Rob"), "An unloaded table should be read again");
+        server.handleCommand("INSERT INTO marks VALUES ('Chris', 20);", session);
+        assertTrue(server.handleCommand("SELECT id, name FROM marks WHERE name == 'Chris';", session).matches("(?s).*\\n5 +Chris +\\n"), "A table read again should keep its next row id");
+        assertTrue(server.handleCommand("SELECT task, submission FROM coursework WHERE task == 'OXO';", session).matches("(?s).*\\nOXO +3 +\\n"), "The indexes should be rebuilt when a table is read");
+        assertTrue(server.handleCommand("SHOW STATS;", session).matches("(?s).*\\ntablesLoaded +2 +\\n.*"), "Only the two tables used since should have been read again");
+        assertTrue(server.handleCommand("SELECT * FROM unused;", session).contains("[ERROR]"), "A dropped table should be gone from the catalog");
+    }
+
+    @Test
+    public void testStreamedResults() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("CREATE TABLE coursework (task, submission);");
+        for (int i = 0; i < 200; i++) {
+            sendCommandToServer("INSERT INTO marks VALUES ('Student" + i + "', " + i + ");");
+        }
+        sendCommandToServer("INSERT INTO coursework VALUES ('OXO', 3);");
+        Session session = new Session();
+        server.handleCommand("USE " + randomName + ";", session);
+        // a writer that keeps count of the pieces it is given instead of the response
+        class CountingWriter extends java.io.Writer {
+            final StringBuilder text = new StringBuilder();
+            int largestWrite;
+
+            @Override
+            public void write(char[] characters, int offset, int length) {
+                largestWrite = Math.max(largestWrite, length);
+                text.append(characters, offset, length);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        }
+        CountingWriter response = new CountingWriter();
+        server.handleCommand("SELECT * FROM marks;", session, response);
+        assertTrue(response.text.toString().equals(sendCommandToServer("SELECT * FROM marks;")), "A streamed result should be the one handleCommand returns");
+        assertTrue(response.text.toString().startsWith("[OK]\nid") && response.text.toString().contains("Student199"));
+        assertTrue(response.largestWrite < 100, "The rows should have been written a value at a time");
+        response = new CountingWriter();
+        server.handleCommand("JOIN coursework AND marks ON submission AND id;", session, response);
+        assertTrue(response.text.toString().contains("Student2") && response.text.toString().contains("OXO"), "A join should be streamed too");
+        assertTrue(response.largestWrite < 100, "The joined rows should have been written a value at a time");
+        // the pairs are made as they are written, from the snapshot the join started with
+        Session insertingSession = new Session();
+        server.handleCommand("USE " + randomName + ";", insertingSession);
+        CountingWriter insertingResponse = new CountingWriter() {
+            boolean inserted;
+
+            @Override
+            public void write(char[] characters, int offset, int length) {
+                super.write(characters, offset, length);
+                if (!inserted && text.indexOf("OXO") != -1) {
+                    inserted = true;
+                    assertTimeoutPreemptively(Duration.ofMillis(1000), () -> server.handleCommand("INSERT INTO coursework VALUES ('STAG', 4);", insertingSession));
+                }
+            }
+        };
+        server.handleCommand("JOIN marks AND coursework ON id AND submission;", session, insertingResponse);
+        assertTrue(insertingResponse.text.toString().contains("OXO") && !insertingResponse.text.toString().contains("STAG"), "A row committed while a join is written should not be joined");
+        response = new CountingWriter();
+        server.handleCommand("SELECT * FROM missing;", session, response);
+        assertTrue(response.text.toString().startsWith("[ERROR]"), "An error is written as it was returned");
+        // the database lock is released before the rows are written, so ALTER TABLE can run meanwhile
+        Session otherSession = new Session();
+        server.handleCommand("USE " + randomName + ";", otherSession);
+        CountingWriter alteringResponse = new CountingWriter() {
+            boolean altered;
+
+            @Override
+            public void write(char[] characters, int offset, int length) {
+                super.write(characters, offset, length);
+                if (!altered && text.indexOf("Student5 ") != -1) {
+                    altered = true;
+                    assertTimeoutPreemptively(Duration.ofMillis(1000), () -> server.handleCommand("ALTER TABLE marks DROP mark;", otherSession));
+                }
+            }
+        };
+        IOException altered = assertThrows(IOException.class, () -> server.handleCommand("SELECT * FROM marks;", session, alteringResponse));
+        assertTrue(altered.getMessage().contains("altered"), "Rows whose table was altered while they were sent should fail the response");
+        assertFalse(alteringResponse.text.toString().contains("Student6 "), "No row should be written after the table was altered");
+    }
+
+    // A response the non-blocking listener has begun to send cannot turn into an [ERROR]: the client is disconnected
+    @Test
+    public void testFailureWhileStreaming() throws Exception {
+        // a command that fails after writing more than a chunk of rows, or before writing any
+        DBServer failingServer = new DBServer() {
+            @Override
+            public void handleCommand(String command, Session session, Writer response) throws IOException {
+                if (command.equals("SELECT")) {
+                    response.write("[OK]\nid\n");
+                    for (int i = 0; i < 20000; i++) {
+                        response.write(i + "\n");
+                    }
+                }
+                throw new IOException("Storage failed");
+            }
+        };
+        int port;
+        try (ServerSocket freePort = new ServerSocket(0)) {
+            port = freePort.getLocalPort();
+        }
+        NonBlockingListener listener = new NonBlockingListener(failingServer, 1);
+        Thread listenerThread = new Thread(() -> {
+            try {
+                listener.listenOn(port);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        listenerThread.start();
+        try {
+            String response = sendOverSocket(port, "SELECT");
+            assertTrue(response.startsWith("[OK]\nid\n0\n"), "The rows written before the failure should have been sent");
+            assertFalse(response.contains("[ERROR]"), "No [ERROR] should follow part of an [OK] response");
+            assertFalse(response.contains("19999"), "The response should end where the command failed");
+            assertTrue(response.indexOf(4) == -1, "A response that failed half way should not be ended like a whole one");
+            response = sendOverSocket(port, "DROP");
+            assertTrue(response.equals("[ERROR]: Storage failed\n" + (char) 4 + "\n"), "A command that failed before writing should be answered with [ERROR]");
+        } finally {
+            listenerThread.interrupt();
+            listenerThread.join(1000);
+        }
+    }
+
+    // Sends one command and reads until the server ends the response or closes the connection
+    private String sendOverSocket(int port, String command) throws Exception {
+        return assertTimeoutPreemptively(Duration.ofMillis(5000), () -> {
+            while (true) {
+                try (Socket socket = new Socket("localhost", port)) {
+                    socket.getOutputStream().write((command + "\n").getBytes(StandardCharsets.UTF_8));
+                    Reader reader = new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8);
+                    StringBuilder response = new StringBuilder();
+                    int character;
+                    while ((character = reader.read()) != -1) {
+                        response.append((char) character);
+                        if (character == '\n' && response.length() > 1 && response.charAt(response.length() - 2) == 4) {
+                            break;
+                        }
+                    }
+                    return response.toString();
+                } catch (ConnectException e) {
+                    Thread.sleep(20); // the listener has not started yet
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testLimitAndCursors() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        for (int i = 0; i < 50; i++) {
+            sendCommandToServer("INSERT INTO marks VALUES ('Student" + i + "', " + i + ");");
+        }
+        String response = sendCommandToServer("SELECT name FROM marks LIMIT 3 OFFSET 10;");
+        assertTrue(response.contains("Student10") && response.contains("Student12") && !response.contains("Student13") && !response.contains("Student9 "));
+        response = sendCommandToServer("SELECT name FROM marks WHERE mark >= 20 ORDER BY mark DESC LIMIT 2;");
+        assertTrue(response.contains("Student49") && response.contains("Student48") && !response.contains("Student47"), "LIMIT should apply after ORDER BY");
+        assertTrue(sendCommandToServer("CREATE INDEX ON marks (mark) USING BTREE;").contains("[OK]"));
+        response = sendCommandToServer("SELECT name FROM marks ORDER BY mark LIMIT 2 OFFSET 1;");
+        assertTrue(response.contains("Student1") && response.contains("Student2") && !response.contains("Student3"), "An ordered index should give the rows of a LIMIT");
+        assertTrue(sendCommandToServer("SELECT name FROM marks LIMIT x;").contains("[ERROR]"));
+        assertTrue(sendCommandToServer("SELECT name FROM marks LIMIT 2 ORDER BY mark;").contains("[ERROR]"));
+
+        Session session = new Session();
+        server.handleCommand("USE " + randomName + ";", session);
+        assertTrue(server.handleCommand("DECLARE pages CURSOR FOR SELECT name FROM marks WHERE mark < 25;", session).contains("[OK]"));
+        response = server.handleCommand("FETCH 20 FROM pages;", session);
+        assertTrue(response.split("\n").length == 22 && response.contains("Student19") && !response.contains("Student20"), "A fetch should return the rows asked for");
+        // the cursor reads the rows as they were at DECLARE
+        sendCommandToServer("DELETE FROM marks WHERE mark == 21;");
+        response = server.handleCommand("FETCH 20 FROM pages;", session);
+        assertTrue(response.contains("Student20") && response.contains("Student21") && response.contains("Student24") && !response.contains("Student25"), "A fetch should carry on where the last one stopped");
+        assertTrue(server.handleCommand("FETCH 20 FROM pages;", session).split("\n").length == 2, "An exhausted cursor should return no rows");
+        assertTrue(server.handleCommand("CLOSE pages;", session).contains("[OK]"));
+        assertTrue(server.handleCommand("FETCH 1 FROM pages;", session).contains("[ERROR]"), "A closed cursor should be gone");
+        // cursors are limited per session, and closed when they go idle by a clock the test moves on
+        AtomicLong now = new AtomicLong(System.nanoTime());
+        session.getCurrentDatabase().setCursorClock(now::get);
+        session.setMaxCursors(1);
+        session.setCursorIdleMillis(200);
+        assertTrue(server.handleCommand("DECLARE first CURSOR FOR SELECT * FROM marks LIMIT 5;", session).contains("[OK]"));
+        assertTrue(server.handleCommand("DECLARE second CURSOR FOR SELECT * FROM marks;", session).contains("[ERROR]"), "A session should not exceed its cursors");
+        response = server.handleCommand("FETCH 10 FROM first;", session);
+        assertTrue(response.split("\n").length == 7, "A cursor should stop at the LIMIT of its query");
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(server.handleCommand("DECLARE second CURSOR FOR SELECT * FROM marks;", session).contains("[ERROR]"), "A cursor should stay open until it is idle");
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(200));
+        assertTrue(server.handleCommand("DECLARE second CURSOR FOR SELECT * FROM marks;", session).contains("[OK]"), "The idle cursor should have been closed");
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(300));
+        sendCommandToServer("SELECT * FROM marks;");
+        assertTrue(server.handleCommand("FETCH 1 FROM second;", session).contains("[ERROR]"), "Any statement on the database should close idle cursors");
+    }
+
+    // A FETCH waiting on a client that reads slowly should hold up no statement of another session
+    @Test
+    public void testSlowFetchDoesNotBlockOtherSessions() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        for (int i = 0; i < 20; i++) {
+            sendCommandToServer("INSERT INTO marks VALUES ('Student" + i + "', " + i + ");");
+        }
+        Session session = new Session();
+        server.handleCommand("USE " + randomName + ";", session);
+        AtomicLong now = new AtomicLong(System.nanoTime());
+        session.getCurrentDatabase().setCursorClock(now::get);
+        session.setCursorIdleMillis(200);
+        assertTrue(server.handleCommand("DECLARE pages CURSOR FOR SELECT name FROM marks;", session).contains("[OK]"));
+        // a client that reads nothing until the test lets it
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch clientReads = new CountDownLatch(1);
+        StringBuilder fetched = new StringBuilder();
+        Writer slowClient = new Writer() {
+            @Override
+            public void write(char[] characters, int offset, int length) throws IOException {
+                writing.countDown();
+                try {
+                    clientReads.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                fetched.append(characters, offset, length);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Thread fetchThread = new Thread(() -> {
+            try {
+                server.handleCommand("FETCH 5 FROM pages;", session, slowClient);
+            } catch (IOException e) {
+                fetched.append(e.getMessage());
+            }
+        });
+        fetchThread.start();
+        try {
+            assertTrue(writing.await(1, TimeUnit.SECONDS), "The fetch should have started writing");
+            // the cursor has been unused for longer than it may be idle, but it is being fetched from
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(300));
+            for (int i = 0; i < 5; i++) {
+                assertTrue(sendCommandToServer("SELECT * FROM marks WHERE mark == " + i + ";").contains("Student" + i), "Another session should not wait for a slow fetch");
+            }
+            sendCommandToServer("INSERT INTO marks VALUES ('Late', 99);");
+        } finally {
+            clientReads.countDown();
+            fetchThread.join(1000);
+        }
+        assertTrue(fetched.toString().startsWith("[OK]") && fetched.toString().contains("Student4") && !fetched.toString().contains("Student5"), "The slow fetch should still have written its rows");
+        assertTrue(server.handleCommand("FETCH 5 FROM pages;", session).contains("Student9"), "A cursor fetched from should not have been closed as idle");
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(300));
+        sendCommandToServer("SELECT * FROM marks;");
+        assertTrue(server.handleCommand("FETCH 1 FROM pages;", session).contains("[ERROR]"), "The cursor should be closed once it goes idle");
+    }
+
+    @Test
+    public void testPreparedStatements() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        assertTrue(sendCommandToServer("PREPARE add AS INSERT INTO marks VALUES (?, ?, ?);").contains("[OK]"));
+        sendCommandToServer("EXECUTE add ('Simon', 65, TRUE);");
+        sendCommandToServer("EXECUTE add ('Sion', 55, TRUE);");
+        sendCommandToServer("EXECUTE add ('Rob Roy', 35, FALSE);");
+        assertTrue(sendCommandToServer("PREPARE passed AS SELECT name FROM marks WHERE pass == ? AND mark > ?;").contains("[OK]"));
+        String response = sendCommandToServer("EXECUTE passed (TRUE, 60);");
+        assertTrue(response.contains("Simon") && !response.contains("Sion"), "The values should be bound to the parameters");
+        response = sendCommandToServer("EXECUTE passed (TRUE, 50);");
+        assertTrue(response.contains("Simon") && response.contains("Sion") && !response.contains("Rob"), "A statement should run again with other values");
+        sendCommandToServer("PREPARE byName AS SELECT mark FROM marks WHERE name == ?;");
+        assertTrue(sendCommandToServer("EXECUTE byName ('Rob Roy');").contains("35"), "A value may hold spaces");
+        assertTrue(sendCommandToServer("EXECUTE byName ('?');").split("\n").length == 2, "A quoted ? is a value, not a parameter");
+        sendCommandToServer("PREPARE raise AS UPDATE marks SET mark = ? WHERE name == ?;");
+        sendCommandToServer("EXECUTE raise (70, 'Sion');");
+        assertTrue(sendCommandToServer("EXECUTE byName ('Sion');").contains("70"));
+        // wrong values, unknown statements and parameters outside the WHERE clause of a SELECT
+        assertTrue(sendCommandToServer("EXECUTE passed (TRUE);").contains("[ERROR]"));
+        assertTrue(sendCommandToServer("EXECUTE passed TRUE, 50;").contains("[ERROR]"));
+        assertTrue(sendCommandToServer("EXECUTE missing;").contains("[ERROR]"));
+        assertTrue(sendCommandToServer("PREPARE columns AS SELECT ? FROM marks;").contains("[ERROR]"));
+        assertTrue(sendCommandToServer("PREPARE add AS DELETE FROM marks WHERE name == ?;").contains("[ERROR]"), "A name can only be prepared once");
+        assertTrue(sendCommandToServer("DEALLOCATE add;").contains("[OK]"));
+        assertTrue(sendCommandToServer("EXECUTE add ('Chris', 20, FALSE);").contains("[ERROR]"), "A deallocated statement should be gone");
+    }
+
+    @Test
+    public void testLexer() {
+        Lexer lexer = new Lexer();
+        lexer.scan("select name FROM marks WHERE (mark>=50) AND name!='Rob Roy';");
+        assertTrue(lexer.size() == 15, "Every operator should be one token");
+        assertTrue(lexer.type(0) == Lexer.TokenType.KEYWORD && lexer.keyword(0) == Keyword.SELECT);
+        assertTrue(lexer.type(1) == Lexer.TokenType.IDENTIFIER && lexer.text(1).equals("name"));
+        assertTrue(lexer.is(5, "(") && lexer.is(7, ">=") && lexer.type(8) == Lexer.TokenType.LITERAL && lexer.text(8).equals("50"));
+        assertTrue(lexer.is(12, "!=") && lexer.isStringLiteral(13) && lexer.value(13).equals("Rob Roy"));
+        assertTrue(lexer.is(14, ";"));
+        // the lexer is reused for the next command
+        lexer.scan("INSERT INTO marks VALUES (TRUE, -1.5, NULL, ?);");
+        assertTrue(lexer.size() == 14 && lexer.type(5) == Lexer.TokenType.LITERAL && lexer.keyword(5) == Keyword.TRUE);
+        assertTrue(lexer.type(7) == Lexer.TokenType.LITERAL && lexer.type(9) == Lexer.TokenType.LITERAL && lexer.type(11) == Lexer.TokenType.PARAMETER);
+
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES('Simon',65);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 35);");
+        String response = sendCommandToServer("SELECT name FROM marks WHERE mark>=50;");
+        assertTrue(response.contains("Simon") && !response.contains("Rob"), "Operators should not need spaces around them");
+        sendCommandToServer("UPDATE marks SET mark=40 WHERE name=='Rob';");
+        assertTrue(sendCommandToServer("SELECT mark FROM marks WHERE name == 'Rob';").contains("40"));
+        assertTrue(sendCommandToServer("").contains("[ERROR]"), "An empty command should be answered with an error");
+    }
+
+    @Test
+    public void testParserAndExplain() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55, TRUE);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 35, FALSE);");
+        // AND binds more tightly than OR
+        String response = sendCommandToServer("SELECT name FROM marks WHERE name == 'Rob' OR pass == TRUE AND mark > 60;");
+        assertTrue(response.contains("Rob") && response.contains("Simon") && !response.contains("Sion"), "AND should be applied before OR");
+        response = sendCommandToServer("SELECT name FROM marks WHERE (name == 'Rob' OR pass == TRUE) AND mark > 40;");
+        assertTrue(!response.contains("Rob") && response.contains("Simon") && response.contains("Sion"), "Parentheses should group the conditions");
+        sendCommandToServer("UPDATE marks SET name = 'Rob Roy' WHERE name == 'Rob';");
+        response = sendCommandToServer("SELECT name FROM marks WHERE mark == 35;");
+        assertTrue(response.contains("Rob Roy") && !response.contains("'"), "An updated value should be stored without its quotes");
+        assertTrue(sendCommandToServer("SELECT name FROM marks WHERE mark = 35;").contains("[ERROR]"), "= is not a comparator");
+        assertTrue(sendCommandToServer("SELECT name FROM marks; SELECT mark FROM marks;").contains("[ERROR]"), "Only one command may be sent at a time");
+
+        String query = "SELECT name FROM marks WHERE mark >= 50 ORDER BY mark DESC LIMIT 1;";
+        assertTrue(sendCommandToServer(query).contains("Simon") && server.isStatementCached(query), "A command should be parsed once and kept");
+        assertTrue(sendCommandToServer("CREATE INDEX ON marks (mark) USING BTREE;").contains("[OK]"));
+        response = sendCommandToServer("EXPLAIN " + query);
+        assertTrue(response.contains("ordered index range on mark") && response.contains("mark >= 50") && response.contains("in index order"), "EXPLAIN should show the index it uses");
+        response = sendCommandToServer("EXPLAIN SELECT * FROM marks WHERE name == 'Simon' ORDER BY name;");
+        assertTrue(response.contains("full scan") && response.contains("sorted"));
+    }
+
+    @Test
+    public void testMultiRowInsert() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        String response = sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE), ('Sion', 55, TRUE), ('Rob', 35, FALSE);");
+        assertTrue(response.contains("[OK]") && response.contains("3 rows inserted"), "A multi-row INSERT should report its rows");
+        // a bad tuple stops the whole statement
+        assertTrue(sendCommandToServer("INSERT INTO marks VALUES ('Chris', 20, FALSE), ('Dave', 45);").contains("[ERROR]"));
+        assertFalse(sendCommandToServer("SELECT * FROM marks;").contains("Chris"), "No row of a failed INSERT should be kept");
+        sendCommandToServer("PREPARE pair AS INSERT INTO marks VALUES (?, ?, FALSE), (?, ?, TRUE);");
+        sendCommandToServer("EXECUTE pair ('Chris', 20, 'Dave', 70);");
+        response = sendCommandToServer("SELECT id, name FROM marks WHERE pass == TRUE ORDER BY id;");
+        assertTrue(response.matches("(?s).*\\n5 +Dave.*"), "The rows should get consecutive ids");
+        // inside a transaction the rows are only inserted at COMMIT
+        sendCommandToServer("BEGIN;");
+        response = sendCommandToServer("INSERT INTO marks VALUES ('Eve', 50, TRUE), ('Fred', 30, FALSE);");
+        assertTrue(response.equals("[OK]\n2 rows queued until COMMIT."), "Rows not inserted yet should not be reported as inserted");
+        assertTrue(sendCommandToServer("COMMIT;").contains("[OK]"));
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        assertTrue(sendCommandToServer("SELECT * FROM marks;").split("\n").length == 9, "Every inserted row should survive a restart");
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        sendCommandToServer("CREATE INDEX ON marks (mark) USING BTREE;");
+        // the files are named relative to the database's copy directory
+        Path copyDirectory = Paths.get("databases", randomName, "copy");
+        Files.createDirectories(copyDirectory);
+        Path csvFile = copyDirectory.resolve("marks.csv");
+        Path tsvFile = copyDirectory.resolve("marks.tsv");
+        Files.writeString(csvFile, "name,mark,pass\nSimon,65,TRUE\n\"Rob, \"\"the\"\" Roy\",35,FALSE\r\nSion,55,TRUE\n");
+        String response = sendCommandToServer("COPY marks FROM 'marks.csv';");
+        assertTrue(response.contains("[OK]") && response.contains("3 rows copied"), "Every line of the file should be copied");
+        response = sendCommandToServer("SELECT id, name FROM marks WHERE mark < 50;");
+        assertTrue(response.contains("Rob, \"the\" Roy") && response.matches("(?s).*\\n2 +Rob.*"), "A quoted value should be read whole, and ids given in file order");
+
+        assertTrue(sendCommandToServer("COPY marks TO 'marks.tsv';").contains("3 rows copied"));
+        assertTrue(Files.readAllLines(tsvFile).get(0).equals("id\tname\tmark\tpass") && Files.readAllLines(tsvFile).get(3).equals("3\tSion\t55\tTRUE"));
+        // a file written by COPY TO loads again, with new ids
+        assertTrue(sendCommandToServer("COPY marks FROM 'marks.tsv';").contains("[OK]"));
+        response = sendCommandToServer("SELECT id FROM marks WHERE name == 'Sion';");
+        assertTrue(response.contains("3") && response.contains("6"));
+
+        Files.writeString(csvFile, "name,mark\nChris,20\n");
+        assertTrue(sendCommandToServer("COPY marks FROM 'marks.csv';").contains("[ERROR]"), "The file should have the table's columns");
+        Files.writeString(csvFile, "name,mark,pass\nChris,20,FALSE\nDave,45\n");
+        assertTrue(sendCommandToServer("COPY marks FROM 'marks.csv';").contains("[ERROR]"));
+        // a quoted value has to be closed, and followed by a comma or the end of the line
+        Files.writeString(csvFile, "name,mark,pass\nChris,20,FALSE\n\"Dave,45,TRUE\n");
+        response = sendCommandToServer("COPY marks FROM 'marks.csv';");
+        assertTrue(response.startsWith("[ERROR]") && response.contains("Line 3") && response.contains("closing quote"), "An unterminated quote should be refused, naming its line");
+        Files.writeString(csvFile, "name,mark,pass\n\"Chr\"is,20,FALSE\n");
+        response = sendCommandToServer("COPY marks FROM 'marks.csv';");
+        assertTrue(response.startsWith("[ERROR]") && response.contains("Line 2") && response.contains("after the closing quote"), "Text after a closing quote should be refused, naming its line");
+        assertFalse(sendCommandToServer("SELECT * FROM marks;").contains("Chris"), "Nothing should be copied from a bad file");
+        assertTrue(sendCommandToServer("BEGIN;").contains("[OK]"));
+        assertTrue(sendCommandToServer("COPY marks FROM 'marks.tsv';").contains("[ERROR]"), "COPY FROM commits on its own");
+        sendCommandToServer("ROLLBACK;");
+
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        response = sendCommandToServer("SELECT name FROM marks WHERE mark > 50;");
+        assertTrue(response.split("\n").length == 6, "The copied rows should be in the table file, and in the index");
+
+        // no file outside the copy directory can be read or written
+        Files.writeString(copyDirectory.resolveSibling("outside.csv"), "name,mark,pass\nChris,20,FALSE\n");
+        assertTrue(sendCommandToServer("COPY marks FROM '../outside.csv';").startsWith("[ERROR]: The file ../outside.csv is not in the copy directory"), "A name leading out of the copy directory should be refused");
+        assertTrue(sendCommandToServer("COPY marks FROM '../x';").contains("[ERROR]"));
+        assertTrue(sendCommandToServer("COPY marks FROM 'sub/../../outside.csv';").contains("[ERROR]"));
+        Path outsideFile = Paths.get("/tmp/x");
+        boolean existed = Files.exists(outsideFile);
+        assertTrue(sendCommandToServer("COPY marks TO '/tmp/x';").contains("[ERROR]"), "An absolute name should be refused");
+        assertTrue(Files.exists(outsideFile) == existed, "A refused COPY TO should write nothing");
+        assertFalse(sendCommandToServer("SELECT * FROM marks;").contains("Chris"));
+    }
+
+
+    @Test
+    public void testAggregates() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE), ('Sion', 55, TRUE), ('Rob', 35, FALSE), ('Chris', 20, FALSE), ('Dave', 70, TRUE);");
+        String response = sendCommandToServer("SELECT pass, COUNT(*), SUM(mark), AVG(mark), MIN(name), MAX(mark) FROM marks GROUP BY pass ORDER BY pass;");
+        assertTrue(response.contains("COUNT(*)") && response.contains("SUM(mark)"), "The columns should be named after the functions");
+        assertTrue(response.matches("(?s).*\\nFALSE +2 +55 +27.5 +Chris +35 *\\nTRUE +3 +190 +63.33.*"), "There should be one row per group");
+        response = sendCommandToServer("SELECT COUNT(mark), MAX(mark) FROM marks WHERE name LIKE 'S';");
+        assertTrue(response.matches("(?s).*\\n2 +65 *\\n"), "Only the rows passing WHERE should be aggregated");
+        response = sendCommandToServer("SELECT COUNT(*), SUM(mark) FROM marks WHERE mark > 100;");
+        assertTrue(response.matches("(?s).*\\n0 +\\n"), "Without GROUP BY there should be a row even for no rows");
+
+        // COUNT(*) alone is answered from the table's row count, which only changes when a transaction commits
+        assertTrue(sendCommandToServer("EXPLAIN SELECT COUNT(*) FROM marks;").contains("no scan"));
+        assertTrue(sendCommandToServer("SELECT COUNT(*) FROM marks;").matches("(?s).*\\n5 *\\n"));
+        sendCommandToServer("DELETE FROM marks WHERE name == 'Rob';");
+        sendCommandToServer("BEGIN;");
+        sendCommandToServer("INSERT INTO marks VALUES ('Amy', 90, TRUE);");
+        assertTrue(sendCommandToServer("SELECT COUNT(*) FROM marks;").matches("(?s).*\\n4 *\\n"), "An uncommitted row should not be counted");
+        sendCommandToServer("ROLLBACK;");
+        assertTrue(sendCommandToServer("SELECT COUNT(*) FROM marks;").matches("(?s).*\\n4 *\\n"));
+
+        assertTrue(sendCommandToServer("SELECT name, COUNT(*) FROM marks GROUP BY pass;").contains("[ERROR]"), "A listed attribute should be the grouped one");
+        assertTrue(sendCommandToServer("SELECT SUM(name) FROM marks;").contains("[ERROR]"));
+        assertTrue(sendCommandToServer("DECLARE c CURSOR FOR SELECT COUNT(*) FROM marks;").contains("[ERROR]"));
+        // a function name is still a column name where no "(" follows it
+        sendCommandToServer("CREATE TABLE counts (count, max);");
+        sendCommandToServer("INSERT INTO counts VALUES (3, 4);");
+        assertTrue(sendCommandToServer("SELECT count FROM counts;").matches("(?s).*\\n3 *\\n"));
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        assertTrue(sendCommandToServer("SELECT COUNT(*) FROM marks;").matches("(?s).*\\n4 *\\n"), "The row count should be right after a restart");
+    }
+
     // Test to make sure that the [ERROR] tag is returned in the case of an error (and NOT the [OK] tag)
     @Test
     public void testForErrorTag() {